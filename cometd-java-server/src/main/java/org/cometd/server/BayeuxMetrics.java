@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Always-on throughput and latency metrics of a {@link BayeuxServerImpl},
+ * per channel and per transport.</p>
+ * <p>Counters are {@link LongAdder}s and distributions are {@link Histogram}s, so that
+ * recording on the message paths does not contend; sessions keep a reference to
+ * their transport metrics, so that recording does not look them up either.</p>
+ * <p>Channels are created dynamically, often one per device, so channel metrics are
+ * bounded in cardinality: exact metrics are kept only for the {@link #setTopChannels(int)
+ * top K} most published channels, while the other channels are rolled up by their
+ * {@link #setChannelPrefixDepth(int) prefix}, for example {@code /measurements/**}.
+ * The publish rate of the channels that are not in the top K is estimated with a
+ * Count-Min sketch of fixed size; a channel whose estimate exceeds the least published
+ * top channel takes its place, and the evicted metrics are folded into its prefix.</p>
+ * <p>{@link #snapshot()} returns a copy of all the metrics as nested maps,
+ * suitable to be pulled by a monitoring system or converted to JSON.</p>
+ */
+public class BayeuxMetrics {
+    /**
+     * The name of the transport metrics of local sessions.
+     */
+    public static final String LOCAL_TRANSPORT = "local";
+    public static final int DEFAULT_TOP_CHANNELS = 100;
+    public static final int DEFAULT_CHANNEL_PREFIX_DEPTH = 1;
+    private static final int MAX_CHANNEL_PREFIXES = 1024;
+    private static final String OTHER_CHANNELS = "/**";
+
+    private final CountMinSketch _sketch = new CountMinSketch(4, 4096);
+    private final ConcurrentMap<String, ChannelMetrics> _topChannels = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ChannelMetrics> _channelPrefixes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, TransportMetrics> _transports = new ConcurrentHashMap<>();
+    private final LongAdder _replayMessages = new LongAdder();
+    private final LongAdder _replayBytes = new LongAdder();
+    private final LongAdder _replayed = new LongAdder();
+    private volatile int _topChannelsSize = DEFAULT_TOP_CHANNELS;
+    private volatile int _channelPrefixDepth = DEFAULT_CHANNEL_PREFIX_DEPTH;
+    private volatile long _admission;
+
+    public int getTopChannels() {
+        return _topChannelsSize;
+    }
+
+    /**
+     * @param topChannels the number of channels with exact metrics
+     */
+    public void setTopChannels(int topChannels) {
+        _topChannelsSize = Math.max(0, topChannels);
+    }
+
+    public int getChannelPrefixDepth() {
+        return _channelPrefixDepth;
+    }
+
+    /**
+     * @param depth the number of segments of the prefix the other channels are rolled up by,
+     *              for example 1 to roll up {@code /measurements/123} into {@code /measurements/**}
+     */
+    public void setChannelPrefixDepth(int depth) {
+        _channelPrefixDepth = Math.max(0, depth);
+    }
+
+    /**
+     * <p>Records a message published to a channel.</p>
+     *
+     * @param channel      the channel name
+     * @param fanOut       the number of sessions the message has been delivered to
+     * @param enqueueNanos the time taken to enqueue the message to all the sessions
+     */
+    public void published(String channel, int fanOut, long enqueueNanos) {
+        ChannelMetrics metrics = _topChannels.get(channel);
+        if (metrics == null) {
+            long estimate = _sketch.add(channel);
+            if (estimate > _admission) {
+                metrics = admit(channel, estimate);
+            }
+            if (metrics == null) {
+                metrics = channelPrefix(channel);
+            }
+        }
+        metrics.published(fanOut, enqueueNanos);
+    }
+
+    private synchronized ChannelMetrics admit(String channel, long estimate) {
+        ChannelMetrics result = _topChannels.get(channel);
+        if (result != null) {
+            return result;
+        }
+        if (_topChannels.size() >= _topChannelsSize) {
+            Map.Entry<String, ChannelMetrics> least = leastPublished();
+            if (least == null || least.getValue().getScore() >= estimate) {
+                _admission = least == null ? Long.MAX_VALUE : least.getValue().getScore();
+                return null;
+            }
+            _topChannels.remove(least.getKey());
+            channelPrefix(least.getKey()).add(least.getValue());
+        }
+        // The publish being recorded is accounted by the metrics, not by the offset.
+        result = new ChannelMetrics(estimate - 1);
+        _topChannels.put(channel, result);
+        if (_topChannels.size() >= _topChannelsSize) {
+            Map.Entry<String, ChannelMetrics> least = leastPublished();
+            _admission = least == null ? 0 : least.getValue().getScore();
+        }
+        return result;
+    }
+
+    private Map.Entry<String, ChannelMetrics> leastPublished() {
+        Map.Entry<String, ChannelMetrics> result = null;
+        long score = Long.MAX_VALUE;
+        for (Map.Entry<String, ChannelMetrics> entry : _topChannels.entrySet()) {
+            long candidate = entry.getValue().getScore();
+            if (candidate < score) {
+                score = candidate;
+                result = entry;
+            }
+        }
+        return result;
+    }
+
+    private ChannelMetrics channelPrefix(String channel) {
+        String prefix = prefixOf(channel);
+        ChannelMetrics result = _channelPrefixes.get(prefix);
+        if (result == null) {
+            if (_channelPrefixes.size() >= MAX_CHANNEL_PREFIXES) {
+                prefix = OTHER_CHANNELS;
+            }
+            result = _channelPrefixes.computeIfAbsent(prefix, key -> new ChannelMetrics(0));
+        }
+        return result;
+    }
+
+    /**
+     * @param channel the channel name
+     * @return the channel prefix made of the first {@link #getChannelPrefixDepth() depth} segments, followed by {@code /**}
+     */
+    String prefixOf(String channel) {
+        int index = 0;
+        for (int i = 0; i < _channelPrefixDepth; ++i) {
+            index = channel.indexOf('/', index + 1);
+            if (index < 0) {
+                return channel;
+            }
+        }
+        return channel.substring(0, index) + OTHER_CHANNELS;
+    }
+
+    /**
+     * @param channel the channel name
+     * @return the exact metrics of the given channel if it is among the top channels, null otherwise
+     */
+    public ChannelMetrics getTopChannel(String channel) {
+        return _topChannels.get(channel);
+    }
+
+    /**
+     * @param prefix the channel prefix, such as {@code /measurements/**}
+     * @return the metrics rolled up by the given prefix, or null if no channel has been rolled up by it
+     */
+    public ChannelMetrics getChannelPrefix(String prefix) {
+        return _channelPrefixes.get(prefix);
+    }
+
+    /**
+     * @param transport the transport name
+     * @return the metrics of the given transport, created if absent
+     */
+    public TransportMetrics transport(String transport) {
+        TransportMetrics result = _transports.get(transport);
+        if (result == null) {
+            result = _transports.computeIfAbsent(transport, key -> new TransportMetrics());
+        }
+        return result;
+    }
+
+    /**
+     * <p>Records the change of the messages retained by the replay buffers of the channels.</p>
+     *
+     * @param messages the change of the number of messages retained
+     * @param bytes    the change of the memory retained, in bytes
+     */
+    public void replayBuffered(int messages, long bytes) {
+        _replayMessages.add(messages);
+        _replayBytes.add(bytes);
+    }
+
+    /**
+     * @param messages the number of messages replayed to a session that subscribed again
+     */
+    public void replayed(int messages) {
+        _replayed.add(messages);
+    }
+
+    /**
+     * @return the number of messages retained by the replay buffers of the channels
+     */
+    public long getReplayMessages() {
+        return _replayMessages.sum();
+    }
+
+    /**
+     * @return the memory retained by the replay buffers of the channels, in bytes
+     */
+    public long getReplayBytes() {
+        return _replayBytes.sum();
+    }
+
+    public long getReplayed() {
+        return _replayed.sum();
+    }
+
+    /**
+     * <p>Resets the counters and the distributions, and forgets the top channels and the prefixes.</p>
+     */
+    public synchronized void reset() {
+        // The replay messages and bytes are gauges, not reset.
+        _replayed.reset();
+        _topChannels.clear();
+        _channelPrefixes.clear();
+        _sketch.clear();
+        _admission = 0;
+        for (TransportMetrics metrics : _transports.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * @return a copy of the metrics, as {@code {"channels":{name:{...}}, "channelPrefixes":{prefix:{...}},
+     * "transports":{name:{...}}, "replay":{...}}}; durations are in microseconds
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> channels = new TreeMap<>();
+        for (Map.Entry<String, ChannelMetrics> entry : _topChannels.entrySet()) {
+            channels.put(entry.getKey(), entry.getValue().toMap());
+        }
+        Map<String, Object> channelPrefixes = new TreeMap<>();
+        for (Map.Entry<String, ChannelMetrics> entry : _channelPrefixes.entrySet()) {
+            channelPrefixes.put(entry.getKey(), entry.getValue().toMap());
+        }
+        Map<String, Object> transports = new TreeMap<>();
+        for (Map.Entry<String, TransportMetrics> entry : _transports.entrySet()) {
+            transports.put(entry.getKey(), entry.getValue().toMap());
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("timestamp", System.currentTimeMillis());
+        result.put("channels", channels);
+        result.put("channelPrefixes", channelPrefixes);
+        result.put("transports", transports);
+        Map<String, Object> replay = new LinkedHashMap<>();
+        replay.put("messages", getReplayMessages());
+        replay.put("bytes", getReplayBytes());
+        replay.put("replayed", getReplayed());
+        result.put("replay", replay);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[topChannels=%d/%d,channelPrefixes=%d,transports=%s]", getClass().getSimpleName(), hashCode(),
+                _topChannels.size(), _topChannelsSize, _channelPrefixes.size(), _transports.keySet());
+    }
+
+    private static Map<String, Object> micros(Histogram histogram) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", snapshot.getCount());
+        result.put("mean", snapshot.getMean() / 1000D);
+        result.put("p50", snapshot.getValueAtPercentile(50) / 1000);
+        result.put("p90", snapshot.getValueAtPercentile(90) / 1000);
+        result.put("p99", snapshot.getValueAtPercentile(99) / 1000);
+        result.put("max", snapshot.getMax() / 1000);
+        return result;
+    }
+
+    /**
+     * <p>The metrics of the messages published to a channel, or to the channels rolled up by a prefix.</p>
+     */
+    public static class ChannelMetrics {
+        private final LongAdder _publishes = new LongAdder();
+        private final LongAdder _deliveries = new LongAdder();
+        private final Histogram _fanOut = new Histogram();
+        private final Histogram _publishToEnqueue = new Histogram();
+        private final long _offset;
+
+        private ChannelMetrics(long offset) {
+            _offset = offset;
+        }
+
+        /**
+         * @param fanOut       the number of sessions the message has been delivered to
+         * @param enqueueNanos the time taken to enqueue the message to all the sessions
+         */
+        public void published(int fanOut, long enqueueNanos) {
+            _publishes.increment();
+            if (fanOut > 0) {
+                _deliveries.add(fanOut);
+                _fanOut.record(fanOut);
+                _publishToEnqueue.record(enqueueNanos);
+            }
+        }
+
+        public long getPublishes() {
+            return _publishes.sum();
+        }
+
+        /**
+         * @return the publishes estimated before the channel became a top channel,
+         * which is also the maximum error of its rank
+         */
+        public long getEstimatedOffset() {
+            return _offset;
+        }
+
+        private long getScore() {
+            return _offset + getPublishes();
+        }
+
+        public long getDeliveries() {
+            return _deliveries.sum();
+        }
+
+        public Histogram getFanOut() {
+            return _fanOut;
+        }
+
+        public Histogram getPublishToEnqueue() {
+            return _publishToEnqueue;
+        }
+
+        private void add(ChannelMetrics other) {
+            _publishes.add(other.getPublishes());
+            _deliveries.add(other.getDeliveries());
+            _fanOut.add(other._fanOut);
+            _publishToEnqueue.add(other._publishToEnqueue);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("publishes", getPublishes());
+            if (_offset > 0) {
+                result.put("estimatedOffset", _offset);
+            }
+            result.put("deliveries", getDeliveries());
+            result.put("fanOut", _fanOut.snapshot().toMap());
+            result.put("publishToEnqueueMicros", micros(_publishToEnqueue));
+            return result;
+        }
+    }
+
+    /**
+     * <p>The metrics of the messages received and sent through a transport,
+     * and of the sessions using it.</p>
+     */
+    public static class TransportMetrics {
+        private final LongAdder _received = new LongAdder();
+        private final LongAdder _sent = new LongAdder();
+        private final LongAdder _dropped = new LongAdder();
+        private final LongAdder _expiredSessions = new LongAdder();
+        private final LongAdder _removedSessions = new LongAdder();
+        private final Histogram _queueDepth = new Histogram();
+        private final Histogram _enqueueToWrite = new Histogram();
+        private final LongAdder _pendingBytes = new LongAdder();
+        private final Histogram _frameBytes = new Histogram();
+        private final LongAdder _deferredFlushes = new LongAdder();
+        private final LongAdder _slowConsumers = new LongAdder();
+
+        public void received() {
+            _received.increment();
+        }
+
+        /**
+         * @param messages  the number of messages taken from a session queue to be written
+         * @param waitNanos the time the oldest of the messages waited in the queue
+         */
+        public void dequeued(int messages, long waitNanos) {
+            _sent.add(messages);
+            _queueDepth.record(messages);
+            _enqueueToWrite.record(waitNanos);
+        }
+
+        public void dropped() {
+            _dropped.increment();
+        }
+
+        /**
+         * @param timedOut whether the session expired, rather than being disconnected
+         */
+        public void sessionRemoved(boolean timedOut) {
+            if (timedOut) {
+                _expiredSessions.increment();
+            } else {
+                _removedSessions.increment();
+            }
+        }
+
+        /**
+         * @param bytes the bytes of a frame handed to the connection
+         */
+        public void writeStarted(int bytes) {
+            _pendingBytes.add(bytes);
+            _frameBytes.record(bytes);
+        }
+
+        /**
+         * @param bytes the bytes of a frame the connection completed writing, or failed to
+         */
+        public void writeCompleted(int bytes) {
+            _pendingBytes.add(-bytes);
+        }
+
+        /**
+         * <p>Records a flush deferred because the connection was still writing.</p>
+         */
+        public void flushDeferred() {
+            _deferredFlushes.increment();
+        }
+
+        /**
+         * <p>Records a connection closed because it could not keep up with its messages.</p>
+         */
+        public void slowConsumerClosed() {
+            _slowConsumers.increment();
+        }
+
+        public long getReceived() {
+            return _received.sum();
+        }
+
+        public long getSent() {
+            return _sent.sum();
+        }
+
+        public long getDropped() {
+            return _dropped.sum();
+        }
+
+        public long getExpiredSessions() {
+            return _expiredSessions.sum();
+        }
+
+        public long getRemovedSessions() {
+            return _removedSessions.sum();
+        }
+
+        public Histogram getQueueDepth() {
+            return _queueDepth;
+        }
+
+        public Histogram getEnqueueToWrite() {
+            return _enqueueToWrite;
+        }
+
+        /**
+         * @return the bytes handed to the connections and not yet written
+         */
+        public long getPendingBytes() {
+            return _pendingBytes.sum();
+        }
+
+        public Histogram getFrameBytes() {
+            return _frameBytes;
+        }
+
+        public long getDeferredFlushes() {
+            return _deferredFlushes.sum();
+        }
+
+        public long getSlowConsumers() {
+            return _slowConsumers.sum();
+        }
+
+        void reset() {
+            _received.reset();
+            _sent.reset();
+            _dropped.reset();
+            _expiredSessions.reset();
+            _removedSessions.reset();
+            _queueDepth.reset();
+            _enqueueToWrite.reset();
+            // Pending bytes are a gauge, not reset.
+            _frameBytes.reset();
+            _deferredFlushes.reset();
+            _slowConsumers.reset();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("received", getReceived());
+            result.put("sent", getSent());
+            result.put("dropped", getDropped());
+            result.put("expiredSessions", getExpiredSessions());
+            result.put("removedSessions", getRemovedSessions());
+            result.put("queueDepth", _queueDepth.snapshot().toMap());
+            result.put("enqueueToWriteMicros", micros(_enqueueToWrite));
+            Histogram.Snapshot frameBytes = _frameBytes.snapshot();
+            if (frameBytes.getCount() > 0) {
+                result.put("pendingBytes", getPendingBytes());
+                result.put("frameBytes", frameBytes.toMap());
+                result.put("deferredFlushes", getDeferredFlushes());
+                result.put("slowConsumers", getSlowConsumers());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * <p>Estimates how many times each key has been added, never underestimating,
+     * with a fixed amount of memory regardless of the number of keys.</p>
+     */
+    private static class CountMinSketch {
+        private final int _depth;
+        private final int _mask;
+        private final AtomicLongArray _counts;
+
+        private CountMinSketch(int depth, int width) {
+            _depth = depth;
+            _mask = width - 1;
+            _counts = new AtomicLongArray(depth * width);
+        }
+
+        /**
+         * @param key the key to count
+         * @return the estimated count of the key, including this addition
+         */
+        private long add(String key) {
+            int hash = key.hashCode();
+            long result = Long.MAX_VALUE;
+            for (int row = 0; row < _depth; ++row) {
+                long count = _counts.incrementAndGet(row * (_mask + 1) + (mix(hash, row) & _mask));
+                result = Math.min(result, count);
+            }
+            return result;
+        }
+
+        private void clear() {
+            for (int i = 0; i < _counts.length(); ++i) {
+                _counts.set(i, 0);
+            }
+        }
+
+        private static int mix(int hash, int row) {
+            int h = hash * (0x9E3779B9 + (row << 1));
+            return h ^ (h >>> 15);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import org.cometd.server.transport.AbstractHttpTransport;
 import org.cometd.server.transport.AsyncJSONTransport;
 import org.cometd.server.transport.JSONPTransport;
 import org.cometd.server.transport.JSONTransport;
+import org.eclipse.jetty.util.ajax.JSON;
 import org.eclipse.jetty.util.annotation.ManagedAttribute;
 import org.eclipse.jetty.util.annotation.ManagedObject;
 import org.eclipse.jetty.util.annotation.ManagedOperation;
@@ -44,12 +45,18 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
-import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 @ManagedObject("The CometD server")
 public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer, Dumpable {
@@ -91,9 +98,35 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
     public static final int DEFAULT_HEARTBEAT_MINUTES = 10;
     public static final String ZIP_MESSAGE_SIZE_THRESHOLD_OPTION = "zipMessageSizeThreshold";
     public static final String IGNORE_NULL_DATA_FIELD = "ignoreNullDataField";
+    public static final String LAZY_TICK_PERIOD_OPTION = "lazyTickPeriod";
+    public static final String LAZY_WHEEL_SIZE_OPTION = "lazyWheelSize";
+    public static final String TRACE_SAMPLE_RATE_OPTION = "traceSampleRate";
+    public static final String METRICS_TOP_CHANNELS_OPTION = "metricsTopChannels";
+    public static final String METRICS_CHANNEL_PREFIX_DEPTH_OPTION = "metricsChannelPrefixDepth";
+    public static final String SESSION_ID_GENERATOR_OPTION = "sessionIdGenerator";
+    public static final String HANDSHAKE_RATE_OPTION = "handshakeRate";
+    public static final String HANDSHAKE_BURST_OPTION = "handshakeBurst";
+    public static final String HANDSHAKE_BACKOFF_WINDOW_OPTION = "handshakeBackoffWindow";
+    public static final String TENANT_ATTRIBUTE_OPTION = "tenantAttribute";
+    public static final String TENANT_WEIGHTS_OPTION = "tenantWeights";
+    public static final String TENANT_QUANTUM_OPTION = "tenantQuantum";
+    public static final String TENANT_MAX_IN_FLIGHT_OPTION = "tenantMaxInFlight";
+    public static final String TENANT_THREADS_OPTION = "tenantThreads";
+    public static final String PRIORITY_CHANNELS_OPTION = "priorityChannels";
+    public static final String CLUSTER_BUS_OPTION = "clusterBus";
+    public static final String CLUSTER_NODE_OPTION = "clusterNode";
+    public static final String CLUSTER_SUMMARY_PERIOD_OPTION = "clusterSummaryPeriod";
+    public static final String CLUSTER_HEARTBEAT_PERIOD_OPTION = "clusterHeartbeatPeriod";
+    public static final String CLUSTER_FALSE_POSITIVE_RATE_OPTION = "clusterFalsePositiveRate";
+    public static final String SESSION_STORE_OPTION = "sessionStore";
+    public static final String SESSION_STORE_PERIOD_OPTION = "sessionStorePeriod";
+    public static final String REPLAY_CHANNELS_OPTION = "replayChannels";
+    public static final String REPLAY_MAX_MESSAGES_OPTION = "replayMaxMessages";
+    public static final String REPLAY_MAX_BYTES_OPTION = "replayMaxBytes";
+    public static final String REPLAY_MAX_AGE_OPTION = "replayMaxAge";
 
     private final Logger _logger = LoggerFactory.getLogger(getClass().getName() + "." + Integer.toHexString(System.identityHashCode(this)));
-    private final SecureRandom _random = new SecureRandom();
+    private volatile SessionIdGenerator _sessionIdGenerator = SessionIdGenerator.newInstance(SessionIdGenerator.SHARED);
     private final List<BayeuxServerListener> _listeners = new CopyOnWriteArrayList<>();
     private final List<Extension> _extensions = new CopyOnWriteArrayList<>();
     private final ConcurrentMap<String, ServerSessionImpl> _sessions = new ConcurrentHashMap<>();
@@ -103,6 +136,25 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
     private final ThreadLocal<ServerTransport> _currentTransport = new ThreadLocal<>();
     private final Map<String, Object> _options = new TreeMap<>();
     private final Scheduler _scheduler = new ScheduledExecutorScheduler("BayeuxServer" + hashCode() + " Scheduler", false);
+    private TimingWheel _lazyWheel;
+    private final MessageTracer _messageTracer = new MessageTracer();
+    private final BayeuxMetrics _metrics = new BayeuxMetrics();
+    private final HandshakeAdmission _handshakeAdmission = new HandshakeAdmission();
+    private final LongAdder[] _sessionStates = new LongAdder[SessionState.values().length];
+    private final LongAdder _subscriptions = new LongAdder();
+    private volatile DeliveryScheduler _deliveryScheduler;
+    private ExecutorService _deliveryExecutor;
+    private volatile List<ChannelId> _priorityChannels = Collections.emptyList();
+    private final Object _priorityLock = new Object();
+    private volatile boolean _priorityLanes;
+    private volatile long _laneEpoch;
+    private volatile List<ChannelId> _replayChannels = Collections.emptyList();
+    private final AtomicLong _replaySequence = new AtomicLong(System.currentTimeMillis() * 1000);
+    private int _replayMaxMessages;
+    private long _replayMaxBytes;
+    private long _replayMaxAge;
+    private volatile ClusterFanout _cluster;
+    private volatile SessionWriteBehind _writeBehind;
     private SecurityPolicy _policy = new DefaultSecurityPolicy();
     private JSONContext.Server _jsonContext;
     private boolean _validation;
@@ -116,6 +168,9 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
 
     public BayeuxServerImpl(int heartbeatMinutes) {
         this._heartbeatMinutes = heartbeatMinutes;
+        for (int i = 0; i < _sessionStates.length; ++i) {
+            _sessionStates[i] = new LongAdder();
+        }
     }
 
     @Override
@@ -128,6 +183,55 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
 
         _scheduler.start();
 
+        long lazyTickPeriod = getOption(LAZY_TICK_PERIOD_OPTION, 10);
+        int lazyWheelSize = (int)getOption(LAZY_WHEEL_SIZE_OPTION, 1024);
+        _lazyWheel = new TimingWheel(_scheduler, lazyTickPeriod, lazyWheelSize);
+        _lazyWheel.start();
+
+        Object sessionIdGenerator = getOption(SESSION_ID_GENERATOR_OPTION);
+        if (sessionIdGenerator != null) {
+            _sessionIdGenerator = SessionIdGenerator.newInstance(sessionIdGenerator.toString());
+        }
+
+        _handshakeAdmission.setRate((int)getOption(HANDSHAKE_RATE_OPTION, 0));
+        _handshakeAdmission.setBurst((int)getOption(HANDSHAKE_BURST_OPTION, 0));
+        _handshakeAdmission.setBackoffWindow(getOption(HANDSHAKE_BACKOFF_WINDOW_OPTION, _handshakeAdmission.getBackoffWindow()));
+
+        Object tenantAttribute = getOption(TENANT_ATTRIBUTE_OPTION);
+        if (tenantAttribute != null) {
+            AtomicInteger threads = new AtomicInteger();
+            _deliveryExecutor = Executors.newFixedThreadPool((int)getOption(TENANT_THREADS_OPTION, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread thread = new Thread(r, "DeliveryScheduler-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            DeliveryScheduler deliveryScheduler = new DeliveryScheduler(_deliveryExecutor, tenantAttribute.toString());
+            deliveryScheduler.setQuantum((int)getOption(TENANT_QUANTUM_OPTION, DeliveryScheduler.DEFAULT_QUANTUM));
+            deliveryScheduler.setMaxInFlight((int)getOption(TENANT_MAX_IN_FLIGHT_OPTION, DeliveryScheduler.DEFAULT_MAX_IN_FLIGHT));
+            Object tenantWeights = getOption(TENANT_WEIGHTS_OPTION);
+            if (tenantWeights != null) {
+                deliveryScheduler.setWeights(tenantWeights.toString());
+            }
+            _deliveryScheduler = deliveryScheduler;
+        }
+
+        Object priorityChannels = getOption(PRIORITY_CHANNELS_OPTION);
+        if (priorityChannels != null) {
+            _priorityChannels = channelIds(priorityChannels);
+        }
+
+        Object replayChannels = getOption(REPLAY_CHANNELS_OPTION);
+        if (replayChannels != null) {
+            _replayMaxMessages = (int)getOption(REPLAY_MAX_MESSAGES_OPTION, 100);
+            _replayMaxBytes = getOption(REPLAY_MAX_BYTES_OPTION, 64 * 1024);
+            _replayMaxAge = getOption(REPLAY_MAX_AGE_OPTION, TimeUnit.MINUTES.toMillis(1));
+            _replayChannels = channelIds(replayChannels);
+        }
+
+        _messageTracer.setSampleRate((int)getOption(TRACE_SAMPLE_RATE_OPTION, 0));
+        _metrics.setTopChannels((int)getOption(METRICS_TOP_CHANNELS_OPTION, BayeuxMetrics.DEFAULT_TOP_CHANNELS));
+        _metrics.setChannelPrefixDepth((int)getOption(METRICS_CHANNEL_PREFIX_DEPTH_OPTION, BayeuxMetrics.DEFAULT_CHANNEL_PREFIX_DEPTH));
+
         long defaultSweepPeriod = 997;
         long sweepPeriodOption = getOption(SWEEP_PERIOD_OPTION, defaultSweepPeriod);
         if (sweepPeriodOption < 0) {
@@ -144,12 +248,87 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
 
         _validation = getOption(VALIDATE_MESSAGE_FIELDS_OPTION, true);
         _broadcastToPublisher = getOption(BROADCAST_TO_PUBLISHER_OPTION, true);
+
+        initializeCluster();
+        initializeSessionStore();
+    }
+
+    private void initializeCluster() throws Exception {
+        Object option = getOption(CLUSTER_BUS_OPTION);
+        if (option == null) {
+            return;
+        }
+        ClusterBus bus;
+        if (option instanceof String) {
+            bus = (ClusterBus)Thread.currentThread().getContextClassLoader().loadClass((String)option).newInstance();
+        } else if (option instanceof ClusterBus) {
+            bus = (ClusterBus)option;
+        } else {
+            throw new IllegalArgumentException("Invalid " + ClusterBus.class.getName() + " implementation class");
+        }
+        Object node = getOption(CLUSTER_NODE_OPTION);
+        ClusterFanout cluster = new ClusterFanout(this, bus, node == null ? Long.toString(randomLong() & Long.MAX_VALUE, 36) : node.toString());
+        cluster.setSummaryPeriod(getOption(CLUSTER_SUMMARY_PERIOD_OPTION, cluster.getSummaryPeriod()));
+        cluster.setHeartbeatPeriod(getOption(CLUSTER_HEARTBEAT_PERIOD_OPTION, cluster.getHeartbeatPeriod()));
+        Object falsePositiveRate = getOption(CLUSTER_FALSE_POSITIVE_RATE_OPTION);
+        if (falsePositiveRate != null) {
+            cluster.setFalsePositiveRate(Double.parseDouble(falsePositiveRate.toString()));
+        }
+        cluster.start();
+        _cluster = cluster;
+    }
+
+    /**
+     * @param option the value of an option listing channels, separated by commas
+     * @return the channels listed
+     */
+    private static List<ChannelId> channelIds(Object option) {
+        List<ChannelId> channelIds = new ArrayList<>();
+        for (String channel : option.toString().split(",")) {
+            channel = channel.trim();
+            if (!channel.isEmpty()) {
+                channelIds.add(new ChannelId(channel));
+            }
+        }
+        return channelIds;
+    }
+
+    private void initializeSessionStore() throws Exception {
+        Object option = getOption(SESSION_STORE_OPTION);
+        if (option == null) {
+            return;
+        }
+        SessionStore store;
+        if (option instanceof String) {
+            store = (SessionStore)Thread.currentThread().getContextClassLoader().loadClass((String)option).newInstance();
+        } else if (option instanceof SessionStore) {
+            store = (SessionStore)option;
+        } else {
+            throw new IllegalArgumentException("Invalid " + SessionStore.class.getName() + " implementation class");
+        }
+        SessionWriteBehind writeBehind = new SessionWriteBehind(this, store);
+        writeBehind.setPeriod(getOption(SESSION_STORE_PERIOD_OPTION, writeBehind.getPeriod()));
+        writeBehind.start();
+        _writeBehind = writeBehind;
     }
 
     @Override
     protected void doStop() throws Exception {
         super.doStop();
 
+        ClusterFanout cluster = _cluster;
+        if (cluster != null) {
+            _cluster = null;
+            cluster.stop();
+        }
+
+        // Before the sessions are cleared, so that their last changes are saved.
+        SessionWriteBehind writeBehind = _writeBehind;
+        if (writeBehind != null) {
+            _writeBehind = null;
+            writeBehind.stop();
+        }
+
         for (String allowedTransportName : getAllowedTransports()) {
             ServerTransport transport = getTransport(allowedTransportName);
             if (transport instanceof AbstractServerTransport) {
@@ -161,9 +340,18 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
         _extensions.clear();
         _sessions.clear();
         _channels.clear();
+        _priorityLanes = false;
         _transports.clear();
         _allowedTransports.clear();
         _options.clear();
+        _deliveryScheduler = null;
+        if (_deliveryExecutor != null) {
+            _deliveryExecutor.shutdown();
+            _deliveryExecutor = null;
+        }
+        if (_lazyWheel != null) {
+            _lazyWheel.stop();
+        }
         _scheduler.stop();
     }
 
@@ -295,6 +483,137 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
         return _scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * @return the shared wheel that drives the flush of lazy messages
+     */
+    public TimingWheel getLazyWheel() {
+        return _lazyWheel;
+    }
+
+    /**
+     * @return the facility tracing the messages received and sent by the transports
+     */
+    public MessageTracer getMessageTracer() {
+        return _messageTracer;
+    }
+
+    @ManagedAttribute("Traces one in N messages received or sent, 0 to disable sampling")
+    public int getTraceSampleRate() {
+        return _messageTracer.getSampleRate();
+    }
+
+    public void setTraceSampleRate(int sampleRate) {
+        _messageTracer.setSampleRate(sampleRate);
+    }
+
+    @ManagedOperation(value = "Switches the tracing of the messages of the given session", impact = "ACTION")
+    public void traceSession(@Name("sessionId") String sessionId, @Name("enabled") boolean enabled) {
+        _messageTracer.traceSession(sessionId, enabled);
+    }
+
+    @ManagedOperation(value = "Switches the tracing of the messages of the given channel, possibly a wildcard channel", impact = "ACTION")
+    public void traceChannel(@Name("channel") String channel, @Name("enabled") boolean enabled) {
+        _messageTracer.traceChannel(channel, enabled);
+    }
+
+    @ManagedOperation(value = "Switches off all message tracing", impact = "ACTION")
+    public void clearTraces() {
+        _messageTracer.clear();
+    }
+
+    /**
+     * @return the throughput and latency metrics of this server
+     */
+    public BayeuxMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * @return the sequence the messages kept to be replayed are numbered from, see {@link ReplayBuffer}
+     */
+    AtomicLong getReplaySequence() {
+        return _replaySequence;
+    }
+
+    @ManagedOperation(value = "The per channel and per transport metrics, as JSON", impact = "INFO")
+    public String metrics() {
+        Map<String, Object> snapshot = _metrics.snapshot();
+        snapshot.put("handshakes", _handshakeAdmission.toMap());
+        snapshot.put("sessions", sessionCounts());
+        DeliveryScheduler deliveryScheduler = _deliveryScheduler;
+        if (deliveryScheduler != null) {
+            snapshot.put("tenants", deliveryScheduler.snapshot());
+        }
+        ClusterFanout cluster = _cluster;
+        if (cluster != null) {
+            snapshot.put("cluster", cluster.toMap());
+        }
+        SessionWriteBehind writeBehind = _writeBehind;
+        if (writeBehind != null) {
+            snapshot.put("sessionStore", writeBehind.toMap());
+        }
+        return JSON.toString(snapshot);
+    }
+
+    /**
+     * @return the scheduler delivering fairly between tenants, or null if the
+     * {@value #TENANT_ATTRIBUTE_OPTION} option is not set
+     */
+    public DeliveryScheduler getDeliveryScheduler() {
+        return _deliveryScheduler;
+    }
+
+    /**
+     * @return the fan-out of the messages to the other nodes of the cluster, or null
+     * if the {@value #CLUSTER_BUS_OPTION} option is not set
+     */
+    public ClusterFanout getClusterFanout() {
+        return _cluster;
+    }
+
+    /**
+     * @return the writer of the session snapshots, or null if the
+     * {@value #SESSION_STORE_OPTION} option is not set
+     */
+    public SessionWriteBehind getSessionWriteBehind() {
+        return _writeBehind;
+    }
+
+    /**
+     * @return the controller shaping the rate of new handshakes
+     */
+    public HandshakeAdmission getHandshakeAdmission() {
+        return _handshakeAdmission;
+    }
+
+    @ManagedAttribute("The new handshakes admitted per second, 0 if not limited")
+    public int getHandshakeRate() {
+        return _handshakeAdmission.getRate();
+    }
+
+    public void setHandshakeRate(int rate) {
+        _handshakeAdmission.setRate(rate);
+    }
+
+    @ManagedAttribute(value = "The new handshakes admitted", readonly = true)
+    public long getHandshakesAdmitted() {
+        return _handshakeAdmission.getAdmitted();
+    }
+
+    @ManagedAttribute(value = "The new handshakes rejected because of the handshake rate", readonly = true)
+    public long getHandshakesRejected() {
+        return _handshakeAdmission.getRejected();
+    }
+
+    @ManagedOperation(value = "Resets the per channel and per transport metrics", impact = "ACTION")
+    public void resetMetrics() {
+        _metrics.reset();
+        DeliveryScheduler deliveryScheduler = _deliveryScheduler;
+        if (deliveryScheduler != null) {
+            deliveryScheduler.reset();
+        }
+    }
+
     public ChannelId newChannelId(String id) {
         ServerChannelImpl channel = _channels.get(id);
         if (channel != null) {
@@ -347,8 +666,18 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
     }
 
     public long randomLong() {
-        long value = _random.nextLong();
-        return value < 0 ? -value : value;
+        return _sessionIdGenerator.randomLong();
+    }
+
+    /**
+     * @return the generator of the random part of the session ids
+     */
+    public SessionIdGenerator getSessionIdGenerator() {
+        return _sessionIdGenerator;
+    }
+
+    public void setSessionIdGenerator(SessionIdGenerator sessionIdGenerator) {
+        _sessionIdGenerator = sessionIdGenerator;
     }
 
     public void setCurrentTransport(ServerTransport transport) {
@@ -374,6 +703,20 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
         if (channel == null) {
             ChannelId channelId = new ChannelId(channelName);
             ServerChannelImpl candidate = new ServerChannelImpl(this, channelId);
+            for (ChannelId priorityChannel : _priorityChannels) {
+                if (priorityChannel.equals(channelId) || priorityChannel.matches(channelId)) {
+                    candidate.setPriority(true);
+                    break;
+                }
+            }
+            if (!channelId.isWild()) {
+                for (ChannelId replayChannel : _replayChannels) {
+                    if (replayChannel.equals(channelId) || replayChannel.matches(channelId)) {
+                        candidate.setReplay(_replayMaxMessages, _replayMaxBytes, _replayMaxAge);
+                        break;
+                    }
+                }
+            }
             channel = _channels.putIfAbsent(channelName, candidate);
             if (channel == null) {
                 // My candidate channel was added to the map, so I'd better initialize it
@@ -438,6 +781,169 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
         return Collections.unmodifiableList(new ArrayList<ServerSession>(_sessions.values()));
     }
 
+    /**
+     * <p>Iterates over the sessions without copying them; the iteration is weakly
+     * consistent, so sessions added or removed meanwhile may or may not be returned.</p>
+     *
+     * @return an iterator over the sessions
+     */
+    public Iterator<ServerSession> sessionIterator() {
+        return Collections.<ServerSession>unmodifiableCollection(_sessions.values()).iterator();
+    }
+
+    /**
+     * <p>Returns a page of sessions, iterating without copying the other sessions.</p>
+     * <p>Pages are taken from a {@link #sessionIterator() weakly consistent iteration},
+     * so while sessions come and go a session may appear in two pages or in none.</p>
+     *
+     * @param offset the number of sessions to skip
+     * @param limit  the maximum number of sessions to return
+     * @return the sessions of the page
+     */
+    public List<ServerSession> getSessions(int offset, int limit) {
+        List<ServerSession> result = new ArrayList<>(Math.max(0, Math.min(limit, 1024)));
+        Iterator<ServerSessionImpl> iterator = _sessions.values().iterator();
+        for (int i = 0; i < offset && iterator.hasNext(); ++i) {
+            iterator.next();
+        }
+        while (result.size() < limit && iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    @ManagedOperation(value = "Lists a page of sessions, as id and state", impact = "INFO")
+    public String[] listSessions(@Name("offset") int offset, @Name("limit") int limit) {
+        List<ServerSession> sessions = getSessions(offset, limit);
+        String[] result = new String[sessions.size()];
+        for (int i = 0; i < result.length; ++i) {
+            ServerSessionImpl session = (ServerSessionImpl)sessions.get(i);
+            result[i] = session.getId() + " " + session.getState();
+        }
+        return result;
+    }
+
+    @ManagedAttribute(value = "The number of sessions", readonly = true)
+    public int getSessionCount() {
+        return _sessions.size();
+    }
+
+    /**
+     * <p>The counters are maintained as sessions change state, so reading them is cheap.
+     * Sessions are counted from their handshake; the removed states, {@link SessionState#DISCONNECTED}
+     * and {@link SessionState#TIMEOUTED}, count the sessions removed since the server started.</p>
+     *
+     * @param state the session state
+     * @return the number of sessions in the given state
+     */
+    public long getSessionCount(SessionState state) {
+        return _sessionStates[state.ordinal()].sum();
+    }
+
+    @ManagedAttribute(value = "The number of sessions with a /meta/connect held or a connection open", readonly = true)
+    public long getActiveSessionCount() {
+        return getSessionCount(SessionState.ACTIVE);
+    }
+
+    @ManagedAttribute(value = "The number of connected sessions between two /meta/connect", readonly = true)
+    public long getInactiveSessionCount() {
+        return getSessionCount(SessionState.INACTIVE);
+    }
+
+    @ManagedAttribute(value = "The number of handshaken sessions that did not connect yet", readonly = true)
+    public long getInitializedSessionCount() {
+        return getSessionCount(SessionState.INITIALIZED);
+    }
+
+    @ManagedAttribute(value = "The number of sessions disconnected since the server started", readonly = true)
+    public long getDisconnectedSessionCount() {
+        return getSessionCount(SessionState.DISCONNECTED);
+    }
+
+    @ManagedAttribute(value = "The number of sessions expired since the server started", readonly = true)
+    public long getTimedOutSessionCount() {
+        return getSessionCount(SessionState.TIMEOUTED);
+    }
+
+    @ManagedAttribute(value = "The number of subscriptions of sessions to channels", readonly = true)
+    public long getSubscriptionCount() {
+        return _subscriptions.sum();
+    }
+
+    @ManagedAttribute(value = "The number of channels", readonly = true)
+    public int getChannelCount() {
+        return _channels.size();
+    }
+
+    private Map<String, Object> sessionCounts() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("total", getSessionCount());
+        for (SessionState state : SessionState.values()) {
+            if (state != SessionState.UNINITILIZED) {
+                result.put(state.name().toLowerCase(Locale.ROOT), getSessionCount(state));
+            }
+        }
+        result.put("subscriptions", getSubscriptionCount());
+        result.put("channels", getChannelCount());
+        return result;
+    }
+
+    void sessionStateChanged(SessionState from, SessionState to) {
+        // Removed states are final, their counters are totals.
+        if (from != SessionState.UNINITILIZED) {
+            _sessionStates[from.ordinal()].decrement();
+        }
+        if (to != SessionState.UNINITILIZED) {
+            _sessionStates[to.ordinal()].increment();
+        }
+    }
+
+    void priorityChanged(boolean priority) {
+        synchronized (_priorityLock) {
+            ++_laneEpoch;
+            if (priority) {
+                _priorityLanes = true;
+            }
+        }
+    }
+
+    /**
+     * @return a number that changes every time a channel changes lane, see {@link MessageQueue}
+     */
+    long getLaneEpoch() {
+        return _laneEpoch;
+    }
+
+    /**
+     * <p>Meta messages, and messages of {@link ServerChannelImpl#isPriority() priority channels},
+     * are queued to sessions in the priority lane.</p>
+     *
+     * @param message the message to queue
+     * @return whether the message goes to the priority lane of the session queue
+     */
+    boolean isPriority(ServerMessage message) {
+        String channel = message.getChannel();
+        if (channel == null) {
+            return false;
+        }
+        if (ChannelId.isMeta(channel)) {
+            return true;
+        }
+        if (!_priorityLanes) {
+            return false;
+        }
+        ServerChannelImpl serverChannel = _channels.get(channel);
+        return serverChannel != null && serverChannel.isPriority();
+    }
+
+    void subscriptionsChanged(int delta) {
+        _subscriptions.add(delta);
+        ClusterFanout cluster = _cluster;
+        if (cluster != null) {
+            cluster.subscriptionsChanged();
+        }
+    }
+
     public ServerSession getSession(String clientId) {
         if (clientId == null) {
             return null;
@@ -445,8 +951,48 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
         return _sessions.get(clientId);
     }
 
+    /**
+     * <p>Looks up a session like {@link #getSession(String)} and, if the client id is not known,
+     * adopts the session from the {@value #SESSION_STORE_OPTION session store}.</p>
+     * <p>Invoked by the transports for the client ids of the messages they receive, not by the
+     * lookups of the application, since the adoption reads the store.</p>
+     *
+     * @param clientId the client id of a message received
+     * @return the session, known or adopted, or null
+     * @see SessionWriteBehind
+     */
+    public ServerSession getOrAdoptSession(String clientId) {
+        if (clientId == null) {
+            return null;
+        }
+        ServerSessionImpl session = _sessions.get(clientId);
+        if (session == null) {
+            SessionWriteBehind writeBehind = _writeBehind;
+            if (writeBehind != null && isRunning()) {
+                session = writeBehind.adopt(clientId);
+            }
+        }
+        return session;
+    }
+
+    ServerSessionImpl findSession(String clientId) {
+        return _sessions.get(clientId);
+    }
+
+    boolean isSessionAdded(ServerSessionImpl session) {
+        return _sessions.get(session.getId()) == session;
+    }
+
+    void sessionChanged(ServerSessionImpl session) {
+        SessionWriteBehind writeBehind = _writeBehind;
+        if (writeBehind != null && !session.isLocalSession()) {
+            writeBehind.changed(session);
+        }
+    }
+
     protected void addServerSession(ServerSessionImpl session, ServerMessage message) {
         _sessions.put(session.getId(), session);
+        sessionChanged(session);
         for (BayeuxServerListener listener : _listeners) {
             if (listener instanceof SessionListener) {
                 notifySessionAdded((SessionListener)listener, session, message);
@@ -477,6 +1023,15 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
         if (removed != session) {
             return false;
         }
+        SessionWriteBehind writeBehind = _writeBehind;
+        if (writeBehind != null && !removed.isLocalSession()) {
+            writeBehind.removed(removed);
+        }
+
+        BayeuxMetrics.TransportMetrics metrics = removed.getTransportMetrics();
+        if (metrics != null) {
+            metrics.sessionRemoved(timedOut);
+        }
 
         // Invoke BayeuxServer.SessionListener first, so that the application
         // can be "pre-notified" that a session is being removed before the
@@ -573,6 +1128,22 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
             _logger.debug(">  {} {}", message, session);
         }
 
+        ServerTransport transport = getCurrentTransport();
+        _metrics.transport(transport == null ? BayeuxMetrics.LOCAL_TRANSPORT : transport.getName()).received();
+
+        // Shape new handshakes before any further work, extensions included.
+        if (session == null && Channel.META_HANDSHAKE.equals(message.getChannel())) {
+            long interval = _handshakeAdmission.admit();
+            if (interval > 0) {
+                Mutable reply = createReply(message);
+                error(reply, "503::Too many handshakes");
+                Map<String, Object> advice = reply.getAdvice(true);
+                advice.put(Message.RECONNECT_FIELD, Message.RECONNECT_HANDSHAKE_VALUE);
+                advice.put(Message.INTERVAL_FIELD, interval);
+                return reply;
+            }
+        }
+
         if (_validation) {
             final Optional<String> errorMessage = validateMessage(message);
             if (errorMessage.isPresent()) {
@@ -776,10 +1347,71 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
             return;
         }
 
+        ReplayBuffer replay = to.getReplayBuffer();
+        if (replay != null && ChannelId.isBroadcast(mutable.getChannel())) {
+            replay.record(this, mutable);
+        }
 
-        boolean frozen = false;
+        ClusterFanout cluster = _cluster;
+        if (cluster != null && ChannelId.isBroadcast(mutable.getChannel())) {
+            cluster.forward(to, mutable, wildChannels);
+        }
 
+        deliver(from, to, mutable, wildChannels);
 
+        // Meta handlers
+        if (to.isMeta()) {
+            notifyHandlerListeners(from, to, mutable);
+        }
+    }
+
+    /**
+     * <p>Delivers a message forwarded by another node of the cluster to the local subscribers.</p>
+     *
+     * @param json the frozen JSON of the message
+     * @throws ParseException if the JSON cannot be parsed
+     */
+    void publishFromCluster(String json) throws ParseException {
+        Mutable message = parseFrozen(json);
+        if (message == null || !ChannelId.isBroadcast(message.getChannel())) {
+            return;
+        }
+        ServerChannelImpl to = (ServerChannelImpl)createChannelIfAbsent(message.getChannel()).getReference();
+        List<String> wildChannels = to.getChannelId().getWilds();
+        for (int i = 0, size = wildChannels.size(); i <= size; ++i) {
+            ServerChannelImpl channel = i == size ? to : _channels.get(wildChannels.get(i));
+            if (channel != null && channel.isLazy()) {
+                message.setLazy(true);
+            }
+        }
+        deliver(null, to, message, wildChannels);
+    }
+
+    /**
+     * @param json the JSON of a message frozen by this or another node
+     * @return the message, frozen with the given JSON, or null if the JSON is not a single message
+     * @throws ParseException if the JSON cannot be parsed
+     */
+    Mutable parseFrozen(String json) throws ParseException {
+        Mutable[] messages = _jsonContext.parse(json);
+        if (messages == null || messages.length != 1) {
+            return null;
+        }
+        Mutable message = messages[0];
+        if (message instanceof ServerMessageImpl && !(message instanceof WeakMessage)) {
+            ((ServerMessageImpl)message).freeze(json);
+        }
+        return message;
+    }
+
+    String toJSON(ServerMessage message) {
+        return message instanceof Mutable ? _jsonContext.generate((Mutable)message) : JSON.toString(message);
+    }
+
+    private void deliver(ServerSessionImpl from, ServerChannelImpl to, Mutable mutable, List<String> wildChannels) {
+        boolean frozen = false;
+        long start = System.nanoTime();
+        int fanOut = 0;
 
         // Call the wild subscribers, which can only get broadcast messages.
         // We need a special treatment in case of subscription to /**, otherwise
@@ -816,6 +1448,7 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
                                 frozen = true;
                             }
                             ((ServerSessionImpl)session).doDeliver(from, mutable);
+                            ++fanOut;
                         }
                     }
                 }
@@ -842,14 +1475,12 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
                         frozen = true;
                     }
                     ((ServerSessionImpl)session).doDeliver(from, mutable);
+                    ++fanOut;
                 }
             }
         }
 
-        // Meta handlers
-        if (to.isMeta()) {
-            notifyHandlerListeners(from, to, mutable);
-        }
+        _metrics.published(to.getId(), fanOut, fanOut == 0 ? 0 : System.nanoTime() - start);
     }
 
     private boolean notifyListeners(ServerSessionImpl from, ServerChannelImpl to, Mutable mutable, List<String> wildChannels) {
@@ -1143,8 +1774,19 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
 
     @ManagedOperation(value = "Sweeps channels and sessions of this BayeuxServer", impact = "ACTION")
     public void sweep() {
+        long laneEpoch = _laneEpoch;
+        boolean priorityLanes = false;
         for (ServerChannelImpl channel : _channels.values()) {
             channel.sweep();
+            priorityLanes |= channel.isPriority();
+        }
+        if (!priorityLanes && _priorityLanes) {
+            synchronized (_priorityLock) {
+                // No channel became a priority channel during the sweep.
+                if (laneEpoch == _laneEpoch) {
+                    _priorityLanes = false;
+                }
+            }
         }
 
         for (ServerTransport transport : _transports.values()) {
@@ -1229,9 +1871,9 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
 
             @Override
             public void dump(Appendable out, String indent) throws IOException {
-                List<ServerSession> sessions = new ArrayList<ServerSession>(_sessions.values());
-                ContainerLifeCycle.dumpObject(out, "sessions: " + sessions.size());
+                ContainerLifeCycle.dumpObject(out, "sessions: " + _sessions.size());
                 if (isDetailedDump()) {
+                    List<ServerSession> sessions = new ArrayList<ServerSession>(_sessions.values());
                     List<ServerSession> locals = new ArrayList<>();
                     for (Iterator<ServerSession> iterator = sessions.iterator(); iterator.hasNext(); ) {
                         ServerSession session = iterator.next();
@@ -1420,6 +2062,7 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
                         if (!isSessionUnknown(from)) {
                             if (channel.subscribe(from, message)) {
                                 reply.setSuccessful(true);
+                                replay(from, channel, message, reply);
                             } else {
                                 error(reply, "403::subscribe_failed");
                                 break;
@@ -1434,6 +2077,67 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer,
         }
     }
 
+    /**
+     * <p>Delivers to a session that subscribes the messages of the channel published after
+     * the last one it has seen, and tells in the reply how many and whether none is missing,
+     * see {@link ReplayBuffer}.</p>
+     * <p>For a wildcard subscription, the messages are those of the channels it matches that
+     * keep messages to replay, in the order of their numbers; the reply tells whether none is
+     * missing from these channels, not from the channels removed since.</p>
+     */
+    @SuppressWarnings("unchecked")
+    private void replay(ServerSessionImpl session, ServerChannelImpl channel, Mutable message, Mutable reply) {
+        Map<String, Object> ext = message.getExt();
+        if (ext == null) {
+            return;
+        }
+        Object number = ext.get(ReplayBuffer.EXT_FIELD);
+        if (number instanceof Map) {
+            number = ((Map<String, Object>)number).get(channel.getId());
+        }
+        if (!(number instanceof Number)) {
+            return;
+        }
+        List<ReplayBuffer> replays = new ArrayList<>(1);
+        if (channel.isWild()) {
+            ChannelId channelId = channel.getChannelId();
+            for (ServerChannelImpl matching : _channels.values()) {
+                ReplayBuffer replay = matching.getReplayBuffer();
+                if (replay != null && channelId.matches(matching.getChannelId())) {
+                    replays.add(replay);
+                }
+            }
+        } else if (channel.getReplayBuffer() != null) {
+            replays.add(channel.getReplayBuffer());
+        }
+        if (replays.isEmpty()) {
+            return;
+        }
+        SortedMap<Long, byte[]> messages = new TreeMap<>();
+        boolean complete = true;
+        for (ReplayBuffer replay : replays) {
+            complete &= replay.since(((Number)number).longValue(), messages);
+        }
+        int replayed = 0;
+        for (byte[] json : messages.values()) {
+            try {
+                Mutable missed = parseFrozen(new String(json, StandardCharsets.UTF_8));
+                if (missed != null) {
+                    session.doDeliver(null, missed);
+                    ++replayed;
+                }
+            } catch (ParseException x) {
+                _logger.info("Could not replay message to session " + session.getId(), x);
+            }
+        }
+        _metrics.replayed(replayed);
+        Map<String, Object> result = new HashMap<>(4);
+        result.put("messages", replayed);
+        result.put("complete", complete);
+        Object replies = reply.getExt(true).computeIfAbsent(ReplayBuffer.EXT_FIELD, key -> new HashMap<String, Object>());
+        ((Map<String, Object>)replies).put(channel.getId(), result);
+    }
+
     private class UnsubscribeHandler extends HandlerListener {
         public void onMessage(final ServerSessionImpl from, final Mutable message) {
             Mutable reply = message.getAssociated();
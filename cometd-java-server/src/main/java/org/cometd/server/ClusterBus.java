@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+/**
+ * <p>The transport between the nodes of a cluster of {@link BayeuxServerImpl}s, used by
+ * the cluster fan-out to exchange subscription summaries and published messages.</p>
+ * <p>Payloads are opaque bytes: a bus only needs to deliver them, at most once and in
+ * order from a given node, to all the other nodes or to a single one.</p>
+ *
+ * @see LocalClusterBus
+ * @see PulsarClusterBus
+ */
+public interface ClusterBus {
+    /**
+     * <p>Joins the cluster as the given node.</p>
+     *
+     * @param node     the unique name of this node
+     * @param receiver the receiver of the payloads sent to this node
+     * @throws Exception if the node cannot join
+     */
+    void join(String node, Receiver receiver) throws Exception;
+
+    /**
+     * @param payload the payload to send to all the other nodes
+     */
+    void broadcast(byte[] payload);
+
+    /**
+     * @param node    the node to send the payload to
+     * @param payload the payload to send
+     */
+    void send(String node, byte[] payload);
+
+    /**
+     * <p>Leaves the cluster; no more payloads are received.</p>
+     */
+    void leave();
+
+    /**
+     * <p>Receives the payloads sent to a node.</p>
+     */
+    interface Receiver {
+        /**
+         * @param node    the node that sent the payload
+         * @param payload the payload
+         */
+        void receive(String node, byte[] payload);
+    }
+}
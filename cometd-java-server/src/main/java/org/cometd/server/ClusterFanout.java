@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage.Mutable;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Forwards the messages published on this node to the peer nodes of a cluster that
+ * have subscribers to their channels, over a {@link ClusterBus}.</p>
+ * <p>Each node broadcasts the {@link InterestSummary summary} of the channels it has
+ * subscribers to, {@link #setSummaryPeriod(long) soon after} they change and at least
+ * every {@link #setHeartbeatPeriod(long) heartbeat period}; a peer not heard of for
+ * three heartbeat periods is forgotten. A node joining the cluster asks its peers for
+ * their summaries.</p>
+ * <p>A broadcast message is forwarded once frozen: the bytes sent are the JSON that the
+ * local subscribers receive, and the receiving node freezes the message it parses with
+ * the same JSON, so a message is serialized only once in the cluster. The receiving node
+ * delivers it to its subscribers without notifying the channel listeners, which already
+ * ran on the publishing node, and without forwarding it again.</p>
+ * <p>Subscriptions are propagated asynchronously: the messages published on a peer before
+ * it receives the summary of a new subscription do not reach it.</p>
+ */
+public class ClusterFanout {
+    static final byte SUMMARY = 1;
+    static final byte MESSAGE = 2;
+    static final byte HELLO = 3;
+    static final byte LEAVE = 4;
+
+    private static final Logger _logger = LoggerFactory.getLogger(ClusterFanout.class);
+
+    private final ConcurrentMap<String, Peer> _peers = new ConcurrentHashMap<>();
+    private final AtomicBoolean _changed = new AtomicBoolean(true);
+    private final LongAdder _forwarded = new LongAdder();
+    private final LongAdder _received = new LongAdder();
+    private final BayeuxServerImpl _bayeux;
+    private final ClusterBus _bus;
+    private final String _node;
+    private volatile long _summaryPeriod = 200;
+    private volatile long _heartbeatPeriod = 5000;
+    private volatile double _falsePositiveRate = 0.01;
+    private volatile byte[] _summary;
+    private volatile long _summarized;
+    private volatile Scheduler.Task _task;
+
+    public ClusterFanout(BayeuxServerImpl bayeux, ClusterBus bus, String node) {
+        _bayeux = bayeux;
+        _bus = bus;
+        _node = node;
+    }
+
+    public String getNode() {
+        return _node;
+    }
+
+    public ClusterBus getBus() {
+        return _bus;
+    }
+
+    public long getSummaryPeriod() {
+        return _summaryPeriod;
+    }
+
+    /**
+     * @param summaryPeriod the max delay, in milliseconds, before a change of the subscriptions is broadcast
+     */
+    public void setSummaryPeriod(long summaryPeriod) {
+        _summaryPeriod = summaryPeriod;
+    }
+
+    public long getHeartbeatPeriod() {
+        return _heartbeatPeriod;
+    }
+
+    /**
+     * @param heartbeatPeriod the period, in milliseconds, of the broadcast of an unchanged summary
+     */
+    public void setHeartbeatPeriod(long heartbeatPeriod) {
+        _heartbeatPeriod = heartbeatPeriod;
+    }
+
+    public double getFalsePositiveRate() {
+        return _falsePositiveRate;
+    }
+
+    /**
+     * @param falsePositiveRate the rate of messages forwarded to a peer without subscribers, per channel prefix
+     */
+    public void setFalsePositiveRate(double falsePositiveRate) {
+        _falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * @return the peer nodes heard of
+     */
+    public Set<String> getPeers() {
+        return _peers.keySet();
+    }
+
+    /**
+     * @return the messages sent to peer nodes
+     */
+    public long getForwarded() {
+        return _forwarded.sum();
+    }
+
+    /**
+     * @return the messages received from peer nodes
+     */
+    public long getReceived() {
+        return _received.sum();
+    }
+
+    void start() throws Exception {
+        _bus.join(_node, this::receive);
+        _bus.broadcast(new byte[]{HELLO});
+        schedule();
+    }
+
+    void stop() {
+        Scheduler.Task task = _task;
+        if (task != null) {
+            task.cancel();
+        }
+        _bus.broadcast(new byte[]{LEAVE});
+        _bus.leave();
+        _peers.clear();
+    }
+
+    private void schedule() {
+        _task = _bayeux.schedule(this::tick, _summaryPeriod);
+    }
+
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            long heartbeat = TimeUnit.MILLISECONDS.toNanos(_heartbeatPeriod);
+            if (_changed.getAndSet(false) || now - _summarized >= heartbeat) {
+                _summarized = now;
+                _bus.broadcast(summary(true));
+            }
+            _peers.entrySet().removeIf(entry -> now - entry.getValue()._seen > 3 * heartbeat);
+        } catch (Throwable x) {
+            _logger.info("Exception while broadcasting the subscriptions of node " + _node, x);
+        } finally {
+            if (_bayeux.isRunning()) {
+                schedule();
+            }
+        }
+    }
+
+    void subscriptionsChanged() {
+        _changed.set(true);
+    }
+
+    private byte[] summary(boolean update) throws IOException {
+        byte[] summary = _summary;
+        if (summary == null || update) {
+            List<String> channels = new ArrayList<>();
+            for (ServerChannel channel : _bayeux.getChannels()) {
+                if (channel.isBroadcast() && !((ServerChannelImpl)channel).subscribers().isEmpty()) {
+                    channels.add(channel.getId());
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeByte(SUMMARY);
+            InterestSummary.of(channels, _falsePositiveRate).writeTo(output);
+            output.flush();
+            summary = _summary = bytes.toByteArray();
+        }
+        return summary;
+    }
+
+    /**
+     * <p>Forwards a broadcast message to the peers with subscribers to its channel.</p>
+     *
+     * @param to           the channel of the message
+     * @param mutable      the message
+     * @param wildChannels the wild channels that match the channel
+     */
+    void forward(ServerChannelImpl to, Mutable mutable, List<String> wildChannels) {
+        List<String> nodes = null;
+        for (Map.Entry<String, Peer> entry : _peers.entrySet()) {
+            if (entry.getValue()._summary.matches(to.getId(), wildChannels)) {
+                if (nodes == null) {
+                    nodes = new ArrayList<>(2);
+                }
+                nodes.add(entry.getKey());
+            }
+        }
+        if (nodes == null || !(mutable instanceof ServerMessageImpl)) {
+            return;
+        }
+        _bayeux.freeze(mutable);
+        byte[] json = ((ServerMessageImpl)mutable).getJSONBytes();
+        if (json == null) {
+            return;
+        }
+        byte[] payload = new byte[json.length + 1];
+        payload[0] = MESSAGE;
+        System.arraycopy(json, 0, payload, 1, json.length);
+        for (String node : nodes) {
+            _bus.send(node, payload);
+            _forwarded.increment();
+        }
+    }
+
+    private void receive(String node, byte[] payload) {
+        if (payload.length == 0) {
+            return;
+        }
+        try {
+            switch (payload[0]) {
+                case MESSAGE:
+                    _received.increment();
+                    _bayeux.publishFromCluster(new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8));
+                    break;
+                case SUMMARY:
+                    InterestSummary summary = InterestSummary.readFrom(new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1)));
+                    peer(node)._summary = summary;
+                    break;
+                case HELLO:
+                    peer(node);
+                    _bus.send(node, summary(false));
+                    break;
+                case LEAVE:
+                    _peers.remove(node);
+                    break;
+                default:
+                    _logger.debug("Unknown cluster payload {} from node {}", payload[0], node);
+                    break;
+            }
+        } catch (Throwable x) {
+            _logger.info("Exception while receiving from node " + node, x);
+        }
+    }
+
+    private Peer peer(String node) {
+        Peer peer = _peers.computeIfAbsent(node, n -> new Peer());
+        peer._seen = System.nanoTime();
+        return peer;
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("node", _node);
+        result.put("peers", _peers.size());
+        result.put("forwarded", getForwarded());
+        result.put("received", getReceived());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[%s,peers=%d,%s]", getClass().getSimpleName(), hashCode(), _node, _peers.size(), _bus);
+    }
+
+    private static class Peer {
+        private volatile InterestSummary _summary = InterestSummary.EMPTY;
+        private volatile long _seen;
+    }
+}
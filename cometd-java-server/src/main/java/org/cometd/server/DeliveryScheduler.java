@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.cometd.bayeux.server.ServerSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Schedules the delivery to remote sessions fairly between tenants.</p>
+ * <p>Sessions are assigned to a tenant by the value of a session attribute; sessions
+ * without it belong to the {@value #DEFAULT_TENANT} tenant. Rather than resuming the
+ * long poll or writing the WebSocket frames right away, a session with messages to
+ * deliver is queued to its tenant, and the tenants are drained with deficit round robin:
+ * at each round a tenant earns {@link #setQuantum(int) quantum} times its
+ * {@link #setWeight(String, int) weight} messages of credit, and delivers to its queued
+ * sessions as long as the credit covers the messages they have queued.
+ * A tenant publishing to thousands of sessions at once therefore delivers them over
+ * several rounds, while the deliveries of the other tenants are interleaved.</p>
+ * <p>A session is queued at most once: further flushes while its delivery is pending
+ * are coalesced with it. A tenant has at most {@link #setMaxInFlight(int) maxInFlight}
+ * deliveries whose messages have not yet been taken by the transport; above that,
+ * the tenant is skipped until one of its deliveries is taken, so that a tenant
+ * whose sessions are slow does not get ahead of the others.</p>
+ * <p>The queues are drained by a single task that only orders the deliveries: each
+ * delivery, that resumes a long poll or serializes and writes the WebSocket frames,
+ * is handed to the delivery executor, so that the deliveries of the tenants run
+ * in parallel and never on the server scheduler.</p>
+ */
+public class DeliveryScheduler implements Runnable {
+    public static final String DEFAULT_TENANT = "default";
+    public static final int DEFAULT_QUANTUM = 64;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+    private static final Logger _logger = LoggerFactory.getLogger(DeliveryScheduler.class);
+
+    private final ConcurrentMap<String, Tenant> _tenants = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ServerSessionImpl, Delivery> _pending = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ServerSessionImpl, Tenant> _inFlight = new ConcurrentHashMap<>();
+    private final Queue<Tenant> _ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean _draining = new AtomicBoolean();
+    private final Executor _executor;
+    private final String _attribute;
+    private volatile int _quantum = DEFAULT_QUANTUM;
+    private volatile int _maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    /**
+     * @param executor  the executor running the drain task and the deliveries, not the server scheduler
+     * @param attribute the name of the session attribute holding the tenant
+     */
+    public DeliveryScheduler(Executor executor, String attribute) {
+        _executor = executor;
+        _attribute = attribute;
+    }
+
+    public String getAttribute() {
+        return _attribute;
+    }
+
+    public int getQuantum() {
+        return _quantum;
+    }
+
+    /**
+     * @param quantum the messages of credit a tenant of weight 1 earns at each round
+     */
+    public void setQuantum(int quantum) {
+        _quantum = Math.max(1, quantum);
+    }
+
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    /**
+     * @param maxInFlight the deliveries of a tenant that may wait for the transport to take their messages
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        _maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * @param tenant the tenant
+     * @param weight the share of the deliveries of the tenant relative to the other tenants, 1 by default
+     */
+    public void setWeight(String tenant, int weight) {
+        tenant(tenant)._weight = Math.max(1, weight);
+    }
+
+    /**
+     * @param weights the tenant weights, in the form {@code tenant1:weight1,tenant2:weight2}
+     */
+    public void setWeights(String weights) {
+        for (String entry : weights.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid tenant weight '" + entry + "', expected tenant:weight");
+            }
+            setWeight(entry.substring(0, colon).trim(), Integer.parseInt(entry.substring(colon + 1).trim()));
+        }
+    }
+
+    /**
+     * @param session the session to find the tenant of
+     * @return the tenant of the session
+     */
+    public String tenantOf(ServerSession session) {
+        Object tenant = session.getAttribute(_attribute);
+        return tenant == null ? DEFAULT_TENANT : tenant.toString();
+    }
+
+    /**
+     * <p>Queues the delivery to the given session to its tenant.</p>
+     *
+     * @param session   the session that has messages to deliver
+     * @param scheduler the transport scheduler that delivers the messages
+     */
+    public void submit(ServerSessionImpl session, AbstractServerTransport.Scheduler scheduler) {
+        while (true) {
+            Delivery pending = _pending.get(session);
+            if (pending != null) {
+                pending._scheduler = scheduler;
+                // The drain task removes the delivery before it reads
+                // the scheduler, so if it is still there it is coalesced.
+                if (_pending.get(session) == pending) {
+                    return;
+                }
+                continue;
+            }
+            Delivery delivery = new Delivery(session, scheduler);
+            if (_pending.putIfAbsent(session, delivery) == null) {
+                Tenant tenant = tenant(tenantOf(session));
+                tenant._queue.offer(delivery);
+                if (tenant._active.compareAndSet(false, true)) {
+                    ready(tenant);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * <p>Invoked when the transport takes the queued messages of the session,
+     * or when the session is removed, to complete its delivery in flight.</p>
+     *
+     * @param session the session
+     */
+    void taken(ServerSessionImpl session) {
+        Tenant tenant = _inFlight.remove(session);
+        if (tenant != null) {
+            tenant._inFlight.decrementAndGet();
+            if (tenant._blocked.compareAndSet(true, false)) {
+                ready(tenant);
+            }
+        }
+    }
+
+    private void ready(Tenant tenant) {
+        _ready.offer(tenant);
+        if (_draining.compareAndSet(false, true)) {
+            _executor.execute(this);
+        }
+    }
+
+    private Tenant tenant(String name) {
+        Tenant tenant = _tenants.get(name);
+        if (tenant == null) {
+            tenant = new Tenant();
+            Tenant existing = _tenants.putIfAbsent(name, tenant);
+            if (existing != null) {
+                tenant = existing;
+            }
+        }
+        return tenant;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Tenant tenant;
+            while ((tenant = _ready.poll()) != null) {
+                drain(tenant);
+            }
+            _draining.set(false);
+            // Tenants may have become ready after the queue was found empty.
+            if (_ready.isEmpty() || !_draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void drain(Tenant tenant) {
+        tenant._deficit += (long)_quantum * tenant._weight;
+        Delivery delivery;
+        while ((delivery = tenant._queue.peek()) != null) {
+            if (tenant._inFlight.get() >= _maxInFlight) {
+                // The tenant stays active and is made ready again by taken().
+                tenant._blocked.set(true);
+                if (tenant._inFlight.get() >= _maxInFlight || !tenant._blocked.compareAndSet(true, false)) {
+                    return;
+                }
+                continue;
+            }
+            ServerSessionImpl session = delivery._session;
+            int cost = Math.max(1, session.getQueueSize());
+            if (cost > tenant._deficit) {
+                // Not enough credit, the tenant goes to the end of the round.
+                _ready.offer(tenant);
+                return;
+            }
+            tenant._queue.poll();
+            _pending.remove(session, delivery);
+            tenant._deficit -= cost;
+            tenant._deliveries.increment();
+            tenant._messages.add(cost);
+            tenant._wait.record(System.nanoTime() - delivery._nanoTime);
+            if (_inFlight.putIfAbsent(session, tenant) == null) {
+                tenant._inFlight.incrementAndGet();
+            }
+            try {
+                _executor.execute(delivery);
+            } catch (Throwable x) {
+                _logger.info("Could not deliver to session " + session.getId(), x);
+                taken(session);
+            }
+        }
+        // An idle tenant does not accumulate credit.
+        tenant._deficit = 0;
+        tenant._active.set(false);
+        if (!tenant._queue.isEmpty() && tenant._active.compareAndSet(false, true)) {
+            _ready.offer(tenant);
+        }
+    }
+
+    public void reset() {
+        for (Tenant tenant : _tenants.values()) {
+            tenant._deliveries.reset();
+            tenant._messages.reset();
+            tenant._wait.reset();
+        }
+    }
+
+    /**
+     * @return a copy of the per-tenant weights, throughput and scheduling latency, in nanoseconds
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        for (Map.Entry<String, Tenant> entry : _tenants.entrySet()) {
+            Tenant tenant = entry.getValue();
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("weight", tenant._weight);
+            metrics.put("queued", tenant._queue.size());
+            metrics.put("inFlight", tenant._inFlight.get());
+            metrics.put("deliveries", tenant._deliveries.sum());
+            metrics.put("messages", tenant._messages.sum());
+            metrics.put("schedulingLatency", tenant._wait.snapshot().toMap());
+            result.put(entry.getKey(), metrics);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[attribute=%s,quantum=%d,maxInFlight=%d,tenants=%d]", getClass().getSimpleName(), hashCode(),
+                _attribute, _quantum, _maxInFlight, _tenants.size());
+    }
+
+    private static class Tenant {
+        private final Queue<Delivery> _queue = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean _active = new AtomicBoolean();
+        private final AtomicBoolean _blocked = new AtomicBoolean();
+        private final AtomicInteger _inFlight = new AtomicInteger();
+        private final LongAdder _deliveries = new LongAdder();
+        private final LongAdder _messages = new LongAdder();
+        private final Histogram _wait = new Histogram();
+        private volatile int _weight = 1;
+        // Only accessed by the drain task.
+        private long _deficit;
+    }
+
+    private class Delivery implements Runnable {
+        private final ServerSessionImpl _session;
+        private volatile AbstractServerTransport.Scheduler _scheduler;
+        private final long _nanoTime = System.nanoTime();
+
+        private Delivery(ServerSessionImpl session, AbstractServerTransport.Scheduler scheduler) {
+            _session = session;
+            _scheduler = scheduler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                _scheduler.schedule();
+            } catch (Throwable x) {
+                _logger.info("Exception while delivering to session " + _session.getId(), x);
+            }
+            if (!_session.isConnected()) {
+                // A removed session never takes its messages.
+                taken(_session);
+            }
+        }
+    }
+}
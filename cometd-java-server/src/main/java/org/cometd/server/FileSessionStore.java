@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A {@link SessionStore} in a memory mapped file of fixed size slots, one per session.</p>
+ * <p>A slot is made of a header, with the length of the record, its CRC-32 and the time
+ * it was saved at, followed by the record: the session id and the snapshot. A slot is
+ * marked free while it is written, so that a record torn by a crash is never loaded;
+ * when the file is opened again, the slots with a valid record not older than the max
+ * age are indexed, the others are freed.</p>
+ * <p>The snapshots are in the page cache once saved, which survives the crash of the
+ * process; {@link #flush()} forces them to the disk, which survives the crash of the
+ * host. A file is used by one process at a time.</p>
+ */
+public class FileSessionStore implements SessionStore, Closeable {
+    public static final int DEFAULT_SLOT_SIZE = 4096;
+    public static final int DEFAULT_SLOTS = 16384;
+    public static final long DEFAULT_MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+    private static final int HEADER_SIZE = 16;
+
+    // Concurrent, so that contains() does not take the store lock.
+    private final Map<String, Integer> _index = new ConcurrentHashMap<>();
+    private final FileChannel _channel;
+    private final MappedByteBuffer _buffer;
+    private final int _slotSize;
+    private final int[] _free;
+    private int _freeCount;
+
+    public FileSessionStore(Path file) throws IOException {
+        this(file, DEFAULT_SLOT_SIZE, DEFAULT_SLOTS, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param file     the file, created if it does not exist
+     * @param slotSize the size of a slot, the max size of a snapshot plus its header and session id
+     * @param slots    the max number of sessions
+     * @param maxAge   the max age, in milliseconds, of the snapshots loaded when the file is opened
+     * @throws IOException if the file cannot be opened
+     */
+    public FileSessionStore(Path file, int slotSize, int slots, long maxAge) throws IOException {
+        if ((long)slotSize * slots > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Session store of " + slots + " slots of " + slotSize + " bytes is too large");
+        }
+        _slotSize = slotSize;
+        _free = new int[slots];
+        _channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _buffer = _channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)slotSize * slots);
+        open(slots, System.currentTimeMillis() - maxAge);
+    }
+
+    private void open(int slots, long oldest) {
+        Map<String, Long> savedAt = new HashMap<>();
+        for (int slot = slots - 1; slot >= 0; --slot) {
+            String id = null;
+            int base = slot * _slotSize;
+            byte[] record = record(base);
+            long saved = _buffer.getLong(base + 8);
+            if (record != null && saved >= oldest) {
+                id = new String(record, 2, idLength(record), StandardCharsets.UTF_8);
+                Long previous = savedAt.get(id);
+                if (previous == null || previous < saved) {
+                    Integer replaced = _index.put(id, slot);
+                    savedAt.put(id, saved);
+                    if (replaced != null) {
+                        free(replaced);
+                    }
+                } else {
+                    id = null;
+                }
+            }
+            if (id == null) {
+                free(slot);
+            }
+        }
+    }
+
+    private byte[] record(int base) {
+        int length = _buffer.getInt(base);
+        if (length <= 2 || length > _slotSize - HEADER_SIZE) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        ByteBuffer buffer = _buffer.duplicate();
+        buffer.position(base + HEADER_SIZE);
+        buffer.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int)crc.getValue() != _buffer.getInt(base + 4) || 2 + idLength(record) > length) {
+            return null;
+        }
+        return record;
+    }
+
+    private static int idLength(byte[] record) {
+        return ((record[0] & 0xFF) << 8) | (record[1] & 0xFF);
+    }
+
+    private void free(int slot) {
+        _buffer.putInt(slot * _slotSize, 0);
+        _free[_freeCount++] = slot;
+    }
+
+    @Override
+    public synchronized void save(String sessionId, byte[] snapshot) throws IOException {
+        byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + id.length + snapshot.length;
+        if (length > _slotSize - HEADER_SIZE) {
+            throw new IOException("Snapshot of " + snapshot.length + " bytes does not fit a slot of " + _slotSize + " bytes");
+        }
+        Integer slot = _index.get(sessionId);
+        if (slot == null) {
+            if (_freeCount == 0) {
+                throw new IOException("Session store full, " + _index.size() + " sessions");
+            }
+            slot = _free[--_freeCount];
+        }
+        int base = slot * _slotSize;
+        _buffer.putInt(base, 0);
+        ByteBuffer buffer = _buffer.duplicate();
+        buffer.position(base + HEADER_SIZE);
+        buffer.put((byte)(id.length >>> 8)).put((byte)id.length).put(id).put(snapshot);
+        CRC32 crc = new CRC32();
+        buffer.flip();
+        buffer.position(base + HEADER_SIZE);
+        crc.update(buffer);
+        _buffer.putInt(base + 4, (int)crc.getValue());
+        _buffer.putLong(base + 8, System.currentTimeMillis());
+        _buffer.putInt(base, length);
+        _index.put(sessionId, slot);
+    }
+
+    @Override
+    public synchronized byte[] load(String sessionId) {
+        Integer slot = _index.get(sessionId);
+        if (slot == null) {
+            return null;
+        }
+        byte[] record = record(slot * _slotSize);
+        if (record == null) {
+            return null;
+        }
+        int offset = 2 + idLength(record);
+        byte[] snapshot = new byte[record.length - offset];
+        System.arraycopy(record, offset, snapshot, 0, snapshot.length);
+        return snapshot;
+    }
+
+    @Override
+    public boolean contains(String sessionId) {
+        return _index.containsKey(sessionId);
+    }
+
+    @Override
+    public synchronized void remove(String sessionId) {
+        Integer slot = _index.remove(sessionId);
+        if (slot != null) {
+            free(slot);
+        }
+    }
+
+    @Override
+    public void flush() {
+        _buffer.force();
+    }
+
+    /**
+     * @return the number of sessions stored
+     */
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        _channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[slots=%d,size=%d]", getClass().getSimpleName(), hashCode(), _free.length, size());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Shapes the rate of new handshakes with a token bucket, so that a storm of
+ * reconnecting clients, for example after a node restart, does not starve the
+ * delivery to the sessions already connected.</p>
+ * <p>The bucket refills at {@link #setRate(int) rate} tokens per second up to
+ * {@link #setBurst(int) burst} tokens; it is implemented as a generic cell rate
+ * algorithm, a single compare and set of the next theoretical arrival time.
+ * A rejected handshake is told to handshake again after an interval made of the
+ * time until a token is available plus a random share of the
+ * {@link #setBackoffWindow(long) backoff window}, so that the rejected clients
+ * spread over the window rather than coming back together.</p>
+ */
+public class HandshakeAdmission {
+    private final AtomicLong _arrival = new AtomicLong(System.nanoTime());
+    private final LongAdder _admitted = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+    private volatile int _rate;
+    private volatile int _burst;
+    private volatile long _emissionNanos;
+    private volatile long _toleranceNanos;
+    private volatile long _backoffWindow = 10000;
+
+    /**
+     * @return the handshakes admitted per second, 0 if the rate is not limited
+     */
+    public int getRate() {
+        return _rate;
+    }
+
+    /**
+     * @param rate the handshakes admitted per second, 0 to not limit the rate
+     */
+    public void setRate(int rate) {
+        _rate = Math.max(0, rate);
+        update();
+    }
+
+    /**
+     * @return the handshakes admitted at once after a quiet period
+     */
+    public int getBurst() {
+        return _burst;
+    }
+
+    /**
+     * @param burst the handshakes admitted at once after a quiet period, 0 to use the rate
+     */
+    public void setBurst(int burst) {
+        _burst = Math.max(0, burst);
+        update();
+    }
+
+    public long getBackoffWindow() {
+        return _backoffWindow;
+    }
+
+    /**
+     * @param backoffWindow the window, in milliseconds, over which rejected handshakes are spread
+     */
+    public void setBackoffWindow(long backoffWindow) {
+        _backoffWindow = Math.max(0, backoffWindow);
+    }
+
+    private void update() {
+        int rate = _rate;
+        if (rate > 0) {
+            long emission = TimeUnit.SECONDS.toNanos(1) / rate;
+            int burst = _burst > 0 ? _burst : rate;
+            _toleranceNanos = emission * (burst - 1);
+            _emissionNanos = emission;
+        } else {
+            _emissionNanos = 0;
+        }
+    }
+
+    /**
+     * @return 0 if the handshake is admitted, otherwise the interval in milliseconds
+     * after which the client should handshake again
+     */
+    public long admit() {
+        long emission = _emissionNanos;
+        if (emission == 0) {
+            _admitted.increment();
+            return 0;
+        }
+        long tolerance = _toleranceNanos;
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = _arrival.get();
+            long next = Math.max(arrival, now);
+            long wait = next - now - tolerance;
+            if (wait > 0) {
+                _rejected.increment();
+                long window = _backoffWindow;
+                long jitter = window > 0 ? ThreadLocalRandom.current().nextLong(window) : 0;
+                return TimeUnit.NANOSECONDS.toMillis(wait) + jitter + 1;
+            }
+            if (_arrival.compareAndSet(arrival, next + emission)) {
+                _admitted.increment();
+                return 0;
+            }
+        }
+    }
+
+    public long getAdmitted() {
+        return _admitted.sum();
+    }
+
+    public long getRejected() {
+        return _rejected.sum();
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rate", getRate());
+        result.put("admitted", getAdmitted());
+        result.put("rejected", getRejected());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[rate=%d,burst=%d,admitted=%d,rejected=%d]", getClass().getSimpleName(), hashCode(),
+                getRate(), getBurst(), getAdmitted(), getRejected());
+    }
+}
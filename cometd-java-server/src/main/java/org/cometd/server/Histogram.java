@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A concurrent recorder of non-negative values, in the spirit of HdrHistogram.</p>
+ * <p>Values are counted in log-linear buckets: each power of two is split in
+ * {@value #SUB_BUCKETS} buckets, so that percentiles are reported with a relative
+ * error within 12.5%. Recording is a few atomic increments and never allocates,
+ * except for the buckets, which are allocated at the first record.</p>
+ */
+public class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BITS) * SUB_BUCKETS;
+    private static final AtomicReferenceFieldUpdater<Histogram, AtomicLongArray> BUCKETS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(Histogram.class, AtomicLongArray.class, "_buckets");
+
+    private final LongAdder _sum = new LongAdder();
+    private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+    private volatile AtomicLongArray _buckets;
+
+    /**
+     * @param value the value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets().incrementAndGet(indexOf(value));
+        _sum.add(value);
+        _max.accumulate(value);
+    }
+
+    /**
+     * @param other the histogram whose values are added to this histogram
+     */
+    public void add(Histogram other) {
+        AtomicLongArray values = other._buckets;
+        if (values == null) {
+            return;
+        }
+        AtomicLongArray buckets = buckets();
+        for (int i = 0; i < BUCKETS; ++i) {
+            long count = values.get(i);
+            if (count > 0) {
+                buckets.addAndGet(i, count);
+            }
+        }
+        _sum.add(other._sum.sum());
+        _max.accumulate(other._max.get());
+    }
+
+    private AtomicLongArray buckets() {
+        AtomicLongArray buckets = _buckets;
+        if (buckets == null) {
+            BUCKETS_UPDATER.compareAndSet(this, null, new AtomicLongArray(BUCKETS));
+            buckets = _buckets;
+        }
+        return buckets;
+    }
+
+    public void reset() {
+        _buckets = null;
+        _sum.reset();
+        _max.reset();
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        AtomicLongArray buckets = _buckets;
+        long count = 0;
+        if (buckets != null) {
+            for (int i = 0; i < BUCKETS; ++i) {
+                counts[i] = buckets.get(i);
+                count += counts[i];
+            }
+        }
+        return new Snapshot(counts, count, _sum.sum(), _max.get());
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude >= MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int sub = (int)(value >>> (magnitude - SUB_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (magnitude - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param index the bucket index
+     * @return the highest value counted in the given bucket
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long)(SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x%s", getClass().getSimpleName(), hashCode(), snapshot().toMap());
+    }
+
+    /**
+     * <p>A point in time copy of a {@link Histogram}; concurrent records may be partially visible.</p>
+     */
+    public static class Snapshot {
+        private final long[] _counts;
+        private final long _count;
+        private final long _sum;
+        private final long _max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            _counts = counts;
+            _count = count;
+            _sum = sum;
+            _max = max;
+        }
+
+        public long getCount() {
+            return _count;
+        }
+
+        public long getMax() {
+            return _max;
+        }
+
+        public double getMean() {
+            return _count == 0 ? 0 : (double)_sum / _count;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @return the highest value of the bucket containing the given percentile, capped to the max
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (_count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long)Math.ceil(percentile / 100D * _count));
+            long seen = 0;
+            for (int i = 0; i < _counts.length; ++i) {
+                seen += _counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), _max);
+                }
+            }
+            return _max;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("count", getCount());
+            result.put("mean", getMean());
+            result.put("p50", getValueAtPercentile(50));
+            result.put("p90", getValueAtPercentile(90));
+            result.put("p99", getValueAtPercentile(99));
+            result.put("max", getMax());
+            return result;
+        }
+    }
+}
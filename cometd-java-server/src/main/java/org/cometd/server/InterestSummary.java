@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The channels a node has subscribers to, summarized for its peers as one Bloom
+ * filter per channel prefix, the first segment of the channel: {@code /devices/1}
+ * and {@code /devices/*} are in the filter of {@code /devices}.</p>
+ * <p>A message matches when its channel, or one of its wild channels, might be in the
+ * filter of its prefix; a prefix without subscribers has no filter, so that the
+ * messages of a prefix that a node does not subscribe to never reach it, while the
+ * false positives, that reach a node without subscribers, stay within the prefixes
+ * that it does subscribe to.</p>
+ */
+class InterestSummary {
+    static final InterestSummary EMPTY = new InterestSummary(Collections.emptyMap());
+
+    private final Map<String, BloomFilter> _filters;
+
+    private InterestSummary(Map<String, BloomFilter> filters) {
+        _filters = filters;
+    }
+
+    /**
+     * @param channels          the channels with subscribers, wild or not
+     * @param falsePositiveRate the rate of false positives of each filter
+     * @return the summary of the given channels
+     */
+    static InterestSummary of(Collection<String> channels, double falsePositiveRate) {
+        Map<String, List<String>> byPrefix = new HashMap<>();
+        for (String channel : channels) {
+            byPrefix.computeIfAbsent(prefix(channel), p -> new ArrayList<>()).add(channel);
+        }
+        Map<String, BloomFilter> filters = new HashMap<>(byPrefix.size() * 2);
+        for (Map.Entry<String, List<String>> entry : byPrefix.entrySet()) {
+            List<String> names = entry.getValue();
+            BloomFilter filter = BloomFilter.newInstance(names.size(), falsePositiveRate);
+            for (String name : names) {
+                filter.add(name);
+            }
+            filters.put(entry.getKey(), filter);
+        }
+        return new InterestSummary(filters);
+    }
+
+    static String prefix(String channel) {
+        int slash = channel.indexOf('/', 1);
+        return slash < 0 ? channel : channel.substring(0, slash);
+    }
+
+    boolean isEmpty() {
+        return _filters.isEmpty();
+    }
+
+    /**
+     * @param channel      the channel of a message
+     * @param wildChannels the wild channels that match the channel
+     * @return whether there might be subscribers to the channel
+     */
+    boolean matches(String channel, List<String> wildChannels) {
+        if (mightContain(channel)) {
+            return true;
+        }
+        for (int i = 0, size = wildChannels.size(); i < size; ++i) {
+            if (mightContain(wildChannels.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean mightContain(String channel) {
+        BloomFilter filter = _filters.get(prefix(channel));
+        return filter != null && filter.mightContain(channel);
+    }
+
+    void writeTo(DataOutput output) throws IOException {
+        output.writeInt(_filters.size());
+        for (Map.Entry<String, BloomFilter> entry : _filters.entrySet()) {
+            output.writeUTF(entry.getKey());
+            entry.getValue().writeTo(output);
+        }
+    }
+
+    static InterestSummary readFrom(DataInput input) throws IOException {
+        int size = input.readInt();
+        Map<String, BloomFilter> filters = new HashMap<>(size * 2);
+        for (int i = 0; i < size; ++i) {
+            String prefix = input.readUTF();
+            filters.put(prefix, BloomFilter.readFrom(input));
+        }
+        return new InterestSummary(filters);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x%s", getClass().getSimpleName(), hashCode(), _filters.keySet());
+    }
+
+    static class BloomFilter {
+        private final long[] _words;
+        private final int _hashes;
+
+        private BloomFilter(long[] words, int hashes) {
+            _words = words;
+            _hashes = hashes;
+        }
+
+        static BloomFilter newInstance(int entries, double falsePositiveRate) {
+            double ln2 = Math.log(2);
+            long bits = (long)Math.ceil(-entries * Math.log(falsePositiveRate) / (ln2 * ln2));
+            int words = (int)Math.max(1, Math.min(Integer.MAX_VALUE / 64, (bits + 63) / 64));
+            int hashes = (int)Math.max(1, Math.round((double)words * 64 / entries * ln2));
+            return new BloomFilter(new long[words], hashes);
+        }
+
+        void add(String value) {
+            long bits = _words.length * 64L;
+            long hash = hash(value);
+            int hash1 = (int)hash;
+            int hash2 = (int)(hash >>> 32) | 1;
+            for (int i = 0; i < _hashes; ++i) {
+                long bit = index(hash1 + i * hash2, bits);
+                _words[(int)(bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(String value) {
+            long bits = _words.length * 64L;
+            long hash = hash(value);
+            int hash1 = (int)hash;
+            int hash2 = (int)(hash >>> 32) | 1;
+            for (int i = 0; i < _hashes; ++i) {
+                long bit = index(hash1 + i * hash2, bits);
+                if ((_words[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long index(int hash, long bits) {
+            return (hash & 0xFFFFFFFFL) % bits;
+        }
+
+        // FNV-1a mixed with the MurmurHash3 finalizer: the same on every
+        // node, and spread over 64 bits, unlike String.hashCode().
+        private static long hash(String value) {
+            long hash = 0xCBF29CE484222325L;
+            for (int i = 0, length = value.length(); i < length; ++i) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001B3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xFF51AFD7ED558CCDL;
+            hash ^= hash >>> 33;
+            hash *= 0xC4CEB9FE1A85EC53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+
+        void writeTo(DataOutput output) throws IOException {
+            output.writeInt(_hashes);
+            output.writeInt(_words.length);
+            for (long word : _words) {
+                output.writeLong(word);
+            }
+        }
+
+        static BloomFilter readFrom(DataInput input) throws IOException {
+            int hashes = input.readInt();
+            long[] words = new long[input.readInt()];
+            for (int i = 0; i < words.length; ++i) {
+                words[i] = input.readLong();
+            }
+            return new BloomFilter(words, hashes);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A {@link ClusterBus} between the nodes of the same JVM, a stand-in for a message
+ * broker in tests and in development.</p>
+ * <p>The nodes that share a {@link Hub} form a cluster. Each node receives its payloads
+ * on its own thread, in the order they are sent, as it would from a broker.</p>
+ */
+public class LocalClusterBus implements ClusterBus {
+    private static final Logger _logger = LoggerFactory.getLogger(LocalClusterBus.class);
+
+    private final Hub _hub;
+    private volatile String _node;
+    private volatile ExecutorService _executor;
+    private volatile Receiver _receiver;
+
+    public LocalClusterBus(Hub hub) {
+        _hub = hub;
+    }
+
+    @Override
+    public void join(String node, Receiver receiver) {
+        _node = node;
+        _receiver = receiver;
+        _executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "LocalClusterBus-" + node);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (_hub._nodes.putIfAbsent(node, this) != null) {
+            _executor.shutdown();
+            throw new IllegalStateException("Node " + node + " already joined");
+        }
+    }
+
+    @Override
+    public void broadcast(byte[] payload) {
+        String node = _node;
+        for (Map.Entry<String, LocalClusterBus> entry : _hub._nodes.entrySet()) {
+            if (!entry.getKey().equals(node)) {
+                entry.getValue().receive(node, payload);
+            }
+        }
+    }
+
+    @Override
+    public void send(String node, byte[] payload) {
+        LocalClusterBus bus = _hub._nodes.get(node);
+        if (bus != null) {
+            bus.receive(_node, payload);
+        }
+    }
+
+    private void receive(String node, byte[] payload) {
+        ExecutorService executor = _executor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.execute(() -> _receiver.receive(node, payload));
+        } catch (RejectedExecutionException x) {
+            _logger.debug("Node {} left, dropping payload from {}", _node, node);
+        }
+    }
+
+    @Override
+    public void leave() {
+        String node = _node;
+        if (node != null) {
+            _hub._nodes.remove(node, this);
+        }
+        ExecutorService executor = _executor;
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * <p>The nodes of an in-JVM cluster.</p>
+     */
+    public static class Hub {
+        private final ConcurrentMap<String, LocalClusterBus> _nodes = new ConcurrentHashMap<>();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.cometd.bayeux.server.ServerMessage;
+
+/**
+ * <p>The queue of a session, made of a priority lane and a bulk lane.</p>
+ * <p>Messages are assigned to a lane by their channel, so that the messages of
+ * each channel keep their order; the messages of the priority lane come first
+ * when polling and iterating, so that control messages are not written after
+ * a large backlog of data. A channel that changes lane while it has messages
+ * in the queue keeps the lane of its queued messages, until the queue empties.
+ * The priority lane is allocated with the first priority message.</p>
+ * <p>Like {@link ArrayDeque}, this class is not thread safe.</p>
+ */
+class MessageQueue extends AbstractQueue<ServerMessage> {
+    private final ArrayDeque<ServerMessage> _bulk = new ArrayDeque<>();
+    private final BayeuxServerImpl _bayeux;
+    private ArrayDeque<ServerMessage> _priority;
+    /**
+     * The {@link BayeuxServerImpl#getLaneEpoch() lane epoch} when the queue was last empty.
+     */
+    private long _laneEpoch;
+    /**
+     * Written under the session lock, read without it by {@link #getSize()}.
+     */
+    private volatile int _size;
+
+    MessageQueue(BayeuxServerImpl bayeux) {
+        _bayeux = bayeux;
+    }
+
+    @Override
+    public boolean offer(ServerMessage message) {
+        long epoch = _bayeux.getLaneEpoch();
+        boolean priority = _bayeux.isPriority(message);
+        if (isEmpty()) {
+            _laneEpoch = epoch;
+        } else if (_laneEpoch != epoch) {
+            // A channel changed lane since the oldest message was queued,
+            // the message goes after the queued messages of its channel.
+            String channel = message.getChannel();
+            priority = priority ? !contains(_bulk, channel) : contains(_priority, channel);
+        }
+        if (priority) {
+            if (_priority == null) {
+                _priority = new ArrayDeque<>();
+            }
+            _priority.offer(message);
+        } else {
+            _bulk.offer(message);
+        }
+        _size = size();
+        return true;
+    }
+
+    private static boolean contains(ArrayDeque<ServerMessage> lane, String channel) {
+        if (lane == null || channel == null) {
+            return false;
+        }
+        for (ServerMessage message : lane) {
+            if (channel.equals(message.getChannel())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public ServerMessage poll() {
+        ServerMessage message = _priority == null ? null : _priority.poll();
+        if (message == null) {
+            message = _bulk.poll();
+        }
+        _size = size();
+        return message;
+    }
+
+    @Override
+    public ServerMessage peek() {
+        ServerMessage message = _priority == null ? null : _priority.peek();
+        return message != null ? message : _bulk.peek();
+    }
+
+    @Override
+    public int size() {
+        return (_priority == null ? 0 : _priority.size()) + _bulk.size();
+    }
+
+    /**
+     * @return the size of this queue, possibly stale, without the session lock
+     */
+    int getSize() {
+        return _size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (_priority == null || _priority.isEmpty()) && _bulk.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        if (_priority != null) {
+            _priority.clear();
+        }
+        _bulk.clear();
+        _size = 0;
+    }
+
+    @Override
+    public Iterator<ServerMessage> iterator() {
+        return new Iterator<ServerMessage>() {
+            private final Iterator<ServerMessage> _priorityLane = _priority == null ? Collections.<ServerMessage>emptyIterator() : _priority.iterator();
+            private Iterator<ServerMessage> _lane = _priorityLane;
+            private Iterator<ServerMessage> _last;
+
+            @Override
+            public boolean hasNext() {
+                if (_lane == _priorityLane && !_lane.hasNext()) {
+                    _lane = _bulk.iterator();
+                }
+                return _lane.hasNext();
+            }
+
+            @Override
+            public ServerMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                _last = _lane;
+                return _lane.next();
+            }
+
+            @Override
+            public void remove() {
+                if (_last == null) {
+                    throw new IllegalStateException();
+                }
+                _last.remove();
+                _size = size();
+            }
+        };
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.server.ServerMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Captures the messages received and sent by the transports.</p>
+ * <p>A message is traced when its session or its channel has been switched on,
+ * or when it is picked by sampling; when nothing is switched on the check is a
+ * single volatile read, and messages are serialized only when captured.</p>
+ * <p>Traces are passed to the {@link Listener}, by default logging them to the
+ * {@code org.cometd.server.MessageTracer} logger at INFO level.</p>
+ */
+public class MessageTracer {
+    private static final Logger _logger = LoggerFactory.getLogger(MessageTracer.class);
+
+    public enum Direction {
+        INBOUND, OUTBOUND
+    }
+
+    private final Set<String> _sessions = ConcurrentHashMap.newKeySet();
+    private final Map<String, ChannelId> _channels = new ConcurrentHashMap<>();
+    private final LongAdder _traces = new LongAdder();
+    private volatile int _sampleRate;
+    private volatile boolean _active;
+    private volatile Listener _listener = new LoggingListener();
+
+    /**
+     * @return the one in N messages traced regardless of session and channel, 0 if sampling is disabled
+     */
+    public int getSampleRate() {
+        return _sampleRate;
+    }
+
+    /**
+     * @param sampleRate trace one in {@code sampleRate} messages, 0 to disable sampling
+     */
+    public void setSampleRate(int sampleRate) {
+        _sampleRate = Math.max(0, sampleRate);
+        update();
+    }
+
+    public void traceSession(String sessionId, boolean enabled) {
+        if (enabled) {
+            _sessions.add(sessionId);
+        } else {
+            _sessions.remove(sessionId);
+        }
+        update();
+    }
+
+    /**
+     * @param channel the channel to trace, possibly a wildcard channel such as {@code /measurements/**}
+     * @param enabled whether to trace the channel
+     */
+    public void traceChannel(String channel, boolean enabled) {
+        if (enabled) {
+            _channels.put(channel, new ChannelId(channel));
+        } else {
+            _channels.remove(channel);
+        }
+        update();
+    }
+
+    public Set<String> getTracedSessions() {
+        return _sessions;
+    }
+
+    public Set<String> getTracedChannels() {
+        return _channels.keySet();
+    }
+
+    public void clear() {
+        _sessions.clear();
+        _channels.clear();
+        _sampleRate = 0;
+        update();
+    }
+
+    /**
+     * @return the number of traces captured
+     */
+    public long getTraces() {
+        return _traces.sum();
+    }
+
+    public void setListener(Listener listener) {
+        _listener = listener;
+    }
+
+    private void update() {
+        _active = _sampleRate > 0 || !_sessions.isEmpty() || !_channels.isEmpty();
+    }
+
+    /**
+     * @param sessionId the session id, may be null
+     * @param channel   the message channel, may be null
+     * @return whether a message of the given session and channel is traced
+     */
+    public boolean isTraced(String sessionId, String channel) {
+        if (!_active) {
+            return false;
+        }
+        if (sessionId != null && _sessions.contains(sessionId)) {
+            return true;
+        }
+        if (channel != null && !_channels.isEmpty()) {
+            if (_channels.containsKey(channel)) {
+                return true;
+            }
+            ChannelId channelId = new ChannelId(channel);
+            for (ChannelId traced : _channels.values()) {
+                if (traced.isWild() && traced.matches(channelId)) {
+                    return true;
+                }
+            }
+        }
+        int sampleRate = _sampleRate;
+        return sampleRate > 0 && ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * <p>Traces a message, serializing it only if it is traced.</p>
+     *
+     * @param transport the transport name
+     * @param direction whether the message is received or sent
+     * @param sessionId the session id, may be null
+     * @param message   the message
+     */
+    public void trace(String transport, Direction direction, String sessionId, ServerMessage message) {
+        if (isTraced(sessionId, message.getChannel())) {
+            capture(new Trace(transport, direction, sessionId, message, null));
+        }
+    }
+
+    /**
+     * <p>Traces a message already serialized, without serializing it again.</p>
+     *
+     * @param transport the transport name
+     * @param direction whether the message is received or sent
+     * @param sessionId the session id, may be null
+     * @param message   the message
+     * @param json      the UTF-8 JSON of the message
+     */
+    public void trace(String transport, Direction direction, String sessionId, ServerMessage message, byte[] json) {
+        if (isTraced(sessionId, message.getChannel())) {
+            capture(new Trace(transport, direction, sessionId, message, json));
+        }
+    }
+
+    private void capture(Trace trace) {
+        _traces.increment();
+        try {
+            _listener.onTrace(trace);
+        } catch (Throwable x) {
+            _logger.info("Exception while invoking listener " + _listener, x);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[sampleRate=%d,sessions=%d,channels=%s,traces=%d]",
+                getClass().getSimpleName(), hashCode(), _sampleRate, _sessions.size(), new ArrayList<>(_channels.keySet()), getTraces());
+    }
+
+    /**
+     * <p>A captured message; the JSON is computed lazily, at most once.</p>
+     */
+    public static class Trace {
+        private final long _timestamp = System.currentTimeMillis();
+        private final String _transport;
+        private final Direction _direction;
+        private final String _sessionId;
+        private final ServerMessage _message;
+        private byte[] _bytes;
+        private String _json;
+
+        private Trace(String transport, Direction direction, String sessionId, ServerMessage message, byte[] bytes) {
+            _transport = transport;
+            _direction = direction;
+            _sessionId = sessionId;
+            _message = message;
+            _bytes = bytes;
+        }
+
+        public long getTimestamp() {
+            return _timestamp;
+        }
+
+        public String getTransport() {
+            return _transport;
+        }
+
+        public Direction getDirection() {
+            return _direction;
+        }
+
+        public String getSessionId() {
+            return _sessionId;
+        }
+
+        public String getChannel() {
+            return _message.getChannel();
+        }
+
+        public String getMessageId() {
+            return _message.getId();
+        }
+
+        public String getJSON() {
+            if (_json == null) {
+                _json = _bytes != null ? new String(_bytes, StandardCharsets.UTF_8) : _message.getJSON();
+                _bytes = null;
+            }
+            return _json;
+        }
+    }
+
+    public interface Listener {
+        void onTrace(Trace trace);
+    }
+
+    private static class LoggingListener implements Listener {
+        @Override
+        public void onTrace(Trace trace) {
+            if (_logger.isInfoEnabled()) {
+                _logger.info("direction={} transport={} session={} channel={} id={} json={}",
+                        trace.getDirection(), trace.getTransport(), trace.getSessionId(),
+                        trace.getChannel(), trace.getMessageId(), trace.getJSON());
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.MessageListener;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.SubscriptionInitialPosition;
+import org.apache.pulsar.client.api.SubscriptionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A {@link ClusterBus} over Apache Pulsar.</p>
+ * <p>Each node consumes two topics: the topic shared by all the nodes,
+ * {@code <topicPrefix>-all}, and its own topic, {@code <topicPrefix>-<node>}.
+ * The sending node is carried by the {@value #NODE_PROPERTY} property of the
+ * Pulsar messages.</p>
+ * <p>The subscriptions start at the latest message, since a node that joins only
+ * needs what is published from then on; a prefix of non-persistent topics, such as
+ * {@code non-persistent://public/default/cometd}, avoids storing the messages at all.
+ * The {@link PulsarClient} is owned by the caller, which closes it.</p>
+ * <p>The producer of a topic is created asynchronously, when a node joins or hears of a
+ * peer, so that sending never waits for the broker: the payloads sent meanwhile are kept
+ * and sent once it is created, or dropped if it cannot be.</p>
+ */
+public class PulsarClusterBus implements ClusterBus {
+    public static final String NODE_PROPERTY = "cometd-node";
+    /**
+     * The payloads kept, per topic, while its producer is created; the others are dropped.
+     */
+    static final int MAX_PENDING = 1024;
+
+    private static final Logger _logger = LoggerFactory.getLogger(PulsarClusterBus.class);
+
+    private final ConcurrentMap<String, Sender> _senders = new ConcurrentHashMap<>();
+    private final List<Consumer<byte[]>> _consumers = new ArrayList<>();
+    private final PulsarClient _client;
+    private final String _topicPrefix;
+    private volatile String _node;
+
+    public PulsarClusterBus(PulsarClient client, String topicPrefix) {
+        _client = client;
+        _topicPrefix = topicPrefix;
+    }
+
+    @Override
+    public void join(String node, Receiver receiver) throws PulsarClientException {
+        _node = node;
+        MessageListener<byte[]> listener = (consumer, message) -> {
+            try {
+                String sender = message.getProperty(NODE_PROPERTY);
+                if (sender != null && !sender.equals(node)) {
+                    // The peer is likely answered soon, see ClusterFanout.
+                    sender(topic(sender));
+                    receiver.receive(sender, message.getData());
+                }
+            } catch (Throwable x) {
+                _logger.info("Exception while receiving cluster message " + message.getMessageId(), x);
+            } finally {
+                consumer.acknowledgeAsync(message);
+            }
+        };
+        synchronized (_consumers) {
+            _consumers.add(subscribe(topic("all"), node, listener));
+            _consumers.add(subscribe(topic(node), node, listener));
+        }
+        sender(topic("all"));
+    }
+
+    private Consumer<byte[]> subscribe(String topic, String node, MessageListener<byte[]> listener) throws PulsarClientException {
+        return _client.newConsumer()
+                .topic(topic)
+                .subscriptionName(node)
+                .subscriptionType(SubscriptionType.Exclusive)
+                .subscriptionInitialPosition(SubscriptionInitialPosition.Latest)
+                .messageListener(listener)
+                .subscribe();
+    }
+
+    private String topic(String suffix) {
+        return _topicPrefix + "-" + suffix;
+    }
+
+    @Override
+    public void broadcast(byte[] payload) {
+        sendTo(topic("all"), payload);
+    }
+
+    @Override
+    public void send(String node, byte[] payload) {
+        sendTo(topic(node), payload);
+    }
+
+    private void sendTo(String topic, byte[] payload) {
+        sender(topic).send(payload);
+    }
+
+    private Sender sender(String topic) {
+        Sender sender = _senders.get(topic);
+        if (sender == null) {
+            Sender created = new Sender(topic);
+            sender = _senders.putIfAbsent(topic, created);
+            if (sender == null) {
+                // Outside of the map, which the completion may update.
+                created.create();
+                sender = created;
+            }
+        }
+        return sender;
+    }
+
+    @Override
+    public void leave() {
+        synchronized (_consumers) {
+            for (Consumer<byte[]> consumer : _consumers) {
+                consumer.closeAsync();
+            }
+            _consumers.clear();
+        }
+        for (Sender sender : _senders.values()) {
+            sender.close();
+        }
+        _senders.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[%s]", getClass().getSimpleName(), hashCode(), _topicPrefix);
+    }
+
+    /**
+     * <p>The producer of a topic, created asynchronously so that no send waits for the broker:
+     * the payloads sent until it is created are kept, up to {@link #MAX_PENDING}, and sent
+     * in order once it is; they are dropped if it cannot be created.</p>
+     */
+    private class Sender {
+        private final String _topic;
+        private Producer<byte[]> _producer;
+        private List<byte[]> _pending = new ArrayList<>();
+        private boolean _closed;
+
+        private Sender(String topic) {
+            _topic = topic;
+        }
+
+        private void create() {
+            _client.newProducer().topic(_topic).createAsync().whenComplete(this::created);
+        }
+
+        private void created(Producer<byte[]> producer, Throwable failure) {
+            if (failure != null) {
+                _logger.info("Could not create cluster producer for " + _topic, failure);
+                synchronized (this) {
+                    _pending = null;
+                }
+                // Created again on the next send.
+                _senders.remove(_topic, this);
+                return;
+            }
+            synchronized (this) {
+                if (!_closed) {
+                    _producer = producer;
+                    // Sent under the lock, before the concurrent sends waiting for it.
+                    for (byte[] payload : _pending) {
+                        send(producer, payload);
+                    }
+                    _pending = null;
+                    return;
+                }
+            }
+            producer.closeAsync();
+        }
+
+        private void send(byte[] payload) {
+            Producer<byte[]> producer;
+            synchronized (this) {
+                if (_pending != null) {
+                    if (_pending.size() < MAX_PENDING) {
+                        _pending.add(payload);
+                    } else {
+                        _logger.debug("Dropped cluster message to {}, producer not created yet", _topic);
+                    }
+                    return;
+                }
+                producer = _producer;
+            }
+            if (producer != null) {
+                send(producer, payload);
+            }
+        }
+
+        private void send(Producer<byte[]> producer, byte[] payload) {
+            producer.newMessage()
+                    .property(NODE_PROPERTY, _node)
+                    .value(payload)
+                    .sendAsync()
+                    .whenComplete((id, failure) -> {
+                        if (failure != null) {
+                            _logger.debug("Could not send cluster message to {}", _topic, failure);
+                            // Created again on the next send, in case the producer was closed.
+                            if (_senders.remove(_topic, this)) {
+                                producer.closeAsync();
+                            }
+                        }
+                    });
+        }
+
+        private void close() {
+            Producer<byte[]> producer;
+            synchronized (this) {
+                _closed = true;
+                _pending = null;
+                producer = _producer;
+            }
+            if (producer != null) {
+                producer.closeAsync();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cometd.bayeux.server.ServerMessage;
+
+/**
+ * <p>A bounded ring of the last messages published to a channel, kept as their frozen
+ * JSON, so that a client that subscribes again after a short disconnection receives the
+ * messages it missed, rather than fetching again the whole state.</p>
+ * <p>Each message recorded is numbered by the {@value #EXT_FIELD} field of its
+ * extension, before it is frozen. The numbers are drawn from a sequence shared by all the
+ * rings of the server, which starts from the time the server is created, so that the
+ * numbers seen before a restart of the server are older than the rings, and so that the
+ * numbers of the channels that match a wildcard subscription are comparable. A client that
+ * subscribes presents the last number it has seen in the {@value #EXT_FIELD} field of the
+ * extension of the {@code /meta/subscribe} message, either as a number or as a map from
+ * the subscription to the number; it receives the messages recorded after it, from the
+ * ring of the channel or, for a wildcard subscription, from the rings of the channels it
+ * matches. Messages published while the client subscribes may be received twice, replayed
+ * and live, and are discarded by the client by their number.</p>
+ * <p>The ring keeps at most {@code maxMessages} messages, {@code maxBytes} bytes and
+ * messages younger than {@code maxAge}; the memory it retains is accounted to the
+ * {@link BayeuxMetrics#getReplayBytes() metrics}.</p>
+ */
+class ReplayBuffer {
+    static final String EXT_FIELD = "replay";
+    // The estimated size of the array, the timestamp and the number of a message.
+    private static final int MESSAGE_OVERHEAD = 32;
+
+    private final BayeuxMetrics _metrics;
+    private final AtomicLong _sequence;
+    private final long[] _numbers;
+    private final long[] _timestamps;
+    private final byte[][] _messages;
+    private final long _maxBytes;
+    private final long _maxAge;
+    // The number of the last message evicted, or not recorded since older than the ring.
+    private long _evicted;
+    private int _head;
+    private int _size;
+    private long _bytes;
+
+    /**
+     * @param metrics     the metrics the retained memory is accounted to
+     * @param sequence    the sequence the messages are numbered from
+     * @param maxMessages the max number of messages retained
+     * @param maxBytes    the max memory retained, in bytes, 0 for no limit
+     * @param maxAge      the max age of the messages retained, in milliseconds, 0 for no limit
+     */
+    ReplayBuffer(BayeuxMetrics metrics, AtomicLong sequence, int maxMessages, long maxBytes, long maxAge) {
+        _metrics = metrics;
+        _sequence = sequence;
+        _evicted = sequence.get();
+        _numbers = new long[maxMessages];
+        _timestamps = new long[maxMessages];
+        _messages = new byte[maxMessages][];
+        _maxBytes = maxBytes;
+        _maxAge = maxAge;
+    }
+
+    /**
+     * <p>Numbers, freezes and records a message published to the channel.</p>
+     *
+     * @param bayeux  the server that freezes the message
+     * @param mutable the message
+     */
+    synchronized void record(BayeuxServerImpl bayeux, ServerMessage.Mutable mutable) {
+        if (!(mutable instanceof ServerMessageImpl) || ((ServerMessageImpl)mutable).isFrozen()) {
+            return;
+        }
+        long number = _sequence.incrementAndGet();
+        mutable.getExt(true).put(EXT_FIELD, number);
+        bayeux.freeze(mutable);
+        byte[] json = ((ServerMessageImpl)mutable).getJSONBytes();
+        if (json == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (_size == _messages.length) {
+            evict();
+        }
+        int tail = (_head + _size) % _messages.length;
+        _numbers[tail] = number;
+        _timestamps[tail] = now;
+        _messages[tail] = json;
+        ++_size;
+        _bytes += json.length + MESSAGE_OVERHEAD;
+        _metrics.replayBuffered(1, json.length + MESSAGE_OVERHEAD);
+        while (_size > 0 && _maxBytes > 0 && _bytes > _maxBytes) {
+            evict();
+        }
+        expire(now);
+    }
+
+    /**
+     * @param number   the number of the last message seen by the client
+     * @param messages the messages recorded after the given number, by their number
+     * @return whether all the messages after the given number are still recorded
+     */
+    synchronized boolean since(long number, SortedMap<Long, byte[]> messages) {
+        expire(System.currentTimeMillis());
+        for (int i = 0; i < _size; ++i) {
+            int index = (_head + i) % _messages.length;
+            if (_numbers[index] > number) {
+                messages.put(_numbers[index], _messages[index]);
+            }
+        }
+        return number >= _evicted && number <= _sequence.get();
+    }
+
+    /**
+     * <p>Evicts the messages older than the max age.</p>
+     */
+    synchronized void expire(long now) {
+        while (_size > 0 && _maxAge > 0 && now - _timestamps[_head] > _maxAge) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        int length = _messages[_head].length + MESSAGE_OVERHEAD;
+        _evicted = _numbers[_head];
+        _messages[_head] = null;
+        _head = (_head + 1) % _messages.length;
+        --_size;
+        _bytes -= length;
+        _metrics.replayBuffered(-1, -length);
+    }
+
+    /**
+     * <p>Evicts all the messages, when the channel is removed.</p>
+     */
+    synchronized void clear() {
+        while (_size > 0) {
+            evict();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return _size == 0;
+    }
+
+    synchronized int size() {
+        return _size;
+    }
+
+    synchronized long getBytes() {
+        return _bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s@%x[%d/%d,%dB]", getClass().getSimpleName(), hashCode(), _size, _messages.length, _bytes);
+    }
+}
@@ -48,6 +48,8 @@ public class ServerChannelImpl implements ServerChannel, Dumpable {
     private boolean _lazy;
     private long _lazyTimeout = -1;
     private boolean _persistent;
+    private volatile boolean _priority;
+    private volatile ReplayBuffer _replay;
 
     protected ServerChannelImpl(BayeuxServerImpl bayeux, ChannelId id) {
         _bayeux = bayeux;
@@ -232,6 +234,70 @@ public class ServerChannelImpl implements ServerChannel, Dumpable {
         setLazy(lazyTimeout > 0);
     }
 
+    /**
+     * @return whether the messages of this channel are queued to sessions ahead of the other messages
+     */
+    public boolean isPriority() {
+        return _priority;
+    }
+
+    /**
+     * <p>Marks this channel as a priority channel: its messages are queued to sessions in a
+     * priority lane and written before the messages of the other channels, while messages
+     * of the same channel keep their order.</p>
+     *
+     * @param priority whether this channel is a priority channel
+     */
+    public void setPriority(boolean priority) {
+        if (_priority != priority) {
+            _priority = priority;
+            _bayeux.priorityChanged(priority);
+        }
+    }
+
+    /**
+     * @return whether the last messages of this channel are kept to be replayed
+     */
+    public boolean isReplay() {
+        return _replay != null;
+    }
+
+    /**
+     * <p>Keeps the last messages of this channel, to replay them to the clients that
+     * subscribe again after a disconnection, see {@link ReplayBuffer}.</p>
+     *
+     * @param maxMessages the max number of messages kept, 0 to not keep messages
+     * @param maxBytes    the max memory retained by the messages kept, in bytes, 0 for no limit
+     * @param maxAge      the max age of the messages kept, in milliseconds, 0 for no limit
+     */
+    public void setReplay(int maxMessages, long maxBytes, long maxAge) {
+        ReplayBuffer previous = _replay;
+        _replay = maxMessages > 0 ? new ReplayBuffer(_bayeux.getMetrics(), _bayeux.getReplaySequence(), maxMessages, maxBytes, maxAge) : null;
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    ReplayBuffer getReplayBuffer() {
+        return _replay;
+    }
+
+    /**
+     * @return the number of messages kept to be replayed
+     */
+    public int getReplayMessages() {
+        ReplayBuffer replay = _replay;
+        return replay == null ? 0 : replay.size();
+    }
+
+    /**
+     * @return the memory retained by the messages kept to be replayed, in bytes
+     */
+    public long getReplayBytes() {
+        ReplayBuffer replay = _replay;
+        return replay == null ? 0 : replay.getBytes();
+    }
+
     public void setPersistent(boolean persistent) {
         resetSweeperPasses();
         _persistent = persistent;
@@ -333,6 +399,15 @@ public class ServerChannelImpl implements ServerChannel, Dumpable {
             return;
         }
 
+        // Kept while it has messages to replay to the subscribers that come back.
+        ReplayBuffer replay = _replay;
+        if (replay != null) {
+            replay.expire(System.currentTimeMillis());
+            if (!replay.isEmpty()) {
+                return;
+            }
+        }
+
         if (!_listeners.isEmpty()) {
             for (ServerChannelListener listener : _listeners) {
                 if (!(listener instanceof ServerChannelListener.Weak)) {
@@ -354,6 +429,10 @@ public class ServerChannelImpl implements ServerChannel, Dumpable {
                 ((ServerSessionImpl)subscriber).unsubscribedFrom(this);
             }
             _subscribers.clear();
+            ReplayBuffer replay = _replay;
+            if (replay != null) {
+                replay.clear();
+            }
         }
 
         _listeners.clear();
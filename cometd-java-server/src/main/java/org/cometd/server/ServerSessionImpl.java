@@ -32,8 +32,10 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import static org.cometd.server.SessionState.*;
 
@@ -43,17 +45,32 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     private static final AtomicLong _idCount = new AtomicLong();
 
     private static final Logger _logger = LoggerFactory.getLogger(ServerSession.class);
+    private static final AtomicIntegerFieldUpdater<ServerSessionImpl> UNSAVED = AtomicIntegerFieldUpdater.newUpdater(ServerSessionImpl.class, "_unsaved");
+    private static final AtomicLongFieldUpdater<ServerSessionImpl> LIVENESS = AtomicLongFieldUpdater.newUpdater(ServerSessionImpl.class, "_liveness");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ServerSessionImpl, List> LISTENERS = AtomicReferenceFieldUpdater.newUpdater(ServerSessionImpl.class, List.class, "_listeners");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ServerSessionImpl, List> EXTENSIONS = AtomicReferenceFieldUpdater.newUpdater(ServerSessionImpl.class, List.class, "_extensions");
+    private static final AtomicReferenceFieldUpdater<ServerSessionImpl, AttributesMap> ATTRIBUTES = AtomicReferenceFieldUpdater.newUpdater(ServerSessionImpl.class, AttributesMap.class, "_attributes");
+    private static final SessionState[] STATES = SessionState.values();
+    private static final int STATE_SHIFT = 61;
+    private static final long HELD = 1L << 60;
+    private static final long TIMESTAMP_MASK = HELD - 1;
     private final BayeuxServerImpl _bayeux;
     private final String _id;
-    private final List<ServerSessionListener> _listeners = new CopyOnWriteArrayList<>();
-    private final List<Extension> _extensions = new CopyOnWriteArrayList<>();
-    private final Queue<ServerMessage> _queue = new ArrayDeque<>();
+    /**
+     * The listeners, the extensions and the attributes are allocated when first added,
+     * since most remote sessions have none, and many sessions are mostly idle.
+     */
+    private volatile List<ServerSessionListener> _listeners = Collections.emptyList();
+    private volatile List<Extension> _extensions = Collections.emptyList();
+    private volatile AttributesMap _attributes;
+    private final MessageQueue _queue;
     private final LocalSessionImpl _localSession;
-    private final AttributesMap _attributes = new AttributesMap();
-    private final AtomicReference<SessionState> _sessionState = new AtomicReference<>(UNINITILIZED);
     private final Map<ServerChannelImpl, Boolean> _subscribedTo = new ConcurrentHashMap<>();
     private final LazyTask _lazyTask = new LazyTask();
     private volatile Scheduler _scheduler;
+    private volatile BayeuxMetrics.TransportMetrics _transportMetrics;
     private ServerTransport _advisedTransport;
     private int _maxQueue = -1;
     private long _transientTimeout = -1;
@@ -66,8 +83,23 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     private boolean _metaConnectDelivery;
     private int _batch;
     private String _userAgent;
-    private long _connectTimestamp = -1;
-    private long _intervalTimestamp;
+    private volatile long _connectTimestamp = -1;
+    /**
+     * The bytes of the frame being written to the connection of the session, and since when.
+     */
+    private volatile long _pendingBytes;
+    private volatile long _writeNanos;
+    /**
+     * The session state, whether a /meta/connect is held and either the time it was held
+     * since or the time the session expires at, packed so that they change atomically
+     * and so that the sweeper reads them without taking the session lock.
+     */
+    private volatile long _liveness = HELD;
+    /**
+     * Whether the session changed since its last snapshot, see {@link SessionWriteBehind}.
+     */
+    private volatile int _unsaved;
+    private long _enqueueNanos;
     private boolean _nonLazyMessages;
     private boolean _broadcastToPublisher;
     private long _inactiveInterval = -1;
@@ -78,9 +110,32 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     }
 
     protected ServerSessionImpl(BayeuxServerImpl bayeux, LocalSessionImpl localSession, String idHint) {
+        this(newId(bayeux, idHint), bayeux, localSession);
+    }
+
+    /**
+     * <p>Creates a session with the given id, adopted from a {@link SessionStore}.</p>
+     */
+    ServerSessionImpl(String id, BayeuxServerImpl bayeux, LocalSessionImpl localSession) {
         _bayeux = bayeux;
+        _queue = new MessageQueue(bayeux);
         _localSession = localSession;
         _creationTime = System.currentTimeMillis();
+        _id = id;
+
+        ServerTransport transport = _bayeux.getCurrentTransport();
+        if (transport != null) {
+            _maxInterval = transport.getMaxInterval();
+            _liveness = liveness(UNINITILIZED, false, System.currentTimeMillis() + transport.getMaxInterval());
+        }
+
+        _broadcastToPublisher = _bayeux.isBroadcastToPublisher();
+        if (localSession != null) {
+            _transportMetrics = _bayeux.getMetrics().transport(BayeuxMetrics.LOCAL_TRANSPORT);
+        }
+    }
+
+    private static String newId(BayeuxServerImpl bayeux, String idHint) {
         StringBuilder id = new StringBuilder(30);
 
         int len = 20;
@@ -92,20 +147,23 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
         int index = id.length();
 
         while (id.length() < len) {
-            id.append(Long.toString(_bayeux.randomLong(), 36));
+            id.append(Long.toString(bayeux.randomLong(), 36));
         }
 
         id.insert(index, Long.toString(_idCount.incrementAndGet(), 36));
 
-        _id = id.toString();
+        return id.toString();
+    }
 
-        ServerTransport transport = _bayeux.getCurrentTransport();
-        if (transport != null) {
-            _maxInterval = transport.getMaxInterval();
-            _intervalTimestamp = System.currentTimeMillis() + transport.getMaxInterval();
-        }
+    /**
+     * @return true if the session was saved and is now unsaved
+     */
+    boolean markUnsaved() {
+        return UNSAVED.compareAndSet(this, 0, 1);
+    }
 
-        _broadcastToPublisher = _bayeux.isBroadcastToPublisher();
+    void markSaved() {
+        _unsaved = 0;
     }
 
     public long getCreationTime() {
@@ -131,19 +189,47 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
             return;
         }
         _logger.trace("try to sweep session {}", getId());
-        synchronized (getLock()) {
-            if (_intervalTimestamp == 0) {
-                if (_maxServerInterval > 0 && now > _connectTimestamp + _maxServerInterval) {
-                    _logger.info("Emergency sweeping session {}", this);
-                    cancelSchedule();
-                    timeout();
-                }
-            } else if (now > _intervalTimestamp) {
-                _logger.debug("sweeping session {}", this);
-                cancelSchedule();
-                timeout();
-            }
+        long liveness = _liveness;
+        if (!isExpired(liveness, now)) {
+            return;
+        }
+        SessionState state = stateOf(liveness);
+        if (state == DISCONNECTED || state == TIMEOUTED) {
+            return;
+        }
+        // A /meta/connect changes the liveness, so the session
+        // is timed out only if it is still the expired one.
+        if (!LIVENESS.compareAndSet(this, liveness, liveness(TIMEOUTED, isHeld(liveness), liveness))) {
+            return;
+        }
+        _bayeux.sessionStateChanged(state, TIMEOUTED);
+        if (isHeld(liveness)) {
+            _logger.info("Emergency sweeping session {}", this);
+        } else {
+            _logger.debug("sweeping session {}", this);
+        }
+        cancelSchedule();
+        timeout();
+    }
+
+    private boolean isExpired(long liveness, long now) {
+        long timestamp = liveness & TIMESTAMP_MASK;
+        if (isHeld(liveness)) {
+            return _maxServerInterval > 0 && now > timestamp + _maxServerInterval;
         }
+        return now > timestamp;
+    }
+
+    private static long liveness(SessionState state, boolean held, long timestamp) {
+        return ((long)state.ordinal() << STATE_SHIFT) | (held ? HELD : 0) | (timestamp & TIMESTAMP_MASK);
+    }
+
+    private static SessionState stateOf(long liveness) {
+        return STATES[(int)(liveness >>> STATE_SHIFT)];
+    }
+
+    private static boolean isHeld(long liveness) {
+        return (liveness & HELD) != 0;
     }
 
     public Set<ServerChannel> getSubscriptions() {
@@ -151,7 +237,12 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     }
 
     public void addExtension(Extension extension) {
-        _extensions.add(extension);
+        List<Extension> extensions = _extensions;
+        if (!(extensions instanceof CopyOnWriteArrayList)) {
+            EXTENSIONS.compareAndSet(this, extensions, new CopyOnWriteArrayList<>());
+            extensions = _extensions;
+        }
+        extensions.add(extension);
     }
 
     public void removeExtension(Extension extension) {
@@ -243,6 +334,10 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
                         final int maxQueueSize = _maxQueue;
                         if (maxQueueSize > 0 && _queue.size() > maxQueueSize) {
                             if (!notifyQueueMaxed((MaxQueueListener) listener, this, _queue, sender, message)) {
+                                BayeuxMetrics.TransportMetrics metrics = _transportMetrics;
+                                if (metrics != null) {
+                                    metrics.dropped();
+                                }
                                 return null;
                             }
                         }
@@ -302,11 +397,12 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     }
 
     protected void handshake() {
-        _logger.debug("changing session {} state {} -> {}", getId(), _sessionState.get(), INITIALIZED);
-        _sessionState.set(INITIALIZED);
+        _logger.debug("changing session {} state {} -> {}", getId(), getState(), INITIALIZED);
+        changeState(INITIALIZED, -1);
         AbstractServerTransport transport = (AbstractServerTransport) _bayeux.getCurrentTransport();
 
         if (transport != null) {
+            _transportMetrics = _bayeux.getMetrics().transport(transport.getName());
             _maxQueue = transport.getOption(AbstractServerTransport.MAX_QUEUE_OPTION, -1);
             _maxInterval = transport.getMaxInterval();
             _maxServerInterval = transport.getOption("maxServerInterval", -1);
@@ -316,9 +412,21 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     }
 
     protected void connected() {
-        _logger.debug("changing session {} state {} -> {}", getId(), _sessionState.get(), INACTIVE);
-        _sessionState.set(INACTIVE);
+        _logger.debug("changing session {} state {} -> {}", getId(), getState(), INACTIVE);
+        changeState(INACTIVE, -1);
         cancelIntervalTimeout();
+        // The session may connect through a transport other than the one it handshook with.
+        ServerTransport transport = _bayeux.getCurrentTransport();
+        if (transport != null) {
+            _transportMetrics = _bayeux.getMetrics().transport(transport.getName());
+        }
+    }
+
+    /**
+     * @return the metrics of the transport this session last connected through, or null if not yet known
+     */
+    public BayeuxMetrics.TransportMetrics getTransportMetrics() {
+        return _transportMetrics;
     }
 
     public void disconnect() {
@@ -367,7 +475,12 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     }
 
     public void addListener(ServerSessionListener listener) {
-        _listeners.add(listener);
+        List<ServerSessionListener> listeners = _listeners;
+        if (!(listeners instanceof CopyOnWriteArrayList)) {
+            LISTENERS.compareAndSet(this, listeners, new CopyOnWriteArrayList<>());
+            listeners = _listeners;
+        }
+        listeners.add(listener);
     }
 
     public String getId() {
@@ -382,6 +495,13 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
         return _queue;
     }
 
+    /**
+     * @return the number of queued messages, possibly stale, read without the session lock
+     */
+    int getQueueSize() {
+        return _queue.getSize();
+    }
+
     public boolean hasNonLazyMessages() {
         synchronized (getLock()) {
             return _nonLazyMessages;
@@ -393,13 +513,18 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
             _logger.debug("enqueue message {} - {}", getId(), message.getJSON());
         }
         synchronized (getLock()) {
+            if (_queue.isEmpty()) {
+                _enqueueNanos = System.nanoTime();
+            }
             _queue.add(message);
             _nonLazyMessages |= !message.isLazy();
         }
+        _bayeux.sessionChanged(this);
     }
 
     public List<ServerMessage> takeQueue() {
         List<ServerMessage> copy = Collections.emptyList();
+        long wait = 0;
 
         synchronized (getLock()) {
             // Always call listeners, even if the queue is
@@ -417,10 +542,23 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
                 copy = new ArrayList<>(size);
                 copy.addAll(_queue);
                 _queue.clear();
+                wait = System.nanoTime() - _enqueueNanos;
             }
 
             _nonLazyMessages = false;
         }
+
+        if (!copy.isEmpty()) {
+            BayeuxMetrics.TransportMetrics metrics = _transportMetrics;
+            if (metrics != null) {
+                metrics.dequeued(copy.size(), wait);
+            }
+            _bayeux.sessionChanged(this);
+        }
+        DeliveryScheduler deliveryScheduler = _bayeux.getDeliveryScheduler();
+        if (deliveryScheduler != null) {
+            deliveryScheduler.taken(this);
+        }
         return copy;
     }
 
@@ -474,7 +612,12 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
             }
         }
         if (scheduler != null) {
-            scheduler.schedule();
+            DeliveryScheduler deliveryScheduler = _bayeux.getDeliveryScheduler();
+            if (deliveryScheduler != null) {
+                deliveryScheduler.submit(this, scheduler);
+            } else {
+                scheduler.schedule();
+            }
             // If there is a scheduler, then it's a remote session
             // and we should not perform local delivery, so we return
             return;
@@ -528,57 +671,133 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
 
     public void cancelIntervalTimeout() {
         long now = System.currentTimeMillis();
-        synchronized (getLock()) {
-            _connectTimestamp = now;
-            _intervalTimestamp = 0;
-        }
+        _connectTimestamp = now;
+        updateTimestamp(true, now);
     }
 
     public void startIntervalTimeout(long defaultInterval) {
         long interval = calculateInterval(defaultInterval);
         long now = System.currentTimeMillis();
-        synchronized (getLock()) {
-            _intervalTimestamp = now + interval + _maxInterval;
+        updateTimestamp(false, now + interval + _maxInterval);
+    }
+
+    private void updateTimestamp(boolean held, long timestamp) {
+        while (true) {
+            long current = _liveness;
+            if (LIVENESS.compareAndSet(this, current, liveness(stateOf(current), held, timestamp))) {
+                return;
+            }
         }
     }
 
     public SessionState getState() {
-        return _sessionState.get();
+        return stateOf(_liveness);
+    }
+
+    /**
+     * <p>Changes the state of this session, keeping the server session counters in sync.</p>
+     * <p>The removed states are final: a session removed concurrently with, for example,
+     * its activation by a transport stays removed and is no longer counted as connected.</p>
+     *
+     * @param state          the new state
+     * @param expireTimestamp the time the session expires at if the state changes, or -1 to leave it as is
+     * @return the previous state
+     */
+    private SessionState changeState(SessionState state, long expireTimestamp) {
+        while (true) {
+            long liveness = _liveness;
+            SessionState current = stateOf(liveness);
+            if (current == state || current == DISCONNECTED || current == TIMEOUTED) {
+                return current;
+            }
+            long update = expireTimestamp < 0 ?
+                    liveness(state, isHeld(liveness), liveness) :
+                    liveness(state, false, expireTimestamp);
+            if (LIVENESS.compareAndSet(this, liveness, update)) {
+                _bayeux.sessionStateChanged(current, state);
+                return current;
+            }
+        }
     }
 
     protected long getMaxInterval() {
         return _maxInterval;
     }
 
+    /**
+     * <p>Invoked by the transports that write at most one frame at a time to
+     * the connection of the session, when they start writing a frame.</p>
+     *
+     * @param bytes the bytes of the frame
+     */
+    public void writeStarted(long bytes) {
+        _writeNanos = System.nanoTime();
+        _pendingBytes = bytes;
+    }
+
+    /**
+     * <p>Invoked when the frame passed to {@link #writeStarted(long)} has been written, or has failed.</p>
+     */
+    public void writeCompleted() {
+        _pendingBytes = 0;
+    }
+
+    /**
+     * @return the bytes of the frame being written to the connection of the session, or 0
+     */
+    public long getPendingBytes() {
+        return _pendingBytes;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the frame being written was started at,
+     * meaningful only while there are {@link #getPendingBytes() pending bytes}
+     */
+    public long getWriteNanos() {
+        return _writeNanos;
+    }
+
     long getIntervalTimestamp() {
-        return _intervalTimestamp;
+        long liveness = _liveness;
+        return isHeld(liveness) ? 0 : liveness & TIMESTAMP_MASK;
     }
 
     public Object getAttribute(String name) {
-        return _attributes.getAttribute(name);
+        AttributesMap attributes = _attributes;
+        return attributes == null ? null : attributes.getAttribute(name);
     }
 
     public Set<String> getAttributeNames() {
-        return _attributes.getAttributeNameSet();
+        AttributesMap attributes = _attributes;
+        return attributes == null ? Collections.<String>emptySet() : attributes.getAttributeNameSet();
     }
 
     public Object removeAttribute(String name) {
-        Object old = getAttribute(name);
-        _attributes.removeAttribute(name);
+        AttributesMap attributes = _attributes;
+        if (attributes == null) {
+            return null;
+        }
+        Object old = attributes.getAttribute(name);
+        attributes.removeAttribute(name);
         return old;
     }
 
     public void setAttribute(String name, Object value) {
-        _attributes.setAttribute(name, value);
+        AttributesMap attributes = _attributes;
+        if (attributes == null) {
+            ATTRIBUTES.compareAndSet(this, null, new AttributesMap());
+            attributes = _attributes;
+        }
+        attributes.setAttribute(name, value);
     }
 
     public boolean isHandshook() {
-        final SessionState state = _sessionState.get();
+        final SessionState state = getState();
         return state != SessionState.UNINITILIZED;
     }
 
     public boolean isConnected() {
-        return isConnected(_sessionState.get());
+        return isConnected(getState());
     }
 
     private boolean isConnected(final SessionState state) {
@@ -586,7 +805,7 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     }
 
     public boolean isDisconnected() {
-        return _sessionState.get() == SessionState.DISCONNECTED;
+        return getState() == SessionState.DISCONNECTED;
     }
 
     protected boolean extendRecv(ServerMessage.Mutable message) {
@@ -735,9 +954,10 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
      * @return True if the session was connected.
      */
     protected boolean removed(boolean timedOut) {
-        _logger.debug("changing session {} state {} -> {}", getId(), _sessionState.get(), !timedOut ? DISCONNECTED : TIMEOUTED);
-        SessionState state = _sessionState.getAndSet(!timedOut ? DISCONNECTED : TIMEOUTED);
-        if (state != UNINITILIZED) {
+        _logger.debug("changing session {} state {} -> {}", getId(), getState(), !timedOut ? DISCONNECTED : TIMEOUTED);
+        SessionState state = changeState(!timedOut ? DISCONNECTED : TIMEOUTED, -1);
+        // A swept session is already TIMEOUTED when it is removed.
+        if (state != UNINITILIZED && (state != TIMEOUTED || timedOut)) {
             for (ServerChannelImpl channel : _subscribedTo.keySet()) {
                 channel.unsubscribe(this);
             }
@@ -748,6 +968,10 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
                 }
             }
             cancelSchedule();
+            DeliveryScheduler deliveryScheduler = _bayeux.getDeliveryScheduler();
+            if (deliveryScheduler != null) {
+                deliveryScheduler.taken(this);
+            }
         }
         return isConnected(state);
     }
@@ -769,11 +993,17 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     }
 
     protected void subscribedTo(ServerChannelImpl channel) {
-        _subscribedTo.put(channel, Boolean.TRUE);
+        if (_subscribedTo.put(channel, Boolean.TRUE) == null) {
+            _bayeux.subscriptionsChanged(1);
+            _bayeux.sessionChanged(this);
+        }
     }
 
     protected void unsubscribedFrom(ServerChannelImpl channel) {
-        _subscribedTo.remove(channel);
+        if (_subscribedTo.remove(channel) != null) {
+            _bayeux.subscriptionsChanged(-1);
+            _bayeux.sessionChanged(this);
+        }
     }
 
     public long calculateTimeout(long defaultTimeout) {
@@ -827,21 +1057,13 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
     }
 
     public void activate() {
-        _logger.debug("changing session {} state {} -> {}", getId(), _sessionState.get(), ACTIVE);
-        if (_sessionState.getAndSet(ACTIVE) != ACTIVE) {
-            synchronized (_queue) {
-                _intervalTimestamp = System.currentTimeMillis() + _maxInterval;
-            }
-        }
+        _logger.debug("changing session {} state {} -> {}", getId(), getState(), ACTIVE);
+        changeState(ACTIVE, System.currentTimeMillis() + _maxInterval);
     }
 
     public void deactivate() {
-        _logger.debug("changing session {} state {} -> {}", getId(), _sessionState.get(), INACTIVE);
-        if (_sessionState.getAndSet(INACTIVE) != INACTIVE) {
-            synchronized (_queue) {
-                _intervalTimestamp = System.currentTimeMillis() + calculateInterval(0) + _inactiveInterval;
-            }
-        }
+        _logger.debug("changing session {} state {} -> {}", getId(), getState(), INACTIVE);
+        changeState(INACTIVE, System.currentTimeMillis() + calculateInterval(0) + _inactiveInterval);
     }
 
     @Override
@@ -879,38 +1101,20 @@ public class ServerSessionImpl implements ServerSession, Dumpable {
         long connect;
         long expire;
         long now = System.currentTimeMillis();
-        synchronized (getLock()) {
-            connect = now - _connectTimestamp;
-            expire = _intervalTimestamp == 0 ? 0 : _intervalTimestamp - now;
-        }
+        long interval = getIntervalTimestamp();
+        connect = now - _connectTimestamp;
+        expire = interval == 0 ? 0 : interval - now;
         return String.format("%s,connect=%d,expire=%d", _id, connect, expire);
     }
 
-    private class LazyTask implements Runnable {
-        private long _execution;
-        private volatile org.eclipse.jetty.util.thread.Scheduler.Task _task;
-
+    private class LazyTask extends TimingWheel.Timeout {
         @Override
-        public void run() {
+        protected void expired() {
             flush();
-            _execution = 0;
-            _task = null;
-        }
-
-        public boolean cancel() {
-            org.eclipse.jetty.util.thread.Scheduler.Task task = _task;
-            return task != null && task.cancel();
         }
 
         public boolean schedule(long lazyTimeout) {
-            long execution = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lazyTimeout);
-            if (_task == null || execution < _execution) {
-                cancel();
-                _execution = execution;
-                _task = _bayeux.schedule(this, lazyTimeout);
-                return true;
-            }
-            return false;
+            return _bayeux.getLazyWheel().schedule(this, lazyTimeout);
         }
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * <p>The source of the cryptographically strong random values that session ids are made of.</p>
+ * <p>The strategies differ in how they share {@link SecureRandom} instances between the threads
+ * that handshake concurrently:</p>
+ * <ul>
+ * <li>{@value #SHARED} draws every value from a single instance; it is the default, but when
+ * thousands of clients handshake at once the threads contend on the lock of the instance
+ * and, with the platform default NativePRNG, on the lock shared by all its instances;</li>
+ * <li>{@value #PER_THREAD} draws from a SHA1PRNG instance per thread, seeded once per thread,
+ * so that threads never contend;</li>
+ * <li>{@value #BATCHED} draws from the shared instance {@value #BATCH_SIZE} values at a time
+ * into a buffer per thread, so that threads contend once every {@value #BATCH_SIZE} values
+ * without creating an instance per thread.</li>
+ * </ul>
+ */
+public abstract class SessionIdGenerator {
+    public static final String SHARED = "shared";
+    public static final String PER_THREAD = "perThread";
+    public static final String BATCHED = "batched";
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * @param strategy one of {@value #SHARED}, {@value #PER_THREAD} or {@value #BATCHED}
+     * @return a new generator implementing the given strategy
+     */
+    public static SessionIdGenerator newInstance(String strategy) {
+        switch (strategy) {
+            case SHARED:
+                return new Shared();
+            case PER_THREAD:
+                return new PerThread();
+            case BATCHED:
+                return new Batched();
+            default:
+                throw new IllegalArgumentException("Unknown session id generator '" + strategy + "', expected one of " +
+                        SHARED + ", " + PER_THREAD + " or " + BATCHED);
+        }
+    }
+
+    /**
+     * @return a random non-negative long
+     */
+    public abstract long randomLong();
+
+    private static long abs(long value) {
+        return value < 0 ? -value : value;
+    }
+
+    private static class Shared extends SessionIdGenerator {
+        private final SecureRandom _random = new SecureRandom();
+
+        @Override
+        public long randomLong() {
+            return abs(_random.nextLong());
+        }
+
+        @Override
+        public String toString() {
+            return SHARED;
+        }
+    }
+
+    private static class PerThread extends SessionIdGenerator {
+        private final ThreadLocal<SecureRandom> _random = ThreadLocal.withInitial(PerThread::newSecureRandom);
+
+        private static SecureRandom newSecureRandom() {
+            try {
+                // Seeds itself from the system entropy at the first use and then only
+                // synchronizes on its own instance, unlike NativePRNG; it is also much
+                // cheaper per value than DRBG.
+                return SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException x) {
+                return new SecureRandom();
+            }
+        }
+
+        @Override
+        public long randomLong() {
+            return abs(_random.get().nextLong());
+        }
+
+        @Override
+        public String toString() {
+            return PER_THREAD;
+        }
+    }
+
+    private static class Batched extends SessionIdGenerator {
+        private final SecureRandom _random = new SecureRandom();
+        private final ThreadLocal<ByteBuffer> _batch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BATCH_SIZE * Long.BYTES).position(BATCH_SIZE * Long.BYTES));
+
+        @Override
+        public long randomLong() {
+            ByteBuffer batch = _batch.get();
+            if (!batch.hasRemaining()) {
+                _random.nextBytes(batch.array());
+                batch.clear();
+            }
+            return abs(batch.getLong());
+        }
+
+        @Override
+        public String toString() {
+            return BATCHED;
+        }
+    }
+}
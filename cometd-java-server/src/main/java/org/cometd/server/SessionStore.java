@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.io.IOException;
+
+/**
+ * <p>Keeps the snapshots of the sessions of a node, so that another node, or the same
+ * node after a restart, can adopt a session when its client reconnects, without a new
+ * handshake and new subscriptions.</p>
+ * <p>Snapshots are opaque bytes, written behind the changes of the sessions by
+ * {@link SessionWriteBehind}, from a single thread, while they are
+ * loaded from the threads of the clients that reconnect.</p>
+ *
+ * @see FileSessionStore
+ */
+public interface SessionStore {
+    /**
+     * @param sessionId the session id
+     * @param snapshot  the snapshot of the session, replacing the previous one
+     * @throws IOException if the snapshot cannot be saved
+     */
+    void save(String sessionId, byte[] snapshot) throws IOException;
+
+    /**
+     * @param sessionId the session id
+     * @return the last snapshot saved of the session, or null if there is none
+     * @throws IOException if the snapshot cannot be loaded
+     */
+    byte[] load(String sessionId) throws IOException;
+
+    /**
+     * <p>Tells whether there is a snapshot of the session, cheaply enough to be
+     * invoked for each unknown session id presented by a client.</p>
+     *
+     * @param sessionId the session id
+     * @return whether there is a snapshot of the session
+     * @throws IOException if the store cannot be read
+     */
+    default boolean contains(String sessionId) throws IOException {
+        return load(sessionId) != null;
+    }
+
+    /**
+     * @param sessionId the id of the session removed
+     * @throws IOException if the snapshot cannot be removed
+     */
+    void remove(String sessionId) throws IOException;
+
+    /**
+     * <p>Makes the snapshots saved so far durable, after each batch of writes.</p>
+     *
+     * @throws IOException if the snapshots cannot be made durable
+     */
+    default void flush() throws IOException {
+    }
+}
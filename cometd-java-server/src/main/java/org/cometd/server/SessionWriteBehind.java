@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.server.SecurityPolicy;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Writes the snapshots of the sessions to a {@link SessionStore} behind their changes,
+ * and adopts the sessions found in the store when their clients reconnect.</p>
+ * <p>A session that subscribes, unsubscribes, or whose queue changes is marked unsaved;
+ * every {@link #setPeriod(long) period} a writer thread saves the snapshots of the
+ * unsaved sessions, with their id, their subscriptions, their attributes with string,
+ * number or boolean values, and the JSON of their queued messages, or removes them from
+ * the store if they were removed from the server; a removed session cannot be adopted
+ * meanwhile.
+ * The changes of a session within a period are saved once, and a change in the
+ * queue of a session while it is saved marks it unsaved again. If the snapshot
+ * cannot be saved, for example because the queue is too large for the store, the
+ * subscriptions are saved without the queue, or else the previous snapshot is
+ * removed, so that a stale snapshot is never adopted.</p>
+ * <p>A session is adopted when a transport receives a message with an id not known by
+ * the server but found in the store, see {@link BayeuxServerImpl#getOrAdoptSession(String)}:
+ * the session is created with that id and its attributes, and handshaken if the
+ * {@link SecurityPolicy} allows it, with a handshake message without fields other than the
+ * channel and the client id; then it is subscribed to its channels with no further
+ * authorization, since the subscriptions were authorized when the client first subscribed,
+ * and its queue is filled with the messages saved. The
+ * {@link org.cometd.bayeux.server.BayeuxServer.SessionListener}s are notified of the
+ * session with the same handshake message. The attributes changed after the last change
+ * of the subscriptions or of the queue, and the messages published between the last
+ * snapshot and the adoption, are lost.</p>
+ */
+public class SessionWriteBehind {
+    private static final Logger _logger = LoggerFactory.getLogger(SessionWriteBehind.class);
+    private static final byte VERSION = 2;
+
+    private final ConcurrentLinkedQueue<ServerSessionImpl> _unsaved = new ConcurrentLinkedQueue<>();
+    private final LongAdder _saved = new LongAdder();
+    private final LongAdder _removed = new LongAdder();
+    private final LongAdder _adopted = new LongAdder();
+    private final LongAdder _failed = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+    private final ConcurrentMap<String, Object> _adopting = new ConcurrentHashMap<>();
+    private final Set<String> _tombstones = ConcurrentHashMap.newKeySet();
+    private final BayeuxServerImpl _bayeux;
+    private final SessionStore _store;
+    private volatile long _period = 1000;
+    private volatile Thread _writer;
+    private volatile boolean _running;
+
+    public SessionWriteBehind(BayeuxServerImpl bayeux, SessionStore store) {
+        _bayeux = bayeux;
+        _store = store;
+    }
+
+    public SessionStore getStore() {
+        return _store;
+    }
+
+    public long getPeriod() {
+        return _period;
+    }
+
+    /**
+     * @param period the period, in milliseconds, of the writes of the snapshots
+     */
+    public void setPeriod(long period) {
+        _period = period;
+    }
+
+    /**
+     * @return the snapshots saved
+     */
+    public long getSaved() {
+        return _saved.sum();
+    }
+
+    /**
+     * @return the snapshots removed
+     */
+    public long getRemoved() {
+        return _removed.sum();
+    }
+
+    /**
+     * @return the sessions adopted from the store
+     */
+    public long getAdopted() {
+        return _adopted.sum();
+    }
+
+    /**
+     * @return the snapshots that could not be saved, removed or adopted
+     */
+    public long getFailed() {
+        return _failed.sum();
+    }
+
+    /**
+     * @return the adoptions rejected by the {@link SecurityPolicy}
+     */
+    public long getRejected() {
+        return _rejected.sum();
+    }
+
+    void start() {
+        _running = true;
+        Thread writer = new Thread(this::run, "SessionWriteBehind");
+        writer.setDaemon(true);
+        _writer = writer;
+        writer.start();
+    }
+
+    /**
+     * <p>Stops the writer thread, after it has written the sessions changed so far.</p>
+     */
+    void stop() {
+        Thread writer = _writer;
+        if (writer == null) {
+            return;
+        }
+        _running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        _writer = null;
+    }
+
+    void changed(ServerSessionImpl session) {
+        if (session.markUnsaved()) {
+            _unsaved.offer(session);
+        }
+    }
+
+    /**
+     * <p>Forbids the adoption of a removed session until its snapshot is removed from the store.</p>
+     */
+    void removed(ServerSessionImpl session) {
+        _tombstones.add(session.getId());
+        changed(session);
+    }
+
+    private void run() {
+        while (_running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(_period));
+            write();
+        }
+        write();
+    }
+
+    private void write() {
+        boolean written = false;
+        ServerSessionImpl session;
+        while ((session = _unsaved.poll()) != null) {
+            // Before the snapshot, so that the changes made meanwhile are saved next time.
+            session.markSaved();
+            try {
+                if (_bayeux.isSessionAdded(session)) {
+                    save(session);
+                } else {
+                    _store.remove(session.getId());
+                    _tombstones.remove(session.getId());
+                    _removed.increment();
+                }
+                written = true;
+            } catch (Throwable x) {
+                _failed.increment();
+                _logger.debug("Could not write the snapshot of session {}", session.getId(), x);
+            }
+        }
+        if (written) {
+            try {
+                _store.flush();
+            } catch (Throwable x) {
+                _logger.info("Could not flush session store " + _store, x);
+            }
+        }
+    }
+
+    private void save(ServerSessionImpl session) throws IOException {
+        String sessionId = session.getId();
+        try {
+            _store.save(sessionId, snapshot(session, true));
+        } catch (IOException x) {
+            _failed.increment();
+            _logger.debug("Could not save the snapshot of session {}, saving its subscriptions only", sessionId, x);
+            try {
+                _store.save(sessionId, snapshot(session, false));
+            } catch (IOException xx) {
+                _logger.debug("Could not save the subscriptions of session {}, removing its snapshot", sessionId, xx);
+                // The previous snapshot is stale, it would be adopted
+                // with old subscriptions and messages already delivered.
+                _store.remove(sessionId);
+                _removed.increment();
+                return;
+            }
+        }
+        _saved.increment();
+    }
+
+    private byte[] snapshot(ServerSessionImpl session, boolean withQueue) throws IOException {
+        List<ServerMessage> queue = new ArrayList<>();
+        if (withQueue) {
+            synchronized (session.getLock()) {
+                queue.addAll(session.getQueue());
+            }
+        }
+        List<String> channels = new ArrayList<>();
+        for (ServerChannel channel : session.getSubscriptions()) {
+            if (!channel.isMeta()) {
+                channels.add(channel.getId());
+            }
+        }
+        Map<String, Object> attributes = new HashMap<>();
+        for (String name : session.getAttributeNames()) {
+            Object value = session.getAttribute(name);
+            if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                attributes.put(name, value);
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(VERSION);
+        output.writeInt(channels.size());
+        for (String channel : channels) {
+            output.writeUTF(channel);
+        }
+        byte[] values = JSON.toString(attributes).getBytes(StandardCharsets.UTF_8);
+        output.writeInt(values.length);
+        output.write(values);
+        output.writeInt(queue.size());
+        for (ServerMessage message : queue) {
+            String json = message.getJSON();
+            byte[] data = (json == null ? _bayeux.toJSON(message) : json).getBytes(StandardCharsets.UTF_8);
+            output.writeInt(data.length);
+            output.write(data);
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param sessionId the id of a session not known by the server
+     * @return the session adopted from the store, or null if it is not in the store
+     */
+    ServerSessionImpl adopt(String sessionId) {
+        if (_tombstones.contains(sessionId)) {
+            return null;
+        }
+        try {
+            if (!_store.contains(sessionId)) {
+                return null;
+            }
+        } catch (Throwable x) {
+            _failed.increment();
+            _logger.info("Could not look up session " + sessionId, x);
+            return null;
+        }
+        // Only the adoptions of the same session wait for each other.
+        Object lock = _adopting.computeIfAbsent(sessionId, id -> new Object());
+        synchronized (lock) {
+            ServerSessionImpl session = _bayeux.findSession(sessionId);
+            if (session != null || _tombstones.contains(sessionId)) {
+                return session;
+            }
+            try {
+                byte[] snapshot = _store.load(sessionId);
+                if (snapshot == null) {
+                    return null;
+                }
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(snapshot));
+                if (input.readByte() != VERSION) {
+                    _store.remove(sessionId);
+                    return null;
+                }
+                List<String> channels = new ArrayList<>();
+                for (int i = input.readInt(); i > 0; --i) {
+                    channels.add(input.readUTF());
+                }
+                byte[] values = new byte[input.readInt()];
+                input.readFully(values);
+                @SuppressWarnings("unchecked")
+                Map<String, Object> attributes = (Map<String, Object>)JSON.parse(new String(values, StandardCharsets.UTF_8));
+                List<ServerMessage.Mutable> queue = new ArrayList<>();
+                for (int i = input.readInt(); i > 0; --i) {
+                    byte[] data = new byte[input.readInt()];
+                    input.readFully(data);
+                    ServerMessage.Mutable message = _bayeux.parseFrozen(new String(data, StandardCharsets.UTF_8));
+                    if (message != null) {
+                        queue.add(message);
+                    }
+                }
+
+                session = new ServerSessionImpl(sessionId, _bayeux, null);
+                attributes.forEach(session::setAttribute);
+                ServerMessage.Mutable handshake = _bayeux.newMessage();
+                handshake.setChannel(Channel.META_HANDSHAKE);
+                handshake.setClientId(sessionId);
+                SecurityPolicy policy = _bayeux.getSecurityPolicy();
+                if (policy != null && !policy.canHandshake(_bayeux, session, handshake)) {
+                    _rejected.increment();
+                    _logger.debug("Adoption of session {} rejected by {}", sessionId, policy);
+                    return null;
+                }
+                session.handshake();
+                _bayeux.addServerSession(session, handshake);
+                for (String channel : channels) {
+                    _bayeux.createChannelIfAbsent(channel).getReference().subscribe(session);
+                }
+                for (ServerMessage.Mutable message : queue) {
+                    session.addMessage(message);
+                }
+                _adopted.increment();
+                _logger.debug("Adopted session {} with {} subscriptions and {} messages", sessionId, channels.size(), queue.size());
+                return session;
+            } catch (Throwable x) {
+                _failed.increment();
+                _logger.info("Could not adopt session " + sessionId, x);
+                return null;
+            } finally {
+                _adopting.remove(sessionId, lock);
+            }
+        }
+    }
+
+    Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("saved", getSaved());
+        result.put("removed", getRemoved());
+        result.put("adopted", getAdopted());
+        result.put("failed", getFailed());
+        result.put("rejected", getRejected());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[%s]", getClass().getSimpleName(), hashCode(), _store);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A coarse-grained deadline structure that expires {@link Timeout}s in per-tick buckets.</p>
+ * <p>Scheduling a timeout only adds it to the bucket of the tick it is due at, so it costs
+ * O(1) and does not create a {@link Scheduler.Task}; a single task advances the wheel every
+ * tick and expires the timeouts found in the buckets it passes over.</p>
+ * <p>Timeouts never expire early, but may expire up to one tick late.</p>
+ */
+public class TimingWheel extends AbstractLifeCycle implements Runnable {
+    private static final Logger _logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final Scheduler _scheduler;
+    private final long _tickNanos;
+    private final Queue<Timeout>[] _buckets;
+    private final int _mask;
+    private volatile long _origin;
+    private volatile long _processedTick;
+
+    /**
+     * @param scheduler  the scheduler that drives the wheel
+     * @param tickMillis the duration of a tick, in milliseconds
+     * @param size       the number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(Scheduler scheduler, long tickMillis, int size) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Invalid tick " + tickMillis);
+        }
+        _scheduler = scheduler;
+        _tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        _buckets = new Queue[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            _buckets[i] = new ConcurrentLinkedQueue<>();
+        }
+        _mask = capacity - 1;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        _origin = System.nanoTime();
+        _processedTick = 0;
+        _scheduler.schedule(this, TimeUnit.NANOSECONDS.toMillis(_tickNanos), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        for (Queue<Timeout> bucket : _buckets) {
+            Timeout timeout;
+            while ((timeout = bucket.poll()) != null) {
+                // Discards the deadline, so that the timeout can be scheduled after a restart.
+                timeout._deadline.set(0);
+            }
+        }
+        super.doStop();
+    }
+
+    /**
+     * <p>Schedules the given timeout to expire after the given delay, unless it is
+     * already scheduled to expire earlier.</p>
+     *
+     * @param timeout the timeout to schedule
+     * @param delay   the delay in milliseconds
+     * @return whether the timeout has been (re)scheduled
+     */
+    public boolean schedule(Timeout timeout, long delay) {
+        long target = (System.nanoTime() - _origin + TimeUnit.MILLISECONDS.toNanos(delay) + _tickNanos - 1) / _tickNanos;
+        // The bucket after the processed one may be being drained
+        // concurrently, so the earliest safe bucket is the next one.
+        target = Math.max(target, _processedTick + 2);
+        while (true) {
+            long deadline = timeout._deadline.get();
+            if (deadline > 0 && deadline <= target) {
+                return false;
+            }
+            if (timeout._deadline.compareAndSet(deadline, target)) {
+                break;
+            }
+        }
+        while (true) {
+            _buckets[(int)(target & _mask)].offer(timeout);
+            // The wheel may have advanced over the target bucket before the
+            // offer, in which case the timeout moves to the next safe bucket.
+            long processed = _processedTick;
+            if (target > processed + 1) {
+                return true;
+            }
+            long later = processed + 2;
+            if (!timeout._deadline.compareAndSet(target, later)) {
+                // Expired, cancelled or rescheduled meanwhile.
+                return true;
+            }
+            target = later;
+        }
+    }
+
+    /**
+     * @return the number of timeouts held by the buckets, including cancelled ones not yet discarded
+     */
+    public int getSize() {
+        int result = 0;
+        for (Queue<Timeout> bucket : _buckets) {
+            result += bucket.size();
+        }
+        return result;
+    }
+
+    @Override
+    public void run() {
+        if (!isRunning()) {
+            return;
+        }
+        try {
+            long now = (System.nanoTime() - _origin) / _tickNanos;
+            for (long tick = _processedTick + 1; tick <= now; ++tick) {
+                expire(tick);
+                _processedTick = tick;
+            }
+        } catch (Throwable x) {
+            _logger.info("Exception while advancing timing wheel", x);
+        } finally {
+            if (isRunning()) {
+                _scheduler.schedule(this, TimeUnit.NANOSECONDS.toMillis(_tickNanos), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void expire(long tick) {
+        Queue<Timeout> bucket = _buckets[(int)(tick & _mask)];
+        List<Timeout> later = null;
+        Timeout timeout;
+        while ((timeout = bucket.poll()) != null) {
+            long deadline = timeout._deadline.get();
+            if (deadline == 0) {
+                // Cancelled or already expired.
+                continue;
+            }
+            if (deadline > tick) {
+                // Due in a later round of the wheel, or rescheduled
+                // into another bucket that holds its own reference.
+                if ((deadline & _mask) == (tick & _mask)) {
+                    if (later == null) {
+                        later = new ArrayList<>();
+                    }
+                    later.add(timeout);
+                }
+                continue;
+            }
+            if (timeout._deadline.compareAndSet(deadline, 0)) {
+                timeout.fire();
+            }
+        }
+        if (later != null) {
+            bucket.addAll(later);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[tick=%dms,buckets=%d]", getClass().getSimpleName(), hashCode(),
+                TimeUnit.NANOSECONDS.toMillis(_tickNanos), _buckets.length);
+    }
+
+    /**
+     * <p>A deadline that can be scheduled on a {@link TimingWheel}.</p>
+     * <p>A timeout is scheduled at most once at any time: rescheduling it
+     * earlier moves its deadline, and cancelling it discards the deadline.</p>
+     */
+    public abstract static class Timeout {
+        private final AtomicLong _deadline = new AtomicLong();
+
+        /**
+         * @return whether this timeout was scheduled and has been cancelled
+         */
+        public boolean cancel() {
+            return _deadline.getAndSet(0) != 0;
+        }
+
+        /**
+         * @return whether this timeout is scheduled
+         */
+        public boolean isScheduled() {
+            return _deadline.get() != 0;
+        }
+
+        private void fire() {
+            try {
+                expired();
+            } catch (Throwable x) {
+                _logger.info("Exception while expiring " + this, x);
+            }
+        }
+
+        /**
+         * <p>Callback invoked by the wheel thread when the deadline expires.</p>
+         */
+        protected abstract void expired();
+    }
+}
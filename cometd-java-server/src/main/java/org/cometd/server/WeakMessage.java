@@ -17,6 +17,7 @@ import java.text.ParseException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -32,6 +33,7 @@ public class WeakMessage extends ServerMessageImpl {
     private transient byte[] _jsonBytes;
     private transient boolean _local;
     private MessageFormat messageFormat;
+    private transient volatile Encoded _encoded;
     private final long _zipMessageSizeThreshold;
     private final JSONContext.Server jsonContext;
     private final boolean ignoreNullDataField;
@@ -128,6 +130,34 @@ public class WeakMessage extends ServerMessageImpl {
         return messageFormat.getJSONBytes();
     }
 
+    /**
+     * <p>Returns this message encoded by the given encoder, for example compressed for a transport.</p>
+     * <p>The encoding of a frozen message is computed once and shared by all the sessions the
+     * message is delivered to; only the last encoding is retained.</p>
+     *
+     * @param encoding the key of the encoding, equal for equal encoders
+     * @param encoder  the encoder of this message
+     * @param <T>      the type of the encoded message
+     * @return the encoded message
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getEncoded(Object encoding, Function<? super WeakMessage, T> encoder) {
+        if (!isFrozen()) {
+            return encoder.apply(this);
+        }
+        Encoded encoded = _encoded;
+        if (encoded == null || !encoded.encoding.equals(encoding)) {
+            synchronized (getLock()) {
+                encoded = _encoded;
+                if (encoded == null || !encoded.encoding.equals(encoding)) {
+                    encoded = new Encoded(encoding, encoder.apply(this));
+                    _encoded = encoded;
+                }
+            }
+        }
+        return (T) encoded.value;
+    }
+
     public byte[] getRawData() {
         serializeIfNeeded();
         return _jsonBytes;
@@ -271,6 +301,16 @@ public class WeakMessage extends ServerMessageImpl {
         }
     }
 
+    private static class Encoded {
+        private final Object encoding;
+        private final Object value;
+
+        private Encoded(Object encoding, Object value) {
+            this.encoding = encoding;
+            this.value = value;
+        }
+    }
+
     interface MessageFormat {
         String getJSON();
 
@@ -22,6 +22,7 @@ import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
 import org.cometd.server.AbstractServerTransport;
 import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.MessageTracer;
 import org.cometd.server.ServerSessionImpl;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
@@ -112,13 +113,13 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport {
                 }
 
                 Object clientId = message.get("clientId");
-                _logger.debug("recived message from {} >> {}", clientId, message.getJSON());
+                getBayeux().getMessageTracer().trace(getName(), MessageTracer.Direction.INBOUND, clientId instanceof String ? (String)clientId : null, message);
                 if (clientId != null && !(clientId instanceof String)) {
                     throw new IllegalArgumentException("clientId must be a String value");
                 }
 
                 if (session == null && _trustClientSession) {
-                    session = (ServerSessionImpl)getBayeux().getSession(message.getClientId());
+                    session = (ServerSessionImpl)getBayeux().getOrAdoptSession(message.getClientId());
                 }
 
                 if (session != null) {
@@ -246,6 +247,42 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport {
         write(request, response, session, startInterval, messages, replies);
     }
 
+    /**
+     * <p>Gathers the JSON of the given messages, followed by the non-null replies, in a frame.</p>
+     *
+     * @param encoding the response character encoding
+     * @param session  the session the messages are written to
+     * @param messages the queued messages
+     * @param replies  the replies, possibly containing null elements
+     * @return the frame to write
+     */
+    @SuppressWarnings("ForLoopReplaceableByForEach")
+    protected JSONArrayFrame frame(String encoding, ServerSessionImpl session, List<ServerMessage> messages, ServerMessage.Mutable[] replies) {
+        MessageTracer tracer = getBayeux().getMessageTracer();
+        String sessionId = session != null ? session.getId() : null;
+        // The serialized bytes are reused by the trace only if they are UTF-8.
+        boolean utf8 = "UTF-8".equalsIgnoreCase(encoding);
+        JSONArrayFrame frame = new JSONArrayFrame(messages.size() + replies.length);
+        for (int i = 0; i < messages.size(); ++i) {
+            ServerMessage message = messages.get(i);
+            if (_logger.isDebugEnabled()) {
+                _logger.debug("sending message {} >>> {}", sessionId, message);
+            }
+            byte[] json = toJSONBytes(message, encoding);
+            tracer.trace(getName(), MessageTracer.Direction.OUTBOUND, sessionId, message, utf8 ? json : null);
+            frame.add(json);
+        }
+        for (int i = 0; i < replies.length; ++i) {
+            ServerMessage reply = replies[i];
+            if (reply != null) {
+                byte[] json = toJSONBytes(reply, encoding);
+                tracer.trace(getName(), MessageTracer.Direction.OUTBOUND, sessionId, reply, utf8 ? json : null);
+                frame.add(json);
+            }
+        }
+        return frame;
+    }
+
     protected void resume(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, LongPollScheduler scheduler) {
         ServerSessionImpl session = scheduler.getServerSession();
         metaConnectResumed(request, response, asyncContext, session);
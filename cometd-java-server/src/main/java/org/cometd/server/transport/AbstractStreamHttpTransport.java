@@ -17,6 +17,7 @@ package org.cometd.server.transport;
 
 import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.MessageTracer;
 import org.cometd.server.ServerSessionImpl;
 
 import javax.servlet.AsyncContext;
@@ -120,14 +121,26 @@ public abstract class AbstractStreamHttpTransport extends AbstractHttpTransport
             ServletOutputStream output;
             try {
                 output = beginWrite(request, response);
-
-                // Write the messages first.
+                // The messages and the replies are written straight into the
+                // container buffer, which aggregates the small writes.
+                boolean needsComma = false;
                 for (int i = 0; i < messages.size(); ++i) {
-                    ServerMessage message = messages.get(i);
-                    if (i > 0) {
+                    if (needsComma) {
+                        output.write(',');
+                    }
+                    needsComma = true;
+                    writeMessage(response, output, session, messages.get(i));
+                }
+                for (int i = 0; i < replies.length; ++i) {
+                    ServerMessage reply = replies[i];
+                    if (reply == null) {
+                        continue;
+                    }
+                    if (needsComma) {
                         output.write(',');
                     }
-                    writeMessage(response, output, session, message);
+                    needsComma = true;
+                    writeMessage(response, output, session, reply);
                 }
             } finally {
                 // Start the interval timeout after writing the messages
@@ -138,20 +151,6 @@ public abstract class AbstractStreamHttpTransport extends AbstractHttpTransport
                 }
             }
 
-            // Write the replies, if any.
-            boolean needsComma = !messages.isEmpty();
-            for (int i = 0; i < replies.length; ++i) {
-                ServerMessage reply = replies[i];
-                if (reply == null) {
-                    continue;
-                }
-                if (needsComma) {
-                    output.write(',');
-                }
-                needsComma = true;
-                writeMessage(response, output, session, reply);
-            }
-
             endWrite(response, output);
             _logger.debug("messages sended {} >>> {}", (session != null) ? session.getId() : "null", messages);
         } catch (Exception x) {
@@ -168,11 +167,26 @@ public abstract class AbstractStreamHttpTransport extends AbstractHttpTransport
         }
     }
 
+    /**
+     * <p>Writes the JSON of a message to the response.</p>
+     *
+     * @param response the HTTP response
+     * @param output   the stream to write the message to
+     * @param session  the session the message is written to
+     * @param message  the message to write
+     * @throws IOException if the write fails
+     */
     protected void writeMessage(HttpServletResponse response, ServletOutputStream output, ServerSessionImpl session, ServerMessage message) throws IOException {
+        String sessionId = session != null ? session.getId() : null;
         if (_logger.isDebugEnabled()) {
-            _logger.debug("sending message {} >>> {}", (session != null) ? session.getId() : "null", toJSONBytes(message, response.getCharacterEncoding()));
+            _logger.debug("sending message {} >>> {}", sessionId, message);
         }
-        output.write(toJSONBytes(message, response.getCharacterEncoding()));
+        String encoding = response.getCharacterEncoding();
+        byte[] json = toJSONBytes(message, encoding);
+        // The serialized bytes are reused by the trace only if they are UTF-8.
+        boolean utf8 = "UTF-8".equalsIgnoreCase(encoding);
+        getBayeux().getMessageTracer().trace(getName(), MessageTracer.Direction.OUTBOUND, sessionId, message, utf8 ? json : null);
+        output.write(json);
     }
 
     protected abstract ServletOutputStream beginWrite(HttpServletRequest request, HttpServletResponse response) throws IOException;
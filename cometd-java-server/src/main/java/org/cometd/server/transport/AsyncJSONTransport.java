@@ -18,32 +18,60 @@ package org.cometd.server.transport;
 import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.server.BayeuxServerImpl;
 import org.cometd.server.ServerSessionImpl;
-import org.eclipse.jetty.util.Utf8StringBuilder;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class AsyncJSONTransport extends AbstractHttpTransport {
     private static final String PREFIX = "long-polling.json";
     private static final String NAME = "long-polling";
+    public static final String BUFFER_POOL_MIN_CAPACITY_OPTION = "bufferPoolMinCapacity";
+    public static final String BUFFER_POOL_MAX_CAPACITY_OPTION = "bufferPoolMaxCapacity";
+    public static final String BUFFER_POOL_MAX_POOLED_OPTION = "bufferPoolMaxPooled";
+    public static final String BUFFER_POOL_LEAK_DETECTION_OPTION = "bufferPoolLeakDetection";
     private static final int BUFFER_CAPACITY = 512;
-    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
-        @Override
-        protected byte[] initialValue() {
-            return new byte[BUFFER_CAPACITY];
-        }
-    };
+
+    private ByteArrayPool _bufferPool;
 
     public AsyncJSONTransport(BayeuxServerImpl bayeux, Integer heartbeatMinutes) {
         super(bayeux, NAME, heartbeatMinutes);
         setOptionPrefix(PREFIX);
     }
 
+    @Override
+    public void init() {
+        super.init();
+        _bufferPool = new ByteArrayPool(getOption(BUFFER_POOL_MIN_CAPACITY_OPTION, BUFFER_CAPACITY),
+                getOption(BUFFER_POOL_MAX_CAPACITY_OPTION, 64 * 1024),
+                getOption(BUFFER_POOL_MAX_POOLED_OPTION, 64),
+                getOption(BUFFER_POOL_LEAK_DETECTION_OPTION, _logger.isDebugEnabled()));
+    }
+
+    @Override
+    public void destroy() {
+        ByteArrayPool bufferPool = _bufferPool;
+        if (bufferPool != null) {
+            bufferPool.reportLeaks();
+            bufferPool.clear();
+        }
+        super.destroy();
+    }
+
+    /**
+     * @return the pool of the buffers used to read requests and write responses
+     */
+    public ByteArrayPool getBufferPool() {
+        return _bufferPool;
+    }
+
     @Override
     public boolean accept(HttpServletRequest request) {
         return "POST".equalsIgnoreCase(request.getMethod());
@@ -111,17 +139,21 @@ public class AsyncJSONTransport extends AbstractHttpTransport {
             if (_logger.isDebugEnabled()) {
                 _logger.debug("Asynchronous read start from {}", input);
             }
-            byte[] buffer = buffers.get();
-            // First check for isReady() because it has
-            // side effects, and then for isFinished().
-            while (input.isReady() && !input.isFinished()) {
-                int read = input.read(buffer);
-                if (_logger.isDebugEnabled()) {
-                    _logger.debug("Asynchronous read {} bytes from {}", read, input);
-                }
-                if (read >= 0) {
-                    append(buffer, 0, read);
+            byte[] buffer = _bufferPool.acquire(BUFFER_CAPACITY);
+            try {
+                // First check for isReady() because it has
+                // side effects, and then for isFinished().
+                while (input.isReady() && !input.isFinished()) {
+                    int read = input.read(buffer);
+                    if (_logger.isDebugEnabled()) {
+                        _logger.debug("Asynchronous read {} bytes from {}", read, input);
+                    }
+                    if (read >= 0) {
+                        append(buffer, 0, read);
+                    }
                 }
+            } finally {
+                _bufferPool.release(buffer);
             }
             if (!input.isFinished()) {
                 if (_logger.isDebugEnabled()) {
@@ -135,31 +167,46 @@ public class AsyncJSONTransport extends AbstractHttpTransport {
         @Override
         public void onAllDataRead() throws IOException {
             ServletInputStream input = request.getInputStream();
-            String json = finish();
+            ServerMessage.Mutable[] messages;
+            try {
+                messages = finish();
+            } catch (ParseException x) {
+                handleJSONParseException(request, response, getFailedJSON(), x);
+                asyncContext.complete();
+                return;
+            } finally {
+                release();
+            }
             if (_logger.isDebugEnabled()) {
-                _logger.debug("Asynchronous read end from {}: {}", input, json);
+                _logger.debug("Asynchronous read end from {}: {} messages", input, messages == null ? -1 : messages.length);
             }
-            process(json);
+            process(messages);
         }
 
-        protected abstract String finish();
+        protected abstract ServerMessage.Mutable[] finish() throws ParseException;
 
-        protected void process(String json) throws IOException {
+        /**
+         * @return the JSON that could not be parsed, available when {@link #finish()} fails
+         */
+        protected String getFailedJSON() {
+            return null;
+        }
+
+        /**
+         * <p>Releases the buffers held by this reader, once the request has been read or has failed.</p>
+         */
+        protected void release() {
+        }
+
+        protected void process(ServerMessage.Mutable[] messages) throws IOException {
             getBayeux().setCurrentTransport(AsyncJSONTransport.this);
             setCurrentRequest(request);
             try {
-                ServerMessage.Mutable[] messages = parseMessages(json);
-                if (_logger.isDebugEnabled()) {
-                    _logger.debug("Parsed {} messages", messages == null ? -1 : messages.length);
-                }
                 if (messages != null) {
                     processMessages(request, response, messages);
                 } else {
                     asyncContext.complete();
                 }
-            } catch (ParseException x) {
-                handleJSONParseException(request, response, json, x);
-                asyncContext.complete();
             } catch (IOException ioExc) {
                 handleInvalidMessage(response, ioExc);
                 asyncContext.complete();
@@ -171,12 +218,36 @@ public class AsyncJSONTransport extends AbstractHttpTransport {
 
         @Override
         public void onError(Throwable throwable) {
+            release();
             error(request, response, asyncContext, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         }
     }
 
+    /**
+     * <p>Parses the messages while the body is read: each message is parsed as soon
+     * as its bytes are complete, without accumulating the whole body.</p>
+     * <p>The messages are processed once the whole body has been read, since the
+     * replies to a batch are written in a single response.</p>
+     */
     protected class UTF8Reader extends AbstractReader {
-        private final Utf8StringBuilder content = new Utf8StringBuilder(BUFFER_CAPACITY);
+        private final List<ServerMessage.Mutable> messages = new ArrayList<>();
+        private final JSONArraySplitter splitter = new JSONArraySplitter(BUFFER_CAPACITY) {
+            @Override
+            protected void element(String json) throws ParseException {
+                ServerMessage.Mutable[] parsed;
+                try {
+                    parsed = parseMessages(json);
+                } catch (ParseException x) {
+                    failedJSON = json;
+                    throw x;
+                }
+                if (parsed != null) {
+                    Collections.addAll(messages, parsed);
+                }
+            }
+        };
+        private ParseException failure;
+        private String failedJSON;
 
         protected UTF8Reader(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext) {
             super(request, response, asyncContext);
@@ -184,18 +255,50 @@ public class AsyncJSONTransport extends AbstractHttpTransport {
 
         @Override
         protected void append(byte[] buffer, int offset, int length) {
-            content.append(buffer, offset, length);
+            // After a failure the rest of the body is read
+            // and discarded, then the failure is reported.
+            if (failure == null) {
+                try {
+                    splitter.append(buffer, offset, length);
+                } catch (ParseException x) {
+                    failure = x;
+                    if (failedJSON == null) {
+                        // Not an element, report what has been read of the
+                        // element in progress, or else the bytes just read.
+                        failedJSON = splitter.getPending();
+                        if (failedJSON.isEmpty()) {
+                            failedJSON = new String(buffer, offset, length, StandardCharsets.UTF_8);
+                        }
+                    }
+                }
+            }
         }
 
         @Override
-        protected String finish() {
-            return content.toString();
+        protected ServerMessage.Mutable[] finish() throws ParseException {
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                if (!splitter.finish()) {
+                    return null;
+                }
+            } catch (ParseException x) {
+                failedJSON = splitter.getPending();
+                throw x;
+            }
+            return messages.toArray(new ServerMessage.Mutable[messages.size()]);
+        }
+
+        @Override
+        protected String getFailedJSON() {
+            return failedJSON;
         }
     }
 
     protected class CharsetReader extends AbstractReader {
-        private byte[] content = new byte[BUFFER_CAPACITY];
         private final Charset charset;
+        private byte[] content;
         private int count;
 
         public CharsetReader(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, Charset charset) {
@@ -205,29 +308,44 @@ public class AsyncJSONTransport extends AbstractHttpTransport {
 
         @Override
         protected void append(byte[] buffer, int offset, int length) {
-            int size = content.length;
-            int newSize = size;
-            while (newSize - count < length) {
-                newSize <<= 1;
-            }
-
-            if (newSize < 0) {
+            int size = count + length;
+            if (size < 0) {
                 throw new IllegalArgumentException("Message too large");
             }
 
-            if (newSize != size) {
-                byte[] newContent = new byte[newSize];
+            if (content == null) {
+                content = _bufferPool.acquire(Math.max(size, BUFFER_CAPACITY));
+            } else if (size > content.length) {
+                // Above the largest size class the pool hands out
+                // exactly the size asked, so the content is doubled.
+                byte[] newContent = _bufferPool.acquire(Math.max(size, content.length * 2));
                 System.arraycopy(content, 0, newContent, 0, count);
+                _bufferPool.release(content);
                 content = newContent;
             }
 
             System.arraycopy(buffer, offset, content, count, length);
-            count += length;
+            count = size;
         }
 
         @Override
-        protected String finish() {
-            return new String(content, 0, count, charset);
+        protected ServerMessage.Mutable[] finish() throws ParseException {
+            if (content == null) {
+                return parseMessages("");
+            }
+            return parseMessages(new String(content, 0, count, charset));
+        }
+
+        @Override
+        protected String getFailedJSON() {
+            return content == null ? "" : new String(content, 0, count, charset);
+        }
+
+        @Override
+        protected void release() {
+            byte[] buffer = content;
+            content = null;
+            _bufferPool.release(buffer);
         }
     }
 
@@ -239,9 +357,8 @@ public class AsyncJSONTransport extends AbstractHttpTransport {
         private final boolean startInterval;
         private final List<ServerMessage> messages;
         private final ServerMessage.Mutable[] replies;
-        private int messageIndex = -1;
-        private int replyIndex = -1;
-        private boolean needsComma;
+        private boolean written;
+        private byte[] buffer;
 
         protected Writer(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, ServerSessionImpl session, boolean startInterval, List<ServerMessage> messages, ServerMessage.Mutable[] replies) {
             this.request = request;
@@ -257,108 +374,67 @@ public class AsyncJSONTransport extends AbstractHttpTransport {
         public void onWritePossible() throws IOException {
             ServletOutputStream output = response.getOutputStream();
 
-            if (_logger.isDebugEnabled()) {
-                _logger.debug("Messages to write for session {}: {}", session, messages.size());
-            }
-            if (!writeMessages(output)) {
-                return;
-            }
-
-            if (_logger.isDebugEnabled()) {
-                _logger.debug("Replies to write for session {}: {}", session, replies.length);
-            }
-            if (!writeReplies(output)) {
-                return;
+            if (!written) {
+                if (_logger.isDebugEnabled()) {
+                    _logger.debug("Messages to write for session {}: {}, replies: {}", session, messages.size(), replies.length);
+                }
+                written = true;
+                writeFrame(output);
+                // The frame is written asynchronously: wait
+                // for the write to complete before completing.
+                if (!output.isReady()) {
+                    return;
+                }
             }
 
+            release();
             asyncContext.complete();
             _logger.debug("messages sended {} >>> {}", (session != null) ? session.getId() : "null", messages);
         }
 
-        private boolean writeMessages(ServletOutputStream output) throws IOException {
+        private void writeFrame(ServletOutputStream output) throws IOException {
             try {
-                int size = messages.size();
-                while (output.isReady()) {
-                    if (messageIndex < 0) {
-                        messageIndex = 0;
-                        output.write('[');
-                    } else {
-                        if (messageIndex == size) {
-                            // Start the interval timeout after writing the
-                            // messages since they may take time to be written.
-                            startInterval();
-                            return true;
-                        } else {
-                            if (needsComma) {
-                                needsComma = false;
-                                output.write(',');
-                            } else {
-                                ServerMessage message = messages.get(messageIndex);
-                                if (_logger.isDebugEnabled()) {
-                                    _logger.debug("sending message {} >>> {}", (session != null) ? session.getId() : "null", toJSONBytes(message, "UTF-8"));
-                                }
-                                output.write(toJSONBytes(message, "UTF-8"));
-                                ++messageIndex;
-                                needsComma = messageIndex < size;
-                            }
-                        }
-                    }
-                }
-                return false;
+                // Messages and replies are gathered in a single array,
+                // written with a single write instead of one per element.
+                JSONArrayFrame frame = frame("UTF-8", session, messages, replies);
+                buffer = _bufferPool.acquire(frame.getLength() + 2);
+                int length = frame.copyTo(buffer, JSONArrayFrame.ARRAY_BEGIN, JSONArrayFrame.ARRAY_END);
+                output.write(buffer, 0, length);
             } catch (Throwable x) {
+                release();
                 _logger.debug("message delivery failed rollback {} >>> {} ", (session != null) ? session.getId() : "null", messages);
                 // Checking if messages send failed and if yes we putting back messages back to delivery queue
                 for (ServerMessage message : messages) {
                     session.addMessage(message);
                 }
-                // Start the interval timeout also in case of
-                // exceptions to ensure the session can be swept.
-                startInterval();
                 throw x;
+            } finally {
+                // Start the interval timeout after writing the messages
+                // since they may take time to be written, and also in case
+                // of exceptions to ensure the session can be swept.
+                startInterval();
             }
         }
 
+        private void release() {
+            // The buffer may only be released when the asynchronous write is complete.
+            byte[] bytes = buffer;
+            buffer = null;
+            _bufferPool.release(bytes);
+        }
+
         private void startInterval() {
             if (startInterval && session != null && session.isConnected()) {
                 session.startIntervalTimeout(getInterval());
             }
         }
 
-        private boolean writeReplies(ServletOutputStream output) throws IOException {
-            int size = replies.length;
-            while (output.isReady()) {
-                if (replyIndex < 0) {
-                    replyIndex = 0;
-                    needsComma = messageIndex > 0;
-                } else if (replyIndex < size) {
-                    ServerMessage.Mutable reply = replies[replyIndex];
-                    if (reply != null) {
-                        if (needsComma) {
-                            needsComma = false;
-                            output.write(',');
-                        } else {
-                            output.write(toJSONBytes(reply, "UTF-8"));
-                            ++replyIndex;
-                            needsComma = replyIndex < size;
-                        }
-                    } else {
-                        ++replyIndex;
-                    }
-                } else if (replyIndex == size) {
-                    ++replyIndex;
-                    output.write(']');
-                } else {
-                    return true;
-                }
-            }
-            return false;
-        }
-
         @Override
         public void onError(Throwable throwable) {
             // Start the interval timeout also in case of
             // errors to ensure the session can be swept.
             startInterval();
+            release();
             error(request, response, asyncContext, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         }
     }
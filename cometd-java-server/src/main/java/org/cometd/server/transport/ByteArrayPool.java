@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A pool of {@code byte[]} shared by the requests of a transport.</p>
+ * <p>Arrays are pooled in power of two size classes, from {@code minCapacity}
+ * to {@code maxCapacity}; larger requests are allocated and never pooled.
+ * At most {@code maxPooled} arrays are retained per size class.</p>
+ * <p>With leak detection enabled, the pool records where each outstanding
+ * array was acquired, reports arrays released twice or not acquired from
+ * this pool, and {@link #getOutstanding()} reports the arrays not yet
+ * released. Leak detection is meant for debugging since it records a
+ * stack trace for each acquisition.</p>
+ */
+public class ByteArrayPool {
+    private static final Logger _logger = LoggerFactory.getLogger(ByteArrayPool.class);
+
+    private final int _minCapacity;
+    private final int _maxCapacity;
+    private final int _maxPooled;
+    private final Queue<byte[]>[] _pools;
+    private final AtomicInteger[] _sizes;
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _discards = new LongAdder();
+    private final Map<byte[], Throwable> _acquired;
+
+    /**
+     * @param minCapacity   the capacity of the smallest size class, rounded up to a power of two
+     * @param maxCapacity   the capacity of the largest size class
+     * @param maxPooled     the maximum number of arrays retained per size class
+     * @param leakDetection whether to track the outstanding arrays
+     */
+    @SuppressWarnings("unchecked")
+    public ByteArrayPool(int minCapacity, int maxCapacity, int maxPooled, boolean leakDetection) {
+        if (minCapacity <= 0 || maxCapacity < minCapacity) {
+            throw new IllegalArgumentException("Invalid capacities " + minCapacity + "-" + maxCapacity);
+        }
+        int min = Integer.highestOneBit(minCapacity);
+        _minCapacity = min < minCapacity ? min << 1 : min;
+        int classes = 1;
+        while ((long)_minCapacity << (classes - 1) < maxCapacity) {
+            ++classes;
+        }
+        _maxCapacity = _minCapacity << (classes - 1);
+        _maxPooled = maxPooled;
+        _pools = new Queue[classes];
+        _sizes = new AtomicInteger[classes];
+        for (int i = 0; i < classes; ++i) {
+            _pools[i] = new ConcurrentLinkedQueue<>();
+            _sizes[i] = new AtomicInteger();
+        }
+        // byte[] has identity equality, so arrays can be used as keys.
+        _acquired = leakDetection ? new ConcurrentHashMap<byte[], Throwable>() : null;
+    }
+
+    /**
+     * @param capacity the minimum capacity
+     * @return an array of at least the given capacity
+     */
+    public byte[] acquire(int capacity) {
+        byte[] result;
+        int index = indexOf(capacity);
+        if (index < 0) {
+            _misses.increment();
+            result = new byte[capacity];
+        } else {
+            result = _pools[index].poll();
+            if (result == null) {
+                _misses.increment();
+                result = new byte[_minCapacity << index];
+            } else {
+                _sizes[index].decrementAndGet();
+                _hits.increment();
+            }
+        }
+        if (_acquired != null) {
+            _acquired.put(result, new Throwable("Acquired " + result.length + " bytes"));
+        }
+        return result;
+    }
+
+    /**
+     * <p>Returns an array to this pool; the array must not be used after it is released.</p>
+     *
+     * @param buffer the array to release, may be null
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (_acquired != null && _acquired.remove(buffer) == null) {
+            _logger.warn("Released {} bytes not acquired from this pool, or released twice", buffer.length, new Throwable());
+            return;
+        }
+        int length = buffer.length;
+        int index = indexOf(length);
+        if (index < 0 || _minCapacity << index != length) {
+            return;
+        }
+        AtomicInteger size = _sizes[index];
+        if (size.incrementAndGet() > _maxPooled) {
+            size.decrementAndGet();
+            _discards.increment();
+            return;
+        }
+        _pools[index].offer(buffer);
+    }
+
+    private int indexOf(int capacity) {
+        if (capacity > _maxCapacity) {
+            return -1;
+        }
+        if (capacity <= _minCapacity) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((capacity - 1) / _minCapacity);
+    }
+
+    public int getMinCapacity() {
+        return _minCapacity;
+    }
+
+    public int getMaxCapacity() {
+        return _maxCapacity;
+    }
+
+    /**
+     * @return the number of acquisitions served by a pooled array
+     */
+    public long getHits() {
+        return _hits.sum();
+    }
+
+    /**
+     * @return the number of acquisitions that allocated a new array
+     */
+    public long getMisses() {
+        return _misses.sum();
+    }
+
+    /**
+     * @return the number of released arrays dropped because their size class was full
+     */
+    public long getDiscards() {
+        return _discards.sum();
+    }
+
+    /**
+     * @return the number of arrays currently retained by this pool
+     */
+    public int getPooled() {
+        int result = 0;
+        for (AtomicInteger size : _sizes) {
+            result += size.get();
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of acquired arrays not yet released, or -1 if leak detection is disabled
+     */
+    public int getOutstanding() {
+        return _acquired == null ? -1 : _acquired.size();
+    }
+
+    /**
+     * <p>Logs where the arrays not yet released were acquired, if leak detection is enabled.</p>
+     */
+    public void reportLeaks() {
+        if (_acquired != null) {
+            for (Throwable acquisition : _acquired.values()) {
+                _logger.warn("Leaked buffer", acquisition);
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i = 0; i < _pools.length; ++i) {
+            _pools[i].clear();
+            _sizes[i].set(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%x[%d-%d,pooled=%d,hits=%d,misses=%d,discards=%d,outstanding=%d]",
+                getClass().getSimpleName(), hashCode(), _minCapacity, _maxCapacity,
+                getPooled(), getHits(), getMisses(), getDiscards(), getOutstanding());
+    }
+}
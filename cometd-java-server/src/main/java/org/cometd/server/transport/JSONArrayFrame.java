@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>Gathers the already serialized JSON of several messages into a JSON array.</p>
+ * <p>The message bytes are not copied when they are added; the frame is assembled
+ * as a single exactly sized array, so that it can be written with one
+ * {@code write()}.</p>
+ */
+public class JSONArrayFrame {
+    public static final byte[] ARRAY_BEGIN = new byte[]{'['};
+    public static final byte[] ARRAY_END = new byte[]{']'};
+
+    private byte[][] _parts;
+    private int _count;
+    private int _length;
+
+    public JSONArrayFrame(int capacity) {
+        _parts = new byte[Math.max(1, capacity)][];
+    }
+
+    /**
+     * @param json the UTF-8 JSON of a message
+     * @return this frame
+     */
+    public JSONArrayFrame add(byte[] json) {
+        if (_count == _parts.length) {
+            _parts = Arrays.copyOf(_parts, _count << 1);
+        }
+        _parts[_count++] = json;
+        _length += json.length;
+        return this;
+    }
+
+    /**
+     * @return the number of messages in this frame
+     */
+    public int getCount() {
+        return _count;
+    }
+
+    /**
+     * @return the number of bytes of the array elements, including separators but excluding the brackets
+     */
+    public int getLength() {
+        return _length + Math.max(0, _count - 1);
+    }
+
+    /**
+     * @param begin the bytes to write before the elements
+     * @param end   the bytes to write after the elements
+     * @return the whole frame, copied once into an exactly sized array
+     */
+    public byte[] toBytes(byte[] begin, byte[] end) {
+        byte[] result = new byte[begin.length + getLength() + end.length];
+        copyTo(result, begin, end);
+        return result;
+    }
+
+    /**
+     * @param target the array to copy the frame into, at least as large as the frame
+     * @param begin  the bytes to write before the elements
+     * @param end    the bytes to write after the elements
+     * @return the number of bytes copied
+     */
+    public int copyTo(byte[] target, byte[] begin, byte[] end) {
+        System.arraycopy(begin, 0, target, 0, begin.length);
+        int offset = begin.length;
+        for (int i = 0; i < _count; ++i) {
+            if (i > 0) {
+                target[offset++] = ',';
+            }
+            byte[] part = _parts[i];
+            System.arraycopy(part, 0, target, offset, part.length);
+            offset += part.length;
+        }
+        System.arraycopy(end, 0, target, offset, end.length);
+        return offset + end.length;
+    }
+
+    /**
+     * <p>Writes the whole frame with a single {@code write()}.</p>
+     *
+     * @param output the stream to write to
+     * @param begin  the bytes to write before the elements
+     * @param end    the bytes to write after the elements
+     * @throws IOException if the write fails
+     */
+    public void writeTo(OutputStream output, byte[] begin, byte[] end) throws IOException {
+        output.write(toBytes(begin, end));
+    }
+}
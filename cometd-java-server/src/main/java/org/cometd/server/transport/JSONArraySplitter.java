@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.transport;
+
+import org.eclipse.jetty.util.Utf8StringBuilder;
+
+import java.text.ParseException;
+
+/**
+ * <p>Splits a UTF-8 JSON body, either an array of objects or a single object,
+ * into its elements while the bytes arrive.</p>
+ * <p>Only the bytes of the element being read are buffered: each element is
+ * passed to {@link #element(String)} as soon as its closing brace is read,
+ * so the whole body never needs to be held as a single {@code String}.</p>
+ * <p>The splitter only tracks the nesting and the string state needed to find
+ * the element boundaries; the elements themselves are validated by the JSON
+ * parser they are handed to.</p>
+ */
+public abstract class JSONArraySplitter {
+    private static final int BEGIN = 0;
+    private static final int FIRST = 1;
+    private static final int ELEMENT = 2;
+    private static final int NEXT = 3;
+    private static final int END = 4;
+
+    private final Utf8StringBuilder _element;
+    private int _state = BEGIN;
+    private int _base;
+    private int _depth;
+    private boolean _string;
+    private boolean _escape;
+    private boolean _array;
+    private long _position;
+
+    protected JSONArraySplitter(int capacity) {
+        _element = new Utf8StringBuilder(capacity);
+    }
+
+    /**
+     * @param bytes  the bytes read
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @throws ParseException if the bytes are not a JSON array of objects or a JSON object
+     */
+    public void append(byte[] bytes, int offset, int length) throws ParseException {
+        int end = offset + length;
+        int start = _depth > _base ? offset : -1;
+        for (int i = offset; i < end; ++i) {
+            byte b = bytes[i];
+            if (_depth > _base) {
+                if (_string) {
+                    if (_escape) {
+                        _escape = false;
+                    } else if (b == '\\') {
+                        _escape = true;
+                    } else if (b == '"') {
+                        _string = false;
+                    }
+                } else if (b == '"') {
+                    _string = true;
+                } else if (b == '{' || b == '[') {
+                    ++_depth;
+                } else if (b == '}' || b == ']') {
+                    if (--_depth == _base) {
+                        _element.append(bytes, start, i + 1 - start);
+                        start = -1;
+                        String json = _element.toString();
+                        _element.reset();
+                        _state = _array ? NEXT : END;
+                        element(json);
+                    }
+                }
+                continue;
+            }
+
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                continue;
+            }
+
+            switch (_state) {
+                case BEGIN:
+                    if (b == '[') {
+                        _array = true;
+                        _base = 1;
+                        _depth = 1;
+                        _state = FIRST;
+                    } else if (b == '{') {
+                        start = i;
+                        _depth = 1;
+                        _state = ELEMENT;
+                    } else {
+                        throw newParseException(i - offset);
+                    }
+                    break;
+                case FIRST:
+                case ELEMENT:
+                    if (b == '{') {
+                        start = i;
+                        ++_depth;
+                    } else if (b == ']' && _state == FIRST) {
+                        _depth = 0;
+                        _state = END;
+                    } else {
+                        throw newParseException(i - offset);
+                    }
+                    break;
+                case NEXT:
+                    if (b == ',') {
+                        _state = ELEMENT;
+                    } else if (b == ']') {
+                        _depth = 0;
+                        _state = END;
+                    } else {
+                        throw newParseException(i - offset);
+                    }
+                    break;
+                default:
+                    throw newParseException(i - offset);
+            }
+        }
+        if (start >= 0) {
+            _element.append(bytes, start, end - start);
+        }
+        _position += length;
+    }
+
+    /**
+     * @return whether a JSON array or a JSON object has been read
+     * @throws ParseException if the body ended in the middle of the JSON
+     */
+    public boolean finish() throws ParseException {
+        if (_state == BEGIN) {
+            return false;
+        }
+        if (_state != END) {
+            throw new ParseException("Unexpected end of JSON", (int)Math.min(Integer.MAX_VALUE, _position));
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the body is a JSON array rather than a single object
+     */
+    public boolean isArray() {
+        return _array;
+    }
+
+    /**
+     * @return the JSON of the element being read, possibly empty
+     */
+    public String getPending() {
+        return _element.toReplacedString();
+    }
+
+    /**
+     * <p>Invoked for each complete element, in order.</p>
+     *
+     * @param json the JSON of the element
+     * @throws ParseException if the element cannot be parsed
+     */
+    protected abstract void element(String json) throws ParseException;
+
+    private ParseException newParseException(int index) {
+        long position = _position + index;
+        return new ParseException("Unexpected character at " + position, (int)Math.min(Integer.MAX_VALUE, position));
+    }
+}
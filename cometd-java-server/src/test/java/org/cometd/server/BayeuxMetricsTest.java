@@ -0,0 +1,115 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BayeuxMetricsTest {
+
+    private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        bayeux.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        bayeux.stop();
+    }
+
+    @Test
+    public void shouldReportPercentilesWithinBucketPrecision() {
+        //Given
+        Histogram histogram = new Histogram();
+
+        //When
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i);
+        }
+
+        //Then
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(1000);
+        assertThat(snapshot.getMax()).isEqualTo(1000);
+        assertThat(snapshot.getMean()).isEqualTo(500.5);
+        assertThat(snapshot.getValueAtPercentile(50)).isBetween(500L, 563L);
+        assertThat(snapshot.getValueAtPercentile(99)).isBetween(990L, 1000L);
+    }
+
+    @Test
+    public void shouldTrackPublishesAndDeliveriesPerChannelAndTransport() {
+        //Given
+        ServerChannel channel = bayeux.createChannelIfAbsent("/measurements/1").getReference();
+        ServerSessionImpl first = subscriber(channel);
+        ServerSessionImpl second = subscriber(channel);
+
+        //When
+        channel.publish(null, "value");
+        channel.publish(null, "value");
+        first.takeQueue();
+
+        //Then
+        BayeuxMetrics.ChannelMetrics channelMetrics = bayeux.getMetrics().getTopChannel("/measurements/1");
+        assertThat(channelMetrics.getPublishes()).isEqualTo(2);
+        assertThat(channelMetrics.getDeliveries()).isEqualTo(4);
+        assertThat(channelMetrics.getFanOut().snapshot().getMax()).isEqualTo(2);
+        BayeuxMetrics.TransportMetrics transportMetrics = bayeux.getMetrics().transport("long-polling");
+        assertThat(transportMetrics.getSent()).isEqualTo(2);
+        assertThat(transportMetrics.getQueueDepth().snapshot().getMax()).isEqualTo(2);
+
+        //When
+        bayeux.removeServerSession(second, true);
+
+        //Then
+        assertThat(transportMetrics.getExpiredSessions()).isEqualTo(1);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> channels = (Map<String, Object>)bayeux.getMetrics().snapshot().get("channels");
+        assertThat(channels).containsKey("/measurements/1");
+        assertThat(bayeux.metrics()).contains("\"deliveries\":4");
+    }
+
+    @Test
+    public void shouldKeepTopChannelsAndRollUpTheOthersByPrefix() {
+        //Given
+        BayeuxMetrics metrics = bayeux.getMetrics();
+        metrics.setTopChannels(2);
+
+        //When
+        for (int i = 0; i < 10_000; ++i) {
+            metrics.published("/measurements/" + i, 1, 1000);
+            if (i % 10 == 0) {
+                metrics.published("/measurements/hot", 1, 1000);
+                metrics.published("/alarms/hot", 1, 1000);
+            }
+        }
+
+        //Then
+        @SuppressWarnings("unchecked")
+        Map<String, Object> channels = (Map<String, Object>)metrics.snapshot().get("channels");
+        assertThat(channels).containsOnlyKeys("/measurements/hot", "/alarms/hot");
+        assertThat(metrics.getTopChannel("/measurements/hot").getPublishes()).isGreaterThan(900);
+        BayeuxMetrics.ChannelMetrics rollup = metrics.getChannelPrefix("/measurements/**");
+        assertThat(rollup.getPublishes() + metrics.getTopChannel("/measurements/hot").getPublishes()).isEqualTo(11_000);
+        assertThat(metrics.prefixOf("/meta/connect")).isEqualTo("/meta/**");
+        assertThat(metrics.prefixOf("/hello")).isEqualTo("/hello");
+    }
+
+    private ServerSessionImpl subscriber(ServerChannel channel) {
+        bayeux.setCurrentTransport(bayeux.getTransport("long-polling"));
+        try {
+            ServerSessionImpl session = new ServerSessionImpl(bayeux);
+            session.handshake();
+            bayeux.addServerSession(session, bayeux.newMessage());
+            channel.subscribe(session);
+            return session;
+        } finally {
+            bayeux.setCurrentTransport(null);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.openjdk.jmh.annotations.Mode.AverageTime;
+
+/**
+ * Measures the server hot paths: {@link BayeuxServerImpl#handle(ServerSessionImpl, ServerMessage.Mutable)}
+ * for connects, subscribes and broadcast publishes, channel subscription at scale,
+ * {@link ServerSessionImpl#takeQueue()} under contention and {@link BayeuxServerImpl#sweep()}.
+ * Runs with the GC profiler, so that the JSON results also report the allocation rate.
+ */
+@BenchmarkMode(AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 3)
+public class BayeuxServerBenchmark {
+
+    @Test
+    public void bayeuxServerBenchmark() throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .result("target/" + BayeuxServerBenchmark.class.getSimpleName() + "-jmh.json")
+                .resultFormat(ResultFormatType.JSON)
+                .include(BayeuxServerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Benchmark
+    public ServerMessage.Mutable handleConnect(HandlePlan plan) {
+        ServerMessage.Mutable message = plan.newMessage(Channel.META_CONNECT);
+        message.put(ServerMessage.CONNECTION_TYPE_FIELD, "long-polling");
+        return plan.bayeux.handle(plan.session, message);
+    }
+
+    /**
+     * Subscribes and unsubscribes the session, so that every invocation
+     * goes through the whole subscription path of the channel.
+     */
+    @Benchmark
+    public void handleSubscribeAndUnsubscribe(HandlePlan plan, Blackhole blackhole) {
+        ServerMessage.Mutable subscribe = plan.newMessage(Channel.META_SUBSCRIBE);
+        subscribe.put(ServerMessage.SUBSCRIPTION_FIELD, HandlePlan.SUBSCRIBE_CHANNEL);
+        blackhole.consume(plan.bayeux.handle(plan.session, subscribe));
+        ServerMessage.Mutable unsubscribe = plan.newMessage(Channel.META_UNSUBSCRIBE);
+        unsubscribe.put(ServerMessage.SUBSCRIPTION_FIELD, HandlePlan.SUBSCRIBE_CHANNEL);
+        blackhole.consume(plan.bayeux.handle(plan.session, unsubscribe));
+    }
+
+    @Benchmark
+    public ServerMessage.Mutable handlePublish(HandlePlan plan) {
+        ServerMessage.Mutable message = plan.newMessage(HandlePlan.BROADCAST_CHANNEL);
+        message.setData(Collections.singletonMap("value", 1));
+        return plan.bayeux.handle(plan.session, message);
+    }
+
+    /**
+     * Subscribes and unsubscribes one more session to a channel
+     * that already has the given number of subscribers.
+     */
+    @Benchmark
+    public void subscribeAndUnsubscribe(SubscriptionPlan plan, Blackhole blackhole) {
+        blackhole.consume(plan.channel.subscribe(plan.session));
+        blackhole.consume(plan.channel.unsubscribe(plan.session));
+    }
+
+    @Benchmark
+    @Group("takeQueue")
+    @GroupThreads(3)
+    public void takeQueueProducer(QueuePlan plan) {
+        plan.session.addMessage(plan.message);
+    }
+
+    @Benchmark
+    @Group("takeQueue")
+    @GroupThreads(1)
+    public List<ServerMessage> takeQueueConsumer(QueuePlan plan) {
+        return plan.session.takeQueue();
+    }
+
+    /**
+     * Sweeps a server where nothing expires, which is the common case
+     * and measures the cost of visiting every channel and session.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void sweep(SweepPlan plan) {
+        plan.bayeux.sweep();
+    }
+
+    @State(Scope.Benchmark)
+    public static class HandlePlan {
+        private static final String BROADCAST_CHANNEL = "/benchmark/broadcast";
+        private static final String SUBSCRIBE_CHANNEL = "/benchmark/subscribe";
+
+        @Param({"100"})
+        int subscribers;
+
+        private BayeuxServerImpl bayeux;
+        private ServerSessionImpl session;
+        private List<ServerSessionImpl> sessions;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            bayeux = new BayeuxServerImpl();
+            bayeux.start();
+            bayeux.setCurrentTransport(bayeux.getTransport("long-polling"));
+            session = newSession(bayeux);
+            bayeux.addServerSession(session, bayeux.newMessage());
+            ServerChannelImpl channel = (ServerChannelImpl)bayeux.createChannelIfAbsent(BROADCAST_CHANNEL).getReference();
+            sessions = new ArrayList<>(subscribers);
+            for (int i = 0; i < subscribers; ++i) {
+                ServerSessionImpl subscriber = newSession(bayeux);
+                channel.subscribe(subscriber);
+                sessions.add(subscriber);
+            }
+            bayeux.createChannelIfAbsent(SUBSCRIBE_CHANNEL, configurable -> configurable.setPersistent(true));
+        }
+
+        private ServerMessage.Mutable newMessage(String channel) {
+            ServerMessage.Mutable message = bayeux.newMessage();
+            message.setChannel(channel);
+            message.setClientId(session.getId());
+            return message;
+        }
+
+        @TearDown(Level.Iteration)
+        public void drain() {
+            for (ServerSessionImpl subscriber : sessions) {
+                subscriber.takeQueue();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bayeux.stop();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SubscriptionPlan {
+        @Param({"1000", "10000", "100000"})
+        int subscribers;
+
+        private BayeuxServerImpl bayeux;
+        private ServerChannelImpl channel;
+        private ServerSessionImpl session;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            bayeux = new BayeuxServerImpl();
+            bayeux.start();
+            channel = (ServerChannelImpl)bayeux.createChannelIfAbsent("/benchmark/subscription").getReference();
+            for (int i = 0; i < subscribers; ++i) {
+                channel.subscribe(newSession(bayeux));
+            }
+            session = newSession(bayeux);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bayeux.stop();
+        }
+    }
+
+    @State(Scope.Group)
+    public static class QueuePlan {
+        private BayeuxServerImpl bayeux;
+        private ServerSessionImpl session;
+        private ServerMessage.Mutable message;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            bayeux = new BayeuxServerImpl();
+            bayeux.start();
+            session = newSession(bayeux);
+            message = bayeux.newMessage();
+            message.setChannel("/benchmark/queue");
+            message.setData(Collections.singletonMap("value", 1));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bayeux.stop();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SweepPlan {
+        @Param({"10000", "100000"})
+        int sessions;
+
+        @Param({"1000"})
+        int channels;
+
+        private BayeuxServerImpl bayeux;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            bayeux = new BayeuxServerImpl();
+            bayeux.start();
+            List<ServerChannelImpl> created = new ArrayList<>(channels);
+            for (int i = 0; i < channels; ++i) {
+                created.add((ServerChannelImpl)bayeux.createChannelIfAbsent("/benchmark/sweep/" + i).getReference());
+            }
+            for (int i = 0; i < sessions; ++i) {
+                ServerSessionImpl session = newSession(bayeux);
+                bayeux.addServerSession(session, bayeux.newMessage());
+                created.get(i % channels).subscribe(session);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bayeux.stop();
+        }
+    }
+
+    private static ServerSessionImpl newSession(BayeuxServerImpl bayeux) {
+        ServerSessionImpl session = new ServerSessionImpl(bayeux);
+        session.handshake();
+        return session;
+    }
+}
@@ -0,0 +1,88 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClusterFanoutTest {
+
+    private final LocalClusterBus.Hub hub = new LocalClusterBus.Hub();
+    private final List<BayeuxServerImpl> nodes = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (BayeuxServerImpl node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void shouldForwardFrozenMessagesOnlyToNodesWithSubscribers() throws Exception {
+        //Given
+        BayeuxServerImpl publisher = node("a");
+        BayeuxServerImpl devices = node("b");
+        BayeuxServerImpl alarms = node("c");
+        ServerSessionImpl device = session(devices, "/devices/*");
+        session(alarms, "/alarms/1");
+
+        //When
+        ServerChannel channel = publisher.createChannelIfAbsent("/devices/5").getReference();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (device.getQueue().isEmpty() && System.nanoTime() < deadline) {
+            channel.publish(null, Collections.singletonMap("temperature", 21));
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        //Then
+        assertThat(device.getQueue()).isNotEmpty();
+        ServerMessage message = device.getQueue().peek();
+        assertThat(message.getChannel()).isEqualTo("/devices/5");
+        assertThat(message.getJSON()).contains("\"temperature\":21");
+        assertThat(devices.getClusterFanout().getReceived()).isEqualTo(device.getQueue().size());
+        assertThat(publisher.getClusterFanout().getForwarded()).isEqualTo(device.getQueue().size());
+        assertThat(alarms.getClusterFanout().getReceived()).isZero();
+        assertThat(publisher.getClusterFanout().getPeers()).containsExactlyInAnyOrder("b", "c");
+        assertThat(devices.getClusterFanout().getForwarded()).isZero();
+    }
+
+    @Test
+    public void shouldMatchChannelsAndWildcardsByPrefix() {
+        //Given
+        InterestSummary summary = InterestSummary.of(Arrays.asList("/devices/*", "/alarms/1/**"), 0.01);
+
+        //Then
+        assertThat(summary.matches("/devices/5", new ChannelId("/devices/5").getWilds())).isTrue();
+        assertThat(summary.matches("/alarms/1/major/x", new ChannelId("/alarms/1/major/x").getWilds())).isTrue();
+        assertThat(summary.matches("/events/5", new ChannelId("/events/5").getWilds())).isFalse();
+        assertThat(InterestSummary.EMPTY.matches("/devices/5", new ChannelId("/devices/5").getWilds())).isFalse();
+    }
+
+    private BayeuxServerImpl node(String name) throws Exception {
+        BayeuxServerImpl node = new BayeuxServerImpl();
+        node.setOption(BayeuxServerImpl.CLUSTER_BUS_OPTION, new LocalClusterBus(hub));
+        node.setOption(BayeuxServerImpl.CLUSTER_NODE_OPTION, name);
+        node.setOption(BayeuxServerImpl.CLUSTER_SUMMARY_PERIOD_OPTION, 10);
+        node.start();
+        nodes.add(node);
+        return node;
+    }
+
+    private ServerSessionImpl session(BayeuxServerImpl node, String channel) {
+        ServerSessionImpl session = new ServerSessionImpl(node);
+        session.handshake();
+        node.addServerSession(session, node.newMessage());
+        node.createChannelIfAbsent(channel).getReference().subscribe(session);
+        return session;
+    }
+}
@@ -0,0 +1,135 @@
+package org.cometd.server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeliverySchedulerTest {
+
+    private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<String> delivered = new ArrayList<>();
+    private final DeliveryScheduler scheduler = new DeliveryScheduler(tasks::add, "tenant");
+
+    @BeforeEach
+    public void setup() throws Exception {
+        bayeux.start();
+        scheduler.setQuantum(4);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        bayeux.stop();
+    }
+
+    @Test
+    public void shouldInterleaveTenantsWithDeficitRoundRobin() {
+        //Given
+        for (int i = 0; i < 100; ++i) {
+            submit("noisy");
+        }
+        submit("quiet");
+        submit("quiet");
+
+        //When
+        assertThat(tasks).hasSize(1);
+        runTasks();
+
+        //Then
+        assertThat(delivered).hasSize(102);
+        assertThat(delivered.subList(0, 6)).containsExactly("noisy", "noisy", "noisy", "noisy", "quiet", "quiet");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> noisy = (Map<String, Object>)scheduler.snapshot().get("noisy");
+        assertThat(noisy.get("deliveries")).isEqualTo(100L);
+        assertThat(noisy.get("queued")).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldShareDeliveriesByWeight() {
+        //Given
+        scheduler.setWeights("gold:3, silver:1");
+        for (int i = 0; i < 24; ++i) {
+            submit("gold");
+            submit("silver");
+        }
+
+        //When
+        runTasks();
+
+        //Then
+        List<String> firstRound = delivered.subList(0, 16);
+        assertThat(firstRound.stream().filter("gold"::equals).count()).isEqualTo(12);
+        assertThat(firstRound.stream().filter("silver"::equals).count()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldCoalesceDeliveriesPendingForTheSameSession() {
+        //Given
+        ServerSessionImpl session = submit("noisy");
+        submit(session);
+        submit(session);
+
+        //When
+        runTasks();
+
+        //Then
+        assertThat(delivered).containsExactly("noisy");
+    }
+
+    @Test
+    public void shouldHoldTenantAtMaxInFlightUntilMessagesAreTaken() {
+        //Given
+        scheduler.setMaxInFlight(2);
+        List<ServerSessionImpl> sessions = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            sessions.add(submit("noisy"));
+        }
+        submit("quiet");
+
+        //When
+        runTasks();
+
+        //Then
+        assertThat(delivered).containsExactly("noisy", "noisy", "quiet");
+        scheduler.taken(sessions.get(0));
+        assertThat(tasks).hasSize(1);
+        runTasks();
+        assertThat(delivered).containsExactly("noisy", "noisy", "quiet", "noisy");
+    }
+
+    private void runTasks() {
+        // The drain task runs first, then the deliveries it handed to the executor, in order.
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    private ServerSessionImpl submit(String tenant) {
+        ServerSessionImpl session = new ServerSessionImpl(bayeux);
+        session.handshake();
+        session.connected();
+        session.setAttribute("tenant", tenant);
+        submit(session);
+        return session;
+    }
+
+    private void submit(ServerSessionImpl session) {
+        String tenant = scheduler.tenantOf(session);
+        scheduler.submit(session, new AbstractServerTransport.Scheduler() {
+            @Override
+            public void cancel() {
+            }
+
+            @Override
+            public void schedule() {
+                delivered.add(tenant);
+            }
+        });
+    }
+}
@@ -0,0 +1,72 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HandshakeAdmissionTest {
+
+    private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        bayeux.setOption(BayeuxServerImpl.HANDSHAKE_RATE_OPTION, 1);
+        bayeux.setOption(BayeuxServerImpl.HANDSHAKE_BURST_OPTION, 2);
+        bayeux.setOption(BayeuxServerImpl.HANDSHAKE_BACKOFF_WINDOW_OPTION, 5000);
+        bayeux.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        bayeux.stop();
+    }
+
+    @Test
+    public void shouldAdmitTheBurstAndAdviseTheOthersToHandshakeLater() {
+        //When
+        ServerMessage.Mutable first = bayeux.handle(null, handshake());
+        ServerMessage.Mutable second = bayeux.handle(null, handshake());
+        ServerMessage.Mutable third = bayeux.handle(null, handshake());
+
+        //Then
+        assertThat(first.isSuccessful()).isTrue();
+        assertThat(second.isSuccessful()).isTrue();
+        assertThat(third.isSuccessful()).isFalse();
+        assertThat(third.get(Message.ERROR_FIELD)).isEqualTo("503::Too many handshakes");
+        Map<String, Object> advice = third.getAdvice();
+        assertThat(advice.get(Message.RECONNECT_FIELD)).isEqualTo(Message.RECONNECT_HANDSHAKE_VALUE);
+        assertThat((Long)advice.get(Message.INTERVAL_FIELD)).isBetween(1L, 6000L);
+        assertThat(bayeux.getHandshakesAdmitted()).isEqualTo(2);
+        assertThat(bayeux.getHandshakesRejected()).isEqualTo(1);
+        assertThat(bayeux.metrics()).contains("\"rejected\":1");
+    }
+
+    @Test
+    public void shouldNotLimitWhenTheRateIsZero() {
+        //Given
+        bayeux.setHandshakeRate(0);
+
+        //When
+        for (int i = 0; i < 100; ++i) {
+            assertThat(bayeux.handle(null, handshake()).isSuccessful()).isTrue();
+        }
+
+        //Then
+        assertThat(bayeux.getHandshakesRejected()).isZero();
+    }
+
+    private ServerMessage.Mutable handshake() {
+        ServerMessage.Mutable message = bayeux.newMessage();
+        message.setChannel(Channel.META_HANDSHAKE);
+        message.put(Message.VERSION_FIELD, "1.0");
+        message.put(Message.SUPPORTED_CONNECTION_TYPES_FIELD, new String[]{"long-polling"});
+        return message;
+    }
+}
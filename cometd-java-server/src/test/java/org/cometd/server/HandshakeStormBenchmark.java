@@ -0,0 +1,81 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.openjdk.jmh.annotations.Mode.Throughput;
+
+/**
+ * Handshakes from many threads at once, as when thousands of devices reconnect,
+ * comparing the {@link SessionIdGenerator} strategies.
+ */
+@BenchmarkMode(Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(16)
+@Warmup(iterations = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 3)
+public class HandshakeStormBenchmark {
+
+    @Test
+    public void handshakeStormBenchmark() throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .result("target/" + HandshakeStormBenchmark.class.getSimpleName() + "-jmh.json")
+                .resultFormat(ResultFormatType.JSON)
+                .include(HandshakeStormBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Benchmark
+    public long randomLong(StormPlan plan) {
+        return plan.bayeux.randomLong();
+    }
+
+    /**
+     * Handles a {@code /meta/handshake} and removes the session right after,
+     * so that the number of sessions does not grow during the benchmark.
+     */
+    @Benchmark
+    public ServerMessage.Mutable handshake(StormPlan plan) {
+        ServerMessage.Mutable message = plan.bayeux.newMessage();
+        message.setChannel(Channel.META_HANDSHAKE);
+        message.put(ServerMessage.VERSION_FIELD, "1.0");
+        message.put(ServerMessage.SUPPORTED_CONNECTION_TYPES_FIELD, new String[]{"long-polling"});
+        ServerMessage.Mutable reply = plan.bayeux.handle(null, message);
+        ServerSessionImpl session = (ServerSessionImpl)plan.bayeux.getSession(reply.getClientId());
+        if (session != null) {
+            plan.bayeux.removeServerSession(session, false);
+        }
+        return reply;
+    }
+
+    @State(Scope.Benchmark)
+    public static class StormPlan {
+        @Param({SessionIdGenerator.SHARED, SessionIdGenerator.PER_THREAD, SessionIdGenerator.BATCHED})
+        String generator;
+
+        private BayeuxServerImpl bayeux;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            bayeux = new BayeuxServerImpl();
+            bayeux.setOption(BayeuxServerImpl.SESSION_ID_GENERATOR_OPTION, generator);
+            bayeux.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bayeux.stop();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.openjdk.jmh.annotations.Mode.AverageTime;
+
+@BenchmarkMode(AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 3)
+public class LazyFlushBenchmark {
+
+    @Test
+    public void lazyFlushBenchmark() throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .result("target/" + LazyFlushBenchmark.class.getSimpleName() + "-jmh.json")
+                .resultFormat(ResultFormatType.JSON)
+                .include(LazyFlushBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+
+    /**
+     * Publishes a lazy message to every session subscribed to a lazy channel,
+     * which schedules the lazy flush of each session on the shared wheel.
+     */
+    @Benchmark
+    public void publishToLazyChannel(LazyChannelPlan plan) {
+        ServerMessage.Mutable message = plan.bayeux.newMessage();
+        message.setChannel(plan.channel.getId());
+        message.setData(Collections.singletonMap("value", 1));
+        plan.channel.publish(null, message);
+    }
+
+    /**
+     * Schedules and cancels one deadline per session, comparing a scheduler
+     * task per session with the shared timing wheel.
+     */
+    @Benchmark
+    public void scheduleAndCancelDeadlines(DeadlinePlan plan, Blackhole blackhole) {
+        int sessions = plan.sessions;
+        if (plan.wheel == null) {
+            Scheduler.Task[] tasks = plan.tasks;
+            for (int i = 0; i < sessions; ++i) {
+                tasks[i] = plan.scheduler.schedule(plan.noop, 1000, TimeUnit.MILLISECONDS);
+            }
+            for (int i = 0; i < sessions; ++i) {
+                blackhole.consume(tasks[i].cancel());
+            }
+        } else {
+            TimingWheel.Timeout[] timeouts = plan.timeouts;
+            for (int i = 0; i < sessions; ++i) {
+                blackhole.consume(plan.wheel.schedule(timeouts[i], 1000));
+            }
+            for (int i = 0; i < sessions; ++i) {
+                blackhole.consume(timeouts[i].cancel());
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LazyChannelPlan {
+        @Param({"100000"})
+        int sessions;
+
+        private BayeuxServerImpl bayeux;
+        private ServerChannel channel;
+        private List<ServerSessionImpl> subscribers;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            bayeux = new BayeuxServerImpl();
+            bayeux.start();
+            channel = bayeux.createChannelIfAbsent("/lazy/channel").getReference();
+            channel.setLazyTimeout(1000);
+            subscribers = new ArrayList<>(sessions);
+            for (int i = 0; i < sessions; ++i) {
+                ServerSessionImpl session = new ServerSessionImpl(bayeux);
+                session.handshake();
+                channel.subscribe(session);
+                subscribers.add(session);
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void drain() {
+            for (ServerSessionImpl session : subscribers) {
+                session.takeQueue();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bayeux.stop();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class DeadlinePlan {
+        @Param({"100000"})
+        int sessions;
+
+        @Param({"scheduler", "wheel"})
+        String mechanism;
+
+        private final Runnable noop = () -> {
+        };
+        private ScheduledExecutorScheduler scheduler;
+        private TimingWheel wheel;
+        private Scheduler.Task[] tasks;
+        private TimingWheel.Timeout[] timeouts;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            scheduler = new ScheduledExecutorScheduler();
+            scheduler.start();
+            if ("wheel".equals(mechanism)) {
+                wheel = new TimingWheel(scheduler, 10, 1024);
+                wheel.start();
+                timeouts = new TimingWheel.Timeout[sessions];
+                for (int i = 0; i < sessions; ++i) {
+                    timeouts[i] = new TimingWheel.Timeout() {
+                        @Override
+                        protected void expired() {
+                        }
+                    };
+                }
+            } else {
+                tasks = new Scheduler.Task[sessions];
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            if (wheel != null) {
+                wheel.stop();
+            }
+            scheduler.stop();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageQueueTest {
+
+    private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        bayeux.setOption(BayeuxServerImpl.PRIORITY_CHANNELS_OPTION, "/operations/*, /control");
+        bayeux.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        bayeux.stop();
+    }
+
+    @Test
+    public void shouldTakePriorityMessagesFirstKeepingTheOrderOfEachChannel() {
+        //Given
+        bayeux.createChannelIfAbsent("/operations/1");
+        bayeux.createChannelIfAbsent("/control");
+        bayeux.createChannelIfAbsent("/measurements/1");
+        ServerSessionImpl session = new ServerSessionImpl(bayeux);
+
+        //When
+        session.addMessage(message("/measurements/1", 1));
+        session.addMessage(message("/operations/1", 1));
+        session.addMessage(message("/measurements/1", 2));
+        session.addMessage(message("/control", 1));
+        session.addMessage(message("/operations/1", 2));
+        session.addMessage(message("/measurements/unknown", 1));
+
+        //Then
+        List<String> taken = session.takeQueue().stream()
+                .map(message -> message.getChannel() + "#" + message.getData())
+                .collect(Collectors.toList());
+        assertThat(taken).containsExactly("/operations/1#1", "/control#1", "/operations/1#2",
+                "/measurements/1#1", "/measurements/1#2", "/measurements/unknown#1");
+        assertThat(session.getQueue()).isEmpty();
+    }
+
+    @Test
+    public void shouldRemoveMessagesOfBothLanesThroughTheIterator() {
+        //Given
+        ((ServerChannelImpl)bayeux.createChannelIfAbsent("/alarms").getReference()).setPriority(true);
+        MessageQueue queue = new MessageQueue(bayeux);
+        queue.offer(message("/measurements/1", 1));
+        queue.offer(message("/alarms", 1));
+        queue.offer(message("/measurements/1", 2));
+
+        //When
+        Iterator<ServerMessage> iterator = queue.iterator();
+        assertThat(iterator.next().getChannel()).isEqualTo("/alarms");
+        assertThat(iterator.hasNext()).isTrue();
+        iterator.remove();
+        assertThat(iterator.next().getData()).isEqualTo(1);
+        iterator.remove();
+
+        //Then
+        assertThat(queue).hasSize(1);
+        assertThat(queue.peek().getData()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldKeepTheOrderOfChannelThatChangesLaneWhileQueued() {
+        //Given
+        bayeux.createChannelIfAbsent("/control");
+        ServerChannelImpl measurements = (ServerChannelImpl)bayeux.createChannelIfAbsent("/measurements/1").getReference();
+        ServerSessionImpl session = new ServerSessionImpl(bayeux);
+        session.addMessage(message("/measurements/1", 1));
+
+        //When
+        measurements.setPriority(true);
+        session.addMessage(message("/measurements/1", 2));
+        session.addMessage(message("/control", 1));
+
+        //Then
+        List<String> taken = session.takeQueue().stream()
+                .map(message -> message.getChannel() + "#" + message.getData())
+                .collect(Collectors.toList());
+        assertThat(taken).containsExactly("/control#1", "/measurements/1#1", "/measurements/1#2");
+        session.addMessage(message("/operations/1", 1));
+        session.addMessage(message("/measurements/1", 3));
+        assertThat(session.getQueue().peek().getData()).isEqualTo(3);
+    }
+
+    private ServerMessage.Mutable message(String channel, int data) {
+        ServerMessage.Mutable message = bayeux.newMessage();
+        message.setChannel(channel);
+        message.setData(data);
+        return message;
+    }
+}
@@ -0,0 +1,83 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageTracerTest {
+
+    private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+    private final List<MessageTracer.Trace> traces = new ArrayList<>();
+    private MessageTracer tracer;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        bayeux.start();
+        tracer = bayeux.getMessageTracer();
+        tracer.setListener(traces::add);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        bayeux.stop();
+    }
+
+    @Test
+    public void shouldNotTraceWhenNothingIsSwitchedOn() {
+        //Given
+        ServerMessage.Mutable message = message("/measurements/1");
+
+        //When
+        tracer.trace("long-polling", MessageTracer.Direction.INBOUND, "session", message);
+
+        //Then
+        assertThat(traces).isEmpty();
+        assertThat(tracer.getTraces()).isZero();
+    }
+
+    @Test
+    public void shouldTraceSwitchedOnSessionsAndChannels() {
+        //Given
+        bayeux.traceSession("traced", true);
+        bayeux.traceChannel("/alarms/**", true);
+
+        //When
+        tracer.trace("long-polling", MessageTracer.Direction.INBOUND, "traced", message("/measurements/1"));
+        tracer.trace("long-polling", MessageTracer.Direction.INBOUND, "other", message("/measurements/1"));
+        tracer.trace("long-polling", MessageTracer.Direction.OUTBOUND, "other", message("/alarms/a/b"), "{\"x\":1}".getBytes(StandardCharsets.UTF_8));
+
+        //Then
+        assertThat(traces).hasSize(2);
+        assertThat(traces.get(0).getSessionId()).isEqualTo("traced");
+        assertThat(traces.get(1).getChannel()).isEqualTo("/alarms/a/b");
+        assertThat(traces.get(1).getJSON()).isEqualTo("{\"x\":1}");
+    }
+
+    @Test
+    public void shouldStopTracingWhenSwitchedOff() {
+        //Given
+        bayeux.traceChannel("/measurements/1", true);
+        bayeux.setTraceSampleRate(1);
+
+        //When
+        bayeux.clearTraces();
+        tracer.trace("long-polling", MessageTracer.Direction.INBOUND, "session", message("/measurements/1"));
+
+        //Then
+        assertThat(traces).isEmpty();
+        assertThat(bayeux.getTraceSampleRate()).isZero();
+    }
+
+    private ServerMessage.Mutable message(String channel) {
+        ServerMessage.Mutable message = bayeux.newMessage();
+        message.setChannel(channel);
+        return message;
+    }
+}
@@ -0,0 +1,120 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReplayBufferTest {
+
+    private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        bayeux.setOption(BayeuxServerImpl.REPLAY_CHANNELS_OPTION, "/devices/*");
+        bayeux.setOption(BayeuxServerImpl.REPLAY_MAX_MESSAGES_OPTION, 3);
+        bayeux.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        bayeux.stop();
+    }
+
+    @Test
+    public void shouldReplayOnlyTheMissedMessages() {
+        //Given
+        ServerChannel channel = bayeux.createChannelIfAbsent("/devices/1").getReference();
+        ServerSessionImpl probe = session();
+        channel.subscribe(probe);
+        for (int i = 1; i <= 5; ++i) {
+            channel.publish(null, Collections.singletonMap("value", i));
+        }
+        List<Long> numbers = new ArrayList<>();
+        for (ServerMessage message : probe.getQueue()) {
+            numbers.add((Long)message.getExt().get(ReplayBuffer.EXT_FIELD));
+        }
+
+        //When
+        ServerSessionImpl recent = session();
+        Map<String, Object> recentReply = subscribe(recent, numbers.get(2));
+        ServerSessionImpl late = session();
+        Map<String, Object> lateReply = subscribe(late, numbers.get(0));
+
+        //Then
+        assertThat(numbers).hasSize(5).isSorted();
+        assertThat(recent.getQueue()).extracting(ServerMessage::getJSON).containsExactly(json(probe, 3), json(probe, 4));
+        assertThat(recentReply).containsEntry("messages", 2).containsEntry("complete", true);
+        assertThat(late.getQueue()).hasSize(3);
+        assertThat(lateReply).containsEntry("messages", 3).containsEntry("complete", false);
+        assertThat(bayeux.getMetrics().getReplayMessages()).isEqualTo(3);
+        assertThat(bayeux.getMetrics().getReplayBytes()).isEqualTo(((ServerChannelImpl)channel).getReplayBytes()).isPositive();
+        assertThat(bayeux.getMetrics().getReplayed()).isEqualTo(5);
+
+        //When
+        channel.remove();
+
+        //Then
+        assertThat(bayeux.getMetrics().getReplayBytes()).isZero();
+    }
+
+    private ServerSessionImpl session() {
+        ServerSessionImpl session = new ServerSessionImpl(bayeux);
+        session.handshake();
+        bayeux.addServerSession(session, bayeux.newMessage());
+        return session;
+    }
+
+    @Test
+    public void shouldReplayTheMissedMessagesOfTheChannelsMatchingAWildcardSubscription() {
+        //Given
+        ServerChannel first = bayeux.createChannelIfAbsent("/devices/1").getReference();
+        ServerChannel second = bayeux.createChannelIfAbsent("/devices/2").getReference();
+        ServerSessionImpl probe = session();
+        first.subscribe(probe);
+        second.subscribe(probe);
+        first.publish(null, Collections.singletonMap("value", 1));
+        second.publish(null, Collections.singletonMap("value", 2));
+        first.publish(null, Collections.singletonMap("value", 3));
+        second.publish(null, Collections.singletonMap("value", 4));
+        long lastSeen = (Long)new ArrayList<>(probe.getQueue()).get(0).getExt().get(ReplayBuffer.EXT_FIELD);
+
+        //When
+        ServerSessionImpl session = session();
+        Map<String, Object> reply = subscribe(session, "/devices/*", lastSeen);
+
+        //Then
+        assertThat(session.getQueue()).extracting(ServerMessage::getJSON).containsExactly(json(probe, 1), json(probe, 2), json(probe, 3));
+        assertThat(reply).containsEntry("messages", 3).containsEntry("complete", true);
+    }
+
+    private Map<String, Object> subscribe(ServerSessionImpl session, long lastSeen) {
+        return subscribe(session, "/devices/1", lastSeen);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> subscribe(ServerSessionImpl session, String subscription, long lastSeen) {
+        ServerMessage.Mutable message = bayeux.newMessage();
+        message.setChannel(Channel.META_SUBSCRIBE);
+        message.setClientId(session.getId());
+        message.put(ServerMessage.SUBSCRIPTION_FIELD, subscription);
+        message.getExt(true).put(ReplayBuffer.EXT_FIELD, lastSeen);
+        ServerMessage.Mutable reply = bayeux.handle(session, message);
+        assertThat(reply.isSuccessful()).isTrue();
+        Map<String, Object> replay = (Map<String, Object>)reply.getExt().get(ReplayBuffer.EXT_FIELD);
+        return (Map<String, Object>)replay.get(subscription);
+    }
+
+    private String json(ServerSessionImpl session, int index) {
+        return new ArrayList<>(session.getQueue()).get(index).getJSON();
+    }
+}
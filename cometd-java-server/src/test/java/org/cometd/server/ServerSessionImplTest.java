@@ -125,6 +125,40 @@ public class ServerSessionImplTest {
         assertThat(((ServerSessionImpl) server.getSession(clientId)).getQueue()).isNotEmpty();
     }
 
+    @Test
+    public void shouldSweepSessionOnlyWhenItsIntervalExpired() {
+        //Given
+        ServerSessionImpl session = new ServerSessionImpl(server);
+        session.handshake();
+        server.addServerSession(session, server.newMessage());
+        session.connected();
+        session.startIntervalTimeout(0);
+        long expiry = session.getIntervalTimestamp();
+
+        //When
+        session.sweep(expiry);
+
+        //Then
+        assertThat(session.getState()).isEqualTo(INACTIVE);
+
+        //When
+        session.activate();
+        session.cancelIntervalTimeout();
+        session.sweep(Long.MAX_VALUE / 2);
+
+        //Then
+        assertThat(session.getState()).isEqualTo(ACTIVE);
+        assertThat(session.getIntervalTimestamp()).isZero();
+
+        //When
+        session.startIntervalTimeout(0);
+        session.sweep(session.getIntervalTimestamp() + 1);
+
+        //Then
+        assertThat(session.getState()).isEqualTo(TIMEOUTED);
+        assertThat(server.getSession(session.getId())).isNull();
+    }
+
     private AbstractHttpTransport transport() {
         AbstractHttpTransport transport = (AbstractHttpTransport) server.getTransport("long-polling");
         server.setCurrentTransport(transport);
@@ -0,0 +1,91 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerSession;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionCountersTest {
+
+    private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+
+    @BeforeEach
+    public void setup() throws Exception {
+        bayeux.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        bayeux.stop();
+    }
+
+    @Test
+    public void shouldCountSessionsByStateAndSubscriptions() {
+        //Given
+        ServerChannel channel = bayeux.createChannelIfAbsent("/measurements/1").getReference();
+        ServerSessionImpl first = session();
+        ServerSessionImpl second = session();
+
+        //When
+        first.connected();
+        channel.subscribe(first);
+        channel.subscribe(second);
+        channel.subscribe(second);
+
+        //Then
+        assertThat(bayeux.getSessionCount()).isEqualTo(2);
+        assertThat(bayeux.getInactiveSessionCount()).isEqualTo(1);
+        assertThat(bayeux.getInitializedSessionCount()).isEqualTo(1);
+        assertThat(bayeux.getSubscriptionCount()).isEqualTo(2);
+
+        //When
+        bayeux.removeServerSession(first, true);
+        bayeux.removeServerSession(second, false);
+        bayeux.removeServerSession(second, false);
+
+        //Then
+        assertThat(bayeux.getSessionCount()).isZero();
+        assertThat(bayeux.getInactiveSessionCount()).isZero();
+        assertThat(bayeux.getInitializedSessionCount()).isZero();
+        assertThat(bayeux.getTimedOutSessionCount()).isEqualTo(1);
+        assertThat(bayeux.getDisconnectedSessionCount()).isEqualTo(1);
+        assertThat(bayeux.getSubscriptionCount()).isZero();
+        assertThat(bayeux.metrics()).contains("\"timeouted\":1");
+    }
+
+    @Test
+    public void shouldPageThroughSessions() {
+        //Given
+        for (int i = 0; i < 25; ++i) {
+            session();
+        }
+
+        //When
+        Set<String> ids = new HashSet<>();
+        for (int offset = 0; ; offset += 10) {
+            List<ServerSession> page = bayeux.getSessions(offset, 10);
+            page.forEach(session -> ids.add(session.getId()));
+            if (page.size() < 10) {
+                break;
+            }
+        }
+
+        //Then
+        assertThat(ids).hasSize(25);
+        assertThat(bayeux.listSessions(20, 10)).hasSize(5).allMatch(line -> line.endsWith(" INITIALIZED"));
+    }
+
+    private ServerSessionImpl session() {
+        ServerSessionImpl session = new ServerSessionImpl(bayeux);
+        session.handshake();
+        bayeux.addServerSession(session, bayeux.newMessage());
+        return session;
+    }
+}
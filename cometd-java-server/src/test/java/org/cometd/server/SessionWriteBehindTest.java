@@ -0,0 +1,193 @@
+package org.cometd.server;
+
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionWriteBehindTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void shouldAdoptSessionWithSubscriptionsAndQueueAfterRestart() throws Exception {
+        //Given
+        Path file = directory.resolve("sessions");
+        String sessionId;
+        String json;
+        try (FileSessionStore store = new FileSessionStore(file)) {
+            BayeuxServerImpl node = node(store);
+            ServerSessionImpl session = session(node);
+            session.setAttribute("tenant", "t100");
+            session.setAttribute("lock", new Object());
+            ServerChannel channel = node.createChannelIfAbsent("/devices/1").getReference();
+            channel.subscribe(session);
+            channel.publish(null, Collections.singletonMap("temperature", 21));
+            sessionId = session.getId();
+            json = session.getQueue().peek().getJSON();
+            node.stop();
+        }
+
+        //When
+        try (FileSessionStore store = new FileSessionStore(file)) {
+            BayeuxServerImpl node = node(store);
+            ServerSession looked = node.getSession(sessionId);
+            ServerSessionImpl adopted = (ServerSessionImpl)node.getOrAdoptSession(sessionId);
+
+            //Then
+            assertThat(looked).isNull();
+            assertThat(adopted).isNotNull();
+            assertThat(adopted.isHandshook()).isTrue();
+            assertThat(adopted.getAttribute("tenant")).isEqualTo("t100");
+            assertThat(adopted.getAttribute("lock")).isNull();
+            assertThat(adopted.getSubscriptions()).extracting(ServerChannel::getId).containsExactly("/devices/1");
+            assertThat(adopted.getQueue()).extracting(ServerMessage::getJSON).containsExactly(json);
+            assertThat(node.getOrAdoptSession("unknown")).isNull();
+            assertThat(node.getSessionWriteBehind().getAdopted()).isEqualTo(1);
+            node.stop();
+        }
+    }
+
+    @Test
+    public void shouldRemoveSnapshotOfRemovedSession() throws Exception {
+        //Given
+        try (FileSessionStore store = new FileSessionStore(directory.resolve("sessions"))) {
+            BayeuxServerImpl node = node(store);
+            ServerSessionImpl session = session(node);
+            node.createChannelIfAbsent("/devices/1").getReference().subscribe(session);
+            awaitSaved(node, 1);
+            assertThat(store.load(session.getId())).isNotNull();
+
+            //When
+            node.removeServerSession(session, false);
+            node.stop();
+
+            //Then
+            assertThat(store.load(session.getId())).isNull();
+            assertThat(store.size()).isZero();
+        }
+    }
+
+    @Test
+    public void shouldNotAdoptRemovedSessionBeforeItsSnapshotIsRemoved() throws Exception {
+        //Given
+        try (FileSessionStore store = new FileSessionStore(directory.resolve("sessions"))) {
+            BayeuxServerImpl node = node(store);
+            ServerSessionImpl session = session(node);
+            node.createChannelIfAbsent("/devices/1").getReference().subscribe(session);
+            awaitSaved(node, 1);
+            // The removal is not written until the node stops.
+            node.getSessionWriteBehind().setPeriod(TimeUnit.HOURS.toMillis(1));
+            Thread.sleep(100);
+
+            //When
+            node.removeServerSession(session, false);
+
+            //Then
+            assertThat(node.getOrAdoptSession(session.getId())).isNull();
+            assertThat(store.load(session.getId())).isNotNull();
+            node.stop();
+            assertThat(store.load(session.getId())).isNull();
+        }
+    }
+
+    @Test
+    public void shouldNotAdoptSessionRejectedBySecurityPolicy() throws Exception {
+        //Given
+        Path file = directory.resolve("sessions");
+        String sessionId;
+        try (FileSessionStore store = new FileSessionStore(file)) {
+            BayeuxServerImpl node = node(store);
+            ServerSessionImpl session = session(node);
+            node.createChannelIfAbsent("/devices/1").getReference().subscribe(session);
+            sessionId = session.getId();
+            node.stop();
+        }
+
+        //When
+        try (FileSessionStore store = new FileSessionStore(file)) {
+            BayeuxServerImpl node = new BayeuxServerImpl();
+            node.setOption(BayeuxServerImpl.SESSION_STORE_OPTION, store);
+            node.setSecurityPolicy(new DefaultSecurityPolicy() {
+                @Override
+                public boolean canHandshake(BayeuxServer server, ServerSession session, ServerMessage message) {
+                    return session.getAttribute("tenant") != null;
+                }
+            });
+            node.start();
+            ServerSession adopted = node.getOrAdoptSession(sessionId);
+
+            //Then
+            assertThat(adopted).isNull();
+            assertThat(node.getSessions()).isEmpty();
+            assertThat(node.getSessionWriteBehind().getRejected()).isEqualTo(1);
+            node.stop();
+        }
+    }
+
+    @Test
+    public void shouldSaveSubscriptionsOnlyWhenQueueDoesNotFitStore() throws Exception {
+        //Given
+        Path file = directory.resolve("sessions");
+        String sessionId;
+        try (FileSessionStore store = new FileSessionStore(file, 512, 16, FileSessionStore.DEFAULT_MAX_AGE)) {
+            BayeuxServerImpl node = node(store);
+            ServerSessionImpl session = session(node);
+            ServerChannel channel = node.createChannelIfAbsent("/devices/1").getReference();
+            channel.subscribe(session);
+            channel.publish(null, "small");
+            awaitSaved(node, 1);
+            sessionId = session.getId();
+
+            //When
+            StringBuilder large = new StringBuilder();
+            for (int i = 0; i < 1024; ++i) {
+                large.append('x');
+            }
+            channel.publish(null, large.toString());
+            SessionWriteBehind writeBehind = node.getSessionWriteBehind();
+            node.stop();
+            assertThat(writeBehind.getFailed()).isEqualTo(1);
+        }
+
+        //Then
+        try (FileSessionStore store = new FileSessionStore(file, 512, 16, FileSessionStore.DEFAULT_MAX_AGE)) {
+            BayeuxServerImpl node = node(store);
+            ServerSessionImpl adopted = (ServerSessionImpl)node.getOrAdoptSession(sessionId);
+            assertThat(adopted).isNotNull();
+            assertThat(adopted.getSubscriptions()).extracting(ServerChannel::getId).containsExactly("/devices/1");
+            assertThat(adopted.getQueue()).isEmpty();
+            node.stop();
+        }
+    }
+
+    private BayeuxServerImpl node(SessionStore store) throws Exception {
+        BayeuxServerImpl node = new BayeuxServerImpl();
+        node.setOption(BayeuxServerImpl.SESSION_STORE_OPTION, store);
+        node.setOption(BayeuxServerImpl.SESSION_STORE_PERIOD_OPTION, 10);
+        node.start();
+        return node;
+    }
+
+    private ServerSessionImpl session(BayeuxServerImpl node) {
+        ServerSessionImpl session = new ServerSessionImpl(node);
+        session.handshake();
+        node.addServerSession(session, node.newMessage());
+        return session;
+    }
+
+    private void awaitSaved(BayeuxServerImpl node, long saved) throws InterruptedException {
+        for (int i = 0; i < 500 && node.getSessionWriteBehind().getSaved() < saved; ++i) {
+            Thread.sleep(10);
+        }
+    }
+}
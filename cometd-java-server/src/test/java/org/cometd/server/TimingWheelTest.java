@@ -0,0 +1,127 @@
+package org.cometd.server;
+
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TimingWheelTest {
+
+    private final ScheduledExecutorScheduler scheduler = new ScheduledExecutorScheduler();
+    private TimingWheel wheel;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        scheduler.start();
+        wheel = new TimingWheel(scheduler, 5, 8);
+        wheel.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        wheel.stop();
+        scheduler.stop();
+    }
+
+    @Test
+    public void shouldExpireTimeoutNotBeforeDeadline() throws Exception {
+        //Given
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+
+        //When
+        wheel.schedule(new LatchTimeout(latch), 50);
+
+        //Then
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(50);
+    }
+
+    @Test
+    public void shouldExpireTimeoutLongerThanWheelSpan() throws Exception {
+        //Given
+        CountDownLatch latch = new CountDownLatch(1);
+
+        //When
+        wheel.schedule(new LatchTimeout(latch), 200);
+
+        //Then
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void shouldScheduleTimeoutAgainAfterRestart() throws Exception {
+        //Given
+        CountDownLatch latch = new CountDownLatch(1);
+        LatchTimeout timeout = new LatchTimeout(latch);
+        wheel.schedule(timeout, 1000);
+
+        //When
+        wheel.stop();
+        wheel.start();
+
+        //Then
+        assertThat(timeout.isScheduled()).isFalse();
+        assertThat(wheel.schedule(timeout, 20)).isTrue();
+        assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void shouldNotExpireCancelledTimeout() throws Exception {
+        //Given
+        CountDownLatch latch = new CountDownLatch(1);
+        LatchTimeout timeout = new LatchTimeout(latch);
+        wheel.schedule(timeout, 20);
+
+        //When
+        assertThat(timeout.cancel()).isTrue();
+
+        //Then
+        assertThat(latch.await(200, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(timeout.isScheduled()).isFalse();
+    }
+
+    @Test
+    public void shouldKeepEarliestDeadlineAndExpireOnce() throws Exception {
+        //Given
+        AtomicInteger expirations = new AtomicInteger();
+        TimingWheel.Timeout timeout = new TimingWheel.Timeout() {
+            @Override
+            protected void expired() {
+                expirations.incrementAndGet();
+            }
+        };
+
+        //When
+        boolean first = wheel.schedule(timeout, 100);
+        boolean earlier = wheel.schedule(timeout, 20);
+        boolean later = wheel.schedule(timeout, 150);
+
+        //Then
+        assertThat(first).isTrue();
+        assertThat(earlier).isTrue();
+        assertThat(later).isFalse();
+        TimeUnit.MILLISECONDS.sleep(400);
+        assertThat(expirations.get()).isEqualTo(1);
+        assertThat(timeout.isScheduled()).isFalse();
+    }
+
+    private static class LatchTimeout extends TimingWheel.Timeout {
+        private final CountDownLatch latch;
+
+        private LatchTimeout(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        protected void expired() {
+            latch.countDown();
+        }
+    }
+}
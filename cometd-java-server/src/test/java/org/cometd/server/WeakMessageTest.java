@@ -13,6 +13,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -212,6 +213,33 @@ public class WeakMessageTest {
         assertThat(copyOfWeakMessage.get("id")).isEqualTo(weakMessage.get("id"));
     }
 
+    @Test
+    public void shouldEncodeFrozenMessageOnce() {
+        // given
+        WeakMessage weakMessage = new WeakMessage(givenMessage(), 50000, jsonContext, true);
+        weakMessage.freeze();
+        AtomicInteger encodings = new AtomicInteger();
+
+        // when
+        byte[] first = weakMessage.getEncoded("deflate", message -> {
+            encodings.incrementAndGet();
+            return message.getJSONBytes();
+        });
+        byte[] second = weakMessage.getEncoded("deflate", message -> {
+            encodings.incrementAndGet();
+            return message.getJSONBytes();
+        });
+        String other = weakMessage.getEncoded("text", message -> {
+            encodings.incrementAndGet();
+            return message.getJSON();
+        });
+
+        // then
+        assertThat(second).isSameAs(first);
+        assertThat(other).isEqualTo(weakMessage.getJSON());
+        assertThat(encodings).hasValue(2);
+    }
+
     private Message givenMessage() {
         ServerMessageImpl serverMessage = new ServerMessageImpl();
         serverMessage.setClientId("clientId123");
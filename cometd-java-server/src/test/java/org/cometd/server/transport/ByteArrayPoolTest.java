@@ -0,0 +1,61 @@
+package org.cometd.server.transport;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ByteArrayPoolTest {
+
+    @Test
+    public void shouldReuseReleasedArraysOfTheSameSizeClass() {
+        //Given
+        ByteArrayPool pool = new ByteArrayPool(500, 4096, 2, false);
+        byte[] first = pool.acquire(600);
+
+        //When
+        pool.release(first);
+        byte[] second = pool.acquire(1000);
+
+        //Then
+        assertThat(pool.getMinCapacity()).isEqualTo(512);
+        assertThat(first).hasSize(1024);
+        assertThat(second).isSameAs(first);
+        assertThat(pool.getHits()).isEqualTo(1);
+        assertThat(pool.getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotPoolArraysLargerThanMaxCapacityOrBeyondMaxPooled() {
+        //Given
+        ByteArrayPool pool = new ByteArrayPool(512, 4096, 1, false);
+        byte[] large = pool.acquire(5000);
+        byte[] first = pool.acquire(512);
+        byte[] second = pool.acquire(512);
+
+        //When
+        pool.release(large);
+        pool.release(first);
+        pool.release(second);
+
+        //Then
+        assertThat(large).hasSize(5000);
+        assertThat(pool.getPooled()).isEqualTo(1);
+        assertThat(pool.getDiscards()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldTrackOutstandingArraysWithLeakDetection() {
+        //Given
+        ByteArrayPool pool = new ByteArrayPool(512, 4096, 4, true);
+        byte[] released = pool.acquire(512);
+        pool.acquire(512);
+
+        //When
+        pool.release(released);
+        pool.release(released);
+
+        //Then
+        assertThat(pool.getOutstanding()).isEqualTo(1);
+        assertThat(pool.getPooled()).isEqualTo(1);
+    }
+}
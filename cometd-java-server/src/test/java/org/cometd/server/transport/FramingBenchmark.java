@@ -0,0 +1,192 @@
+package org.cometd.server.transport;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.server.BayeuxServerImpl;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+import static org.openjdk.jmh.annotations.Mode.Throughput;
+
+/**
+ * Compares the response write of the long-polling transport, that writes the messages
+ * straight into the container buffer, with the {@link JSONArrayFrame} gathered and
+ * copied at once, as the asynchronous transport does.
+ */
+@BenchmarkMode(Throughput)
+@Fork(1)
+@Warmup(iterations = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 3)
+public class FramingBenchmark {
+
+    @Test
+    public void framingBenchmark() throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .result("target/" + FramingBenchmark.class.getSimpleName() + "-jmh.json")
+                .resultFormat(ResultFormatType.JSON)
+                .include(FramingBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Benchmark
+    public void transportWrite(ExecutionPlan plan, WriteCounters counters) {
+        plan.transport.write(plan.request, plan.response, null, false, plan.messages, NO_REPLIES);
+        plan.output.complete(counters);
+    }
+
+    @Benchmark
+    public void frameWrite(ExecutionPlan plan, WriteCounters counters) throws IOException {
+        JSONArrayFrame frame = plan.transport.frame("UTF-8", null, plan.messages, NO_REPLIES);
+        AggregatingOutput output = plan.output;
+        frame.writeTo(output, JSONArrayFrame.ARRAY_BEGIN, JSONArrayFrame.ARRAY_END);
+        output.complete(counters);
+    }
+
+    private static final ServerMessage.Mutable[] NO_REPLIES = new ServerMessage.Mutable[0];
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WriteCounters {
+        public long flushes;
+        public long copiedBytes;
+    }
+
+    @State(Scope.Benchmark)
+    public static class ExecutionPlan {
+        @Param({"1", "50", "500"})
+        int messagesPerResponse;
+
+        private final AggregatingOutput output = new AggregatingOutput(8192);
+        private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+        private List<ServerMessage> messages;
+        private JSONTransport transport;
+        private HttpServletRequest request;
+        private HttpServletResponse response;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            bayeux.start();
+            transport = new JSONTransport(bayeux, null);
+            transport.init();
+            request = mock(HttpServletRequest.class, withSettings().stubOnly());
+            // Not a mock in the measured path, that would dominate the write.
+            response = new HttpServletResponseWrapper(mock(HttpServletResponse.class, withSettings().stubOnly())) {
+                @Override
+                public String getCharacterEncoding() {
+                    return "UTF-8";
+                }
+
+                @Override
+                public void setContentType(String type) {
+                }
+
+                @Override
+                public ServletOutputStream getOutputStream() {
+                    return output;
+                }
+            };
+            messages = new ArrayList<>(messagesPerResponse);
+            for (int i = 0; i < messagesPerResponse; ++i) {
+                ServerMessage.Mutable message = bayeux.newMessage();
+                message.setChannel("/measurements/" + i);
+                message.setId(String.valueOf(i));
+                Map<String, Object> data = new HashMap<>();
+                data.put("realtimeAction", "CREATE");
+                data.put("self", "http://cumulocity.default.svc.cluster.local/measurement/measurements/" + i);
+                data.put("source", "http://cumulocity.default.svc.cluster.local/inventory/managedObjects/" + i);
+                data.put("time", "2020-08-28T09:20:30.186Z");
+                message.setData(data);
+                bayeux.freeze(message);
+                messages.add(message);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bayeux.stop();
+        }
+    }
+
+    /**
+     * Models a container output: small writes are copied into an aggregation
+     * buffer, while writes larger than the buffer are flushed directly.
+     */
+    static class AggregatingOutput extends ServletOutputStream {
+        private final byte[] aggregate;
+        private int position;
+        private long flushes;
+        private long copiedBytes;
+
+        AggregatingOutput(int size) {
+            aggregate = new byte[size];
+        }
+
+        @Override
+        public void write(int b) {
+            if (position == aggregate.length) {
+                flushAggregate();
+            }
+            aggregate[position++] = (byte)b;
+            ++copiedBytes;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (length <= aggregate.length - position) {
+                System.arraycopy(bytes, offset, aggregate, position, length);
+                position += length;
+                copiedBytes += length;
+            } else {
+                flushAggregate();
+                if (length > aggregate.length) {
+                    ++flushes;
+                } else {
+                    System.arraycopy(bytes, offset, aggregate, 0, length);
+                    position = length;
+                    copiedBytes += length;
+                }
+            }
+        }
+
+        private void flushAggregate() {
+            if (position > 0) {
+                ++flushes;
+                position = 0;
+            }
+        }
+
+        void complete(WriteCounters counters) {
+            flushAggregate();
+            counters.flushes += flushes;
+            counters.copiedBytes += copiedBytes;
+            flushes = 0;
+            copiedBytes = 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(javax.servlet.WriteListener writeListener) {
+        }
+    }
+}
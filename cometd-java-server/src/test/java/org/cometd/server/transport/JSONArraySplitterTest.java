@@ -0,0 +1,91 @@
+package org.cometd.server.transport;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class JSONArraySplitterTest {
+
+    private final List<String> elements = new ArrayList<>();
+    private final JSONArraySplitter splitter = new JSONArraySplitter(16) {
+        @Override
+        protected void element(String json) {
+            elements.add(json);
+        }
+    };
+
+    @Test
+    public void shouldSplitArrayFedByteByByte() throws Exception {
+        //Given
+        String first = "{\"channel\":\"/a\",\"data\":{\"text\":\"[}\\\"{]\",\"list\":[1,{\"x\":2}]}}";
+        String second = "{\"channel\":\"/b\",\"data\":\"żółć ✓\"}";
+        byte[] body = (" [ " + first + " ,\n" + second + " ] ").getBytes(StandardCharsets.UTF_8);
+
+        //When
+        for (byte b : body) {
+            splitter.append(new byte[]{b}, 0, 1);
+        }
+
+        //Then
+        assertThat(splitter.finish()).isTrue();
+        assertThat(splitter.isArray()).isTrue();
+        assertThat(elements).containsExactly(first, second);
+    }
+
+    @Test
+    public void shouldSplitSingleObject() throws Exception {
+        //Given
+        byte[] body = "{\"channel\":\"/meta/connect\"}".getBytes(StandardCharsets.UTF_8);
+
+        //When
+        splitter.append(body, 0, body.length);
+
+        //Then
+        assertThat(splitter.finish()).isTrue();
+        assertThat(splitter.isArray()).isFalse();
+        assertThat(elements).containsExactly("{\"channel\":\"/meta/connect\"}");
+    }
+
+    @Test
+    public void shouldAcceptEmptyArrayAndEmptyBody() throws Exception {
+        //Given
+        byte[] body = "[ ]".getBytes(StandardCharsets.UTF_8);
+
+        //When
+        splitter.append(body, 0, body.length);
+
+        //Then
+        assertThat(splitter.finish()).isTrue();
+        assertThat(elements).isEmpty();
+        assertThat(new JSONArraySplitter(16) {
+            @Override
+            protected void element(String json) {
+            }
+        }.finish()).isFalse();
+    }
+
+    @Test
+    public void shouldRejectMalformedStructure() throws Exception {
+        //Given
+        byte[] garbage = "[{\"a\":1} {\"b\":2}]".getBytes(StandardCharsets.UTF_8);
+        byte[] truncated = "[{\"a\":1},{\"b\"".getBytes(StandardCharsets.UTF_8);
+
+        //When
+        //Then
+        assertThatThrownBy(() -> splitter.append(garbage, 0, garbage.length)).isInstanceOf(ParseException.class);
+        JSONArraySplitter other = new JSONArraySplitter(16) {
+            @Override
+            protected void element(String json) {
+            }
+        };
+        other.append(truncated, 0, truncated.length);
+        assertThatThrownBy(other::finish).isInstanceOf(ParseException.class);
+        assertThat(other.getPending()).isEqualTo("{\"b\"");
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>The access log of the WebSocket connections lifecycle: connections opened,
+ * closed and failed.</p>
+ * <p>Connection events only capture their fields in a bounded ring buffer, without
+ * formatting anything, so that a storm of reconnecting clients is not slowed down by
+ * logging on the container threads. A single writer thread drains the ring in batches,
+ * formats the events and writes them to the {@value #LOGGER_NAME} logger, whose output
+ * is forwarded to the access log. When the ring is full the events are dropped and
+ * counted, and the writer reports the number of dropped events.</p>
+ * <p>With a capacity of 0 events are formatted and written synchronously.</p>
+ */
+public class AccessLog {
+    /**
+     * The logger name should be not changed, logs for this particular package are forwarded to access.log
+     */
+    public static final String LOGGER_NAME = "com.cumulocity.websocket.interceptors";
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final Logger _logger = LoggerFactory.getLogger(AccessLog.class);
+    private static final Logger accessLogger = LoggerFactory.getLogger(LOGGER_NAME);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<Event> _events;
+    private final AtomicLongArray _sequences;
+    private final AtomicLong _tail = new AtomicLong();
+    private final LongAdder _logged = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+    private final int _mask;
+    private long _head;
+    private long _reportedDropped;
+    private volatile Thread _writer;
+    private volatile boolean _running;
+
+    /**
+     * @param capacity the number of events the ring buffer holds, rounded up to a power of 2, or 0 to log synchronously
+     */
+    public AccessLog(int capacity) {
+        int size = capacity <= 0 ? 0 : Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        _events = new AtomicReferenceArray<>(size);
+        _sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            _sequences.set(i, i);
+        }
+        _mask = size - 1;
+    }
+
+    public boolean isAsync() {
+        return _events.length() > 0;
+    }
+
+    public void start() {
+        if (isAsync() && !_running) {
+            _running = true;
+            Thread writer = new Thread(this::write, "WebSocketAccessLog");
+            writer.setDaemon(true);
+            _writer = writer;
+            writer.start();
+        }
+    }
+
+    /**
+     * <p>Stops the writer thread, after it has written the events logged so far.</p>
+     */
+    public void stop() {
+        Thread writer = _writer;
+        if (writer == null) {
+            return;
+        }
+        _running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        _writer = null;
+    }
+
+    public void opened(String sessionId, String protocolVersion, Object requestURI, Map<String, Object> userProperties) {
+        // The user properties may change after the connection is opened.
+        log(new Event(Event.OPENED, sessionId, protocolVersion, requestURI, new HashMap<>(userProperties)));
+    }
+
+    public void closed(String sessionId, Object closeReason) {
+        log(new Event(Event.CLOSED, sessionId, closeReason, null, null));
+    }
+
+    public void failed(String sessionId, Object address, Throwable failure) {
+        log(new Event(Event.FAILED, sessionId, address, failure, null));
+    }
+
+    private void log(Event event) {
+        if (!isAsync()) {
+            write(event);
+            return;
+        }
+        while (true) {
+            long position = _tail.get();
+            int index = (int)(position & _mask);
+            long available = _sequences.get(index) - position;
+            if (available == 0) {
+                if (_tail.compareAndSet(position, position + 1)) {
+                    _events.lazySet(index, event);
+                    _sequences.lazySet(index, position + 1);
+                    return;
+                }
+            } else if (available < 0) {
+                // The writer is behind by a whole ring.
+                _dropped.increment();
+                return;
+            }
+        }
+    }
+
+    private void write() {
+        while (true) {
+            boolean running = _running;
+            int written = drain();
+            reportDropped();
+            if (written == 0) {
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private int drain() {
+        int written = 0;
+        // Drain at most one ring at a time, so that dropped events are reported timely.
+        while (written <= _mask) {
+            int index = (int)(_head & _mask);
+            if (_sequences.get(index) != _head + 1) {
+                break;
+            }
+            Event event = _events.get(index);
+            _events.lazySet(index, null);
+            _sequences.lazySet(index, _head + _mask + 1);
+            ++_head;
+            try {
+                write(event);
+            } catch (Throwable x) {
+                _logger.trace("Could not write access log event", x);
+            }
+            ++written;
+        }
+        return written;
+    }
+
+    private void reportDropped() {
+        long dropped = _dropped.sum();
+        if (dropped > _reportedDropped) {
+            _logger.warn("Dropped {} WebSocket access log events, the access log could not keep up", dropped - _reportedDropped);
+            _reportedDropped = dropped;
+        }
+    }
+
+    private void write(Event event) {
+        write(event.format());
+        _logged.increment();
+    }
+
+    /**
+     * @param line the formatted event
+     */
+    protected void write(String line) {
+        accessLogger.info(line);
+    }
+
+    /**
+     * @return the number of events written
+     */
+    public long getLogged() {
+        return _logged.sum();
+    }
+
+    /**
+     * @return the number of events dropped because the ring buffer was full
+     */
+    public long getDropped() {
+        return _dropped.sum();
+    }
+
+    private static class Event {
+        private static final int OPENED = 0;
+        private static final int CLOSED = 1;
+        private static final int FAILED = 2;
+
+        private final int type;
+        private final String sessionId;
+        private final Object field1;
+        private final Object field2;
+        private final Object field3;
+
+        private Event(int type, String sessionId, Object field1, Object field2, Object field3) {
+            this.type = type;
+            this.sessionId = sessionId;
+            this.field1 = field1;
+            this.field2 = field2;
+            this.field3 = field3;
+        }
+
+        private String format() {
+            switch (type) {
+                case OPENED:
+                    return "" +
+                            "WebSocket Client connected\n----------------------------" +
+                            "\nSession ID: " + sessionId +
+                            "\nSession protocol version: " + field1 +
+                            "\nSession request URI: " + field2 +
+                            "\nSession user props: " + field3 +
+                            "\n--------------------------------------";
+                case CLOSED:
+                    return "" +
+                            "WebSocket Client disconnected\n----------------------------" +
+                            "\nSession ID: " + sessionId +
+                            "\nClose reason: " + field1 +
+                            "\n--------------------------------------";
+                default:
+                    return "" +
+                            "WebSocket Error\n----------------------------" +
+                            "\nSession ID: " + sessionId +
+                            "\nAddress: " + field1 +
+                            "\nError: " + ((Throwable)field2).getMessage() +
+                            "\n--------------------------------------";
+            }
+        }
+    }
+}
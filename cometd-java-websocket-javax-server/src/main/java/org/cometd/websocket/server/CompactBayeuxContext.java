@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.net.HttpCookie;
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+
+import org.cometd.bayeux.server.BayeuxContext;
+import org.cometd.websocket.server.common.CookieParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>The context of the WebSocket upgrade request of a connection, kept in the least
+ * memory while the connection is idle.</p>
+ * <p>Headers and parameters are kept in arrays of name and value pairs, rather than in
+ * maps of lists. Header names, the values of the few headers that clients send alike,
+ * like the user agents, and the locales are interned; the values of the other headers,
+ * like the cookies and the credentials, and the parameter values are not, since they
+ * are usually unique to a client.</p>
+ * <p>Once the session is handshaken the context is {@link #release() released}: the
+ * headers, the parameters and the HTTP session are dropped, only the URL, the principal,
+ * the addresses and the locales are kept.</p>
+ */
+class CompactBayeuxContext implements BayeuxContext {
+    private static final Logger _logger = LoggerFactory.getLogger(BayeuxContext.class);
+    private static final String[] EMPTY = new String[0];
+    private static final Set<String> SHARED_HEADERS = new HashSet<>(Arrays.asList(
+            "user-agent", "accept", "origin", "host", "sec-websocket-version", "sec-websocket-extensions"));
+
+    private final ServletContext _context;
+    private final String _url;
+    private final Principal _principal;
+    private final InetSocketAddress _localAddress;
+    private final InetSocketAddress _remoteAddress;
+    private final List<Locale> _locales;
+    private volatile String[] _headers;
+    private volatile String[] _parameters;
+    private volatile HttpSession _session;
+
+    CompactBayeuxContext(ServletContext context, String uri, String query, Map<String, List<String>> headers,
+                         Map<String, List<String>> parameters, Principal principal, HttpSession session,
+                         InetSocketAddress localAddress, InetSocketAddress remoteAddress, List<Locale> locales,
+                         Interner<String> strings, Interner<List<Locale>> localeLists) {
+        _context = context;
+        // The query string may carry credentials.
+        _url = query == null ? strings.intern(uri) : uri + "?" + query;
+        _headers = headers(headers, strings);
+        _parameters = parameters(parameters, strings);
+        _principal = principal;
+        _session = session;
+        _localAddress = localAddress;
+        _remoteAddress = remoteAddress;
+        _locales = localeLists.intern(locales);
+    }
+
+    private static String[] headers(Map<String, List<String>> headers, Interner<String> strings) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            String name = strings.intern(entry.getKey());
+            boolean shared = isShared(name);
+            for (String value : entry.getValue()) {
+                result.add(name);
+                result.add(shared ? strings.intern(value) : value);
+            }
+        }
+        return result.toArray(EMPTY);
+    }
+
+    /**
+     * @return whether the values of the given header are usually sent alike by many clients,
+     * the others may be credentials or unique to a connection and would only fill the interner
+     */
+    private static boolean isShared(String header) {
+        return SHARED_HEADERS.contains(header.toLowerCase(Locale.ENGLISH)) ||
+                header.regionMatches(true, 0, "Accept-", 0, 7);
+    }
+
+    private static String[] parameters(Map<String, List<String>> parameters, Interner<String> strings) {
+        if (parameters == null || parameters.isEmpty()) {
+            return EMPTY;
+        }
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : parameters.entrySet()) {
+            String name = strings.intern(entry.getKey());
+            for (String value : entry.getValue()) {
+                result.add(name);
+                result.add(value);
+            }
+        }
+        return result.toArray(EMPTY);
+    }
+
+    /**
+     * <p>Drops the headers, the parameters and the HTTP session, once the session is handshaken.</p>
+     */
+    void release() {
+        _headers = EMPTY;
+        _parameters = EMPTY;
+        _session = null;
+    }
+
+    @Override
+    public String getURL() {
+        return _url;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return first(_headers, name, true);
+    }
+
+    @Override
+    public List<String> getHeaderValues(String name) {
+        return all(_headers, name, true);
+    }
+
+    @Override
+    public String getParameter(String name) {
+        return first(_parameters, name, false);
+    }
+
+    @Override
+    public List<String> getParameterValues(String name) {
+        return all(_parameters, name, false);
+    }
+
+    private static String first(String[] pairs, String name, boolean ignoreCase) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (matches(pairs[i], name, ignoreCase)) {
+                return pairs[i + 1];
+            }
+        }
+        return null;
+    }
+
+    private static List<String> all(String[] pairs, String name, boolean ignoreCase) {
+        List<String> result = null;
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (matches(pairs[i], name, ignoreCase)) {
+                if (result == null) {
+                    result = new ArrayList<>(1);
+                }
+                result.add(pairs[i + 1]);
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(String key, String name, boolean ignoreCase) {
+        return ignoreCase ? key.equalsIgnoreCase(name) : key.equals(name);
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return _principal;
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+        return false;
+    }
+
+    @Override
+    public String getHttpSessionId() {
+        HttpSession session = _session;
+        return session == null ? null : session.getId();
+    }
+
+    @Override
+    public Object getHttpSessionAttribute(String name) {
+        HttpSession session = _session;
+        return session == null ? null : session.getAttribute(name);
+    }
+
+    @Override
+    public void setHttpSessionAttribute(String name, Object value) {
+        HttpSession session = _session;
+        if (session != null) {
+            session.setAttribute(name, value);
+        }
+    }
+
+    @Override
+    public void invalidateHttpSession() {
+        HttpSession session = _session;
+        if (session != null) {
+            session.invalidate();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return _remoteAddress;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return _localAddress;
+    }
+
+    @Override
+    public List<Locale> getLocales() {
+        return _locales;
+    }
+
+    @Override
+    public String getCookie(String name) {
+        List<String> values = getHeaderValues("Cookie");
+        if (values == null) {
+            return null;
+        }
+        try {
+            for (String value : values) {
+                for (HttpCookie cookie : CookieParser.parse(value)) {
+                    if (cookie.getName().equals(name)) {
+                        return cookie.getValue();
+                    }
+                }
+            }
+        } catch (ParseException x) {
+            _logger.debug("Error parsing cookie " + x.getMessage() + " at index " + x.getErrorOffset(), x);
+        }
+        return null;
+    }
+
+    @Override
+    public Object getRequestAttribute(String name) {
+        return null;
+    }
+
+    @Override
+    public Object getContextAttribute(String name) {
+        return _context.getAttribute(name);
+    }
+
+    @Override
+    public String getContextInitParameter(String name) {
+        return _context.getInitParameter(name);
+    }
+}
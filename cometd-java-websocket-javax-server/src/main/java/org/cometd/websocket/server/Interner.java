@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Shares one instance of the values that connections repeat alike, such as the
+ * header names, the user agents and the locales of the devices of a fleet.</p>
+ * <p>The interner keeps at most its capacity of values; once full, the values not
+ * already interned are returned as is, so that values unique to a connection do
+ * not grow it without bound.</p>
+ *
+ * @param <T> the type of the values
+ */
+class Interner<T> {
+    private final ConcurrentMap<T, T> _values = new ConcurrentHashMap<>();
+    private final int _capacity;
+
+    /**
+     * @param capacity the max number of values interned
+     */
+    Interner(int capacity) {
+        _capacity = capacity;
+    }
+
+    /**
+     * @param value the value to intern, may be null
+     * @return the interned value equal to the given one, or the given one
+     */
+    T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+        T interned = _values.get(value);
+        if (interned != null) {
+            return interned;
+        }
+        if (_values.size() >= _capacity) {
+            return value;
+        }
+        interned = _values.putIfAbsent(value, value);
+        return interned == null ? value : interned;
+    }
+
+    int size() {
+        return _values.size();
+    }
+}
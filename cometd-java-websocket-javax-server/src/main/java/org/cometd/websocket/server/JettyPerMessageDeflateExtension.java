@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import javax.websocket.Session;
+import javax.websocket.server.ServerContainer;
+
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.OpCode;
+import org.eclipse.jetty.websocket.common.WebSocketRemoteEndpoint;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension;
+import org.eclipse.jetty.websocket.common.frames.DataFrame;
+
+/**
+ * <p>The Jetty permessage-deflate extension, with the compression level and the
+ * min size of compressed messages of the {@link PerMessageDeflate} configuration.</p>
+ * <p>Messages below the min size are sent uncompressed, which RFC 7692 allows per
+ * message; they bypass the compression queue, which is safe because the transport
+ * writes one frame at a time.</p>
+ * <p>Frames {@link #send(Session, byte[], boolean, Callback) already compressed} by
+ * {@link PerMessageDeflate} bypass the queue as well, only marked as compressed.</p>
+ */
+public class JettyPerMessageDeflateExtension extends PerMessageDeflateExtension {
+    private int _level = Deflater.DEFAULT_COMPRESSION;
+    private int _minSize;
+    private String _clientMaxWindowBits;
+    private Deflater _deflater;
+
+    /**
+     * <p>Replaces the permessage-deflate extension of the given container.</p>
+     *
+     * @param container the WebSocket container
+     * @return whether the container is a Jetty container
+     */
+    static boolean install(ServerContainer container) {
+        if (!(container instanceof org.eclipse.jetty.websocket.jsr356.server.ServerContainer)) {
+            return false;
+        }
+        ((org.eclipse.jetty.websocket.jsr356.server.ServerContainer) container).getWebSocketServerFactory()
+                .getExtensionFactory().register(PerMessageDeflate.NAME, JettyPerMessageDeflateExtension.class);
+        return true;
+    }
+
+    /**
+     * <p>Sends a frame already compressed, without server context takeover.</p>
+     *
+     * @param wsSession the WebSocket session of a container where the extension is installed
+     * @param payload   the compressed payload
+     * @param binary    whether the frame is binary or text
+     * @param callback  the callback to complete when the frame is written
+     */
+    static void send(Session wsSession, byte[] payload, boolean binary, Callback callback) {
+        DeflatedFrame frame = new DeflatedFrame(binary ? OpCode.BINARY : OpCode.TEXT);
+        frame.setPayload(ByteBuffer.wrap(payload));
+        ((WebSocketRemoteEndpoint) ((WebSocketSession) wsSession).getRemote()).uncheckedSendFrame(frame, new WriteCallback() {
+            @Override
+            public void writeSuccess() {
+                callback.succeeded();
+            }
+
+            @Override
+            public void writeFailed(Throwable failure) {
+                callback.failed(failure);
+            }
+        });
+    }
+
+    @Override
+    public void setConfig(ExtensionConfig config) {
+        ExtensionConfig standard = new ExtensionConfig(config.getName());
+        for (String key : config.getParameterKeys()) {
+            String value = config.getParameter(key, (String) null);
+            switch (key) {
+                case PerMessageDeflate.LEVEL:
+                    _level = Integer.parseInt(value);
+                    break;
+                case PerMessageDeflate.MIN_SIZE:
+                    _minSize = Integer.parseInt(value);
+                    break;
+                case PerMessageDeflate.CLIENT_MAX_WINDOW_BITS:
+                    _clientMaxWindowBits = value;
+                    standard.setParameter(key, value);
+                    break;
+                default:
+                    standard.setParameter(key, value);
+                    break;
+            }
+        }
+        super.setConfig(standard);
+    }
+
+    @Override
+    public ExtensionConfig getConfig() {
+        ExtensionConfig config = super.getConfig();
+        if (_clientMaxWindowBits == null || config == null) {
+            return config;
+        }
+        // Jetty drops the window bits, but the inflater supports any client window.
+        ExtensionConfig result = new ExtensionConfig(config);
+        result.setParameter(PerMessageDeflate.CLIENT_MAX_WINDOW_BITS, _clientMaxWindowBits);
+        return result;
+    }
+
+    @Override
+    public Deflater getDeflater() {
+        Deflater deflater = super.getDeflater();
+        if (_deflater == null) {
+            _deflater = deflater;
+            deflater.setLevel(_level);
+        }
+        return deflater;
+    }
+
+    @Override
+    public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode) {
+        if (frame instanceof DeflatedFrame) {
+            nextOutgoingFrame(frame, callback, batchMode);
+            return;
+        }
+        if (_minSize > 0 && frame.isFin() && frame.getPayloadLength() < _minSize &&
+                (frame.getOpCode() == OpCode.TEXT || frame.getOpCode() == OpCode.BINARY)) {
+            nextOutgoingFrame(frame, callback, batchMode);
+            return;
+        }
+        super.outgoingFrame(frame, callback, batchMode);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        Deflater deflater = _deflater;
+        if (deflater != null) {
+            // The deflater goes back to the pool shared with other endpoints.
+            deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+            _deflater = null;
+        }
+        super.doStop();
+    }
+
+    private static class DeflatedFrame extends DataFrame {
+        private DeflatedFrame(byte opcode) {
+            super(opcode);
+            setRsv1(true);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.security.Principal;
+
+import javax.websocket.Session;
+
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.common.UpgradeRequestAdapter;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+
+/**
+ * <p>Releases the upgrade request that Jetty keeps for the lifetime of a WebSocket
+ * session, a copy of the servlet request with its headers, parameters, attributes,
+ * cookies and locales.</p>
+ */
+final class JettyUpgradeRequests {
+    private JettyUpgradeRequests() {
+    }
+
+    /**
+     * <p>Replaces the upgrade request of the given session with one that only keeps
+     * the request URI and the principal.</p>
+     *
+     * @param wsSession the WebSocket session
+     * @return whether the session is a Jetty session
+     */
+    static boolean release(Session wsSession) {
+        if (!(wsSession instanceof WebSocketSession)) {
+            return false;
+        }
+        WebSocketSession session = (WebSocketSession) wsSession;
+        UpgradeRequest request = session.getUpgradeRequest();
+        if (request != null && !(request instanceof ReleasedUpgradeRequest)) {
+            session.setUpgradeRequest(new ReleasedUpgradeRequest(request));
+        }
+        return true;
+    }
+
+    private static class ReleasedUpgradeRequest extends UpgradeRequestAdapter {
+        private final Principal principal;
+
+        private ReleasedUpgradeRequest(UpgradeRequest request) {
+            super(request.getRequestURI());
+            principal = request.getUserPrincipal();
+        }
+
+        @Override
+        public Principal getUserPrincipal() {
+            return principal;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.util.function.Consumer;
+
+/**
+ * <p>Splits the fragments of a WebSocket text message, a JSON array of Bayeux messages,
+ * at the boundaries of the Bayeux messages.</p>
+ * <p>The complete messages of each fragment are passed to the parser as a JSON array, so
+ * that a large batch is processed while it is received, and only the Bayeux message
+ * spanning fragments is buffered, up to the max message size.</p>
+ * <p>The splitter only tracks the nesting of objects and strings; the Bayeux messages are
+ * validated by the parser. Text that is not an array of objects is passed as is to the
+ * parser, that fails to parse it as it would fail to parse the whole message.</p>
+ * <p>This class is not thread safe, like the fragments of a message are delivered.</p>
+ */
+class MessageSplitter {
+    private final int _maxMessageSize;
+    private final StringBuilder _message = new StringBuilder();
+    private int _elementDepth = -1;
+    private int _depth;
+    private boolean _string;
+    private boolean _escape;
+    private boolean _complete;
+    private boolean _malformed;
+
+    /**
+     * @param maxMessageSize the max chars of a Bayeux message
+     */
+    MessageSplitter(int maxMessageSize) {
+        _maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * @param fragment the fragment of the text message
+     * @param last     whether the fragment is the last of the text message
+     * @param parser   the parser of the complete messages of the fragment
+     * @throws IllegalStateException if a Bayeux message exceeds the max message size
+     */
+    void split(String fragment, boolean last, Consumer<String> parser) {
+        try {
+            if (!_malformed) {
+                split(fragment, parser);
+            }
+            if (last && !_malformed && (_depth > 0 || _elementDepth < 0 || !_complete)) {
+                // Truncated or empty, let the parser report it.
+                parser.accept(_message.toString());
+            }
+        } finally {
+            if (last) {
+                reset();
+            }
+        }
+    }
+
+    private void split(String fragment, Consumer<String> parser) {
+        StringBuilder batch = null;
+        int start = -1;
+        int length = fragment.length();
+        for (int i = 0; i < length; ++i) {
+            char c = fragment.charAt(i);
+            if (_string) {
+                if (_escape) {
+                    _escape = false;
+                } else if (c == '\\') {
+                    _escape = true;
+                } else if (c == '"') {
+                    _string = false;
+                }
+                continue;
+            }
+            if (inMessage()) {
+                if (c == '"') {
+                    _string = true;
+                } else if (c == '{' || c == '[') {
+                    ++_depth;
+                } else if (c == '}' || c == ']') {
+                    if (--_depth == _elementDepth) {
+                        batch = message(fragment, start < 0 ? 0 : start, i + 1, batch);
+                        start = -1;
+                        _complete = _elementDepth == 0;
+                    }
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            if (c == '{' && !_complete && (_elementDepth == 1 || _elementDepth < 0)) {
+                if (_elementDepth < 0) {
+                    // A single message, not in an array.
+                    _elementDepth = 0;
+                }
+                start = i;
+                ++_depth;
+            } else if (c == '[' && _elementDepth < 0) {
+                _elementDepth = 1;
+                _depth = 1;
+            } else if (c == ',' && _elementDepth == 1 && _depth == 1) {
+                // Separates Bayeux messages.
+            } else if (c == ']' && _elementDepth == 1 && _depth == 1) {
+                _depth = 0;
+                _complete = true;
+            } else {
+                _malformed = true;
+                flush(batch, parser);
+                parser.accept(_message.append(fragment, i, length).toString());
+                return;
+            }
+        }
+        if (inMessage()) {
+            // The Bayeux message continues in the next fragment.
+            append(fragment, start < 0 ? 0 : start, length);
+        }
+        flush(batch, parser);
+    }
+
+    private boolean inMessage() {
+        return _elementDepth >= 0 && _depth > _elementDepth;
+    }
+
+    private StringBuilder message(String fragment, int start, int end, StringBuilder batch) {
+        if (batch == null) {
+            batch = new StringBuilder(end - start + _message.length() + 2).append('[');
+        } else {
+            batch.append(',');
+        }
+        if (_message.length() > 0) {
+            append(fragment, start, end);
+            batch.append(_message);
+            _message.setLength(0);
+        } else {
+            checkSize(end - start);
+            batch.append(fragment, start, end);
+        }
+        return batch;
+    }
+
+    private void append(String fragment, int start, int end) {
+        checkSize(_message.length() + end - start);
+        _message.append(fragment, start, end);
+    }
+
+    private void checkSize(int size) {
+        if (size > _maxMessageSize) {
+            _malformed = true;
+            throw new IllegalStateException("Message exceeds " + _maxMessageSize + " chars");
+        }
+    }
+
+    private void flush(StringBuilder batch, Consumer<String> parser) {
+        if (batch != null) {
+            parser.accept(batch.append(']').toString());
+        }
+    }
+
+    private void reset() {
+        _message.setLength(0);
+        _elementDepth = -1;
+        _depth = 0;
+        _string = false;
+        _escape = false;
+        _complete = false;
+        _malformed = false;
+    }
+}
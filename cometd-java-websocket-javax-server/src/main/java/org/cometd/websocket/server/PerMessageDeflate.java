@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2008-2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import javax.websocket.Extension;
+
+import org.cometd.server.WeakMessage;
+import org.eclipse.jetty.util.compression.CompressionPool;
+import org.eclipse.jetty.util.compression.DeflaterPool;
+
+/**
+ * <p>The configuration of the permessage-deflate extension (RFC 7692), applied when
+ * the extension offered by a client is negotiated.</p>
+ * <p>Context takeover and the client window are negotiated with the standard parameters.
+ * The compression level and the min size of compressed messages are not negotiated with
+ * the client: they are passed to the {@link JettyPerMessageDeflateExtension} as private
+ * parameters, that it removes from the response, so they are only sent when the
+ * container installed it.</p>
+ * <p>Without server context takeover each message is compressed on its own, so a
+ * message delivered to many sessions can be {@link #deflate(WeakMessage) compressed}
+ * once and shared: a raw deflate block ends on a byte boundary when flushed with
+ * {@link Deflater#SYNC_FLUSH}, so the blocks of the messages and of the JSON array
+ * punctuation, compressed separately, concatenate into the {@link #frame(List) frame}.</p>
+ */
+class PerMessageDeflate {
+    static final String NAME = "permessage-deflate";
+    static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    static final String LEVEL = "x-cometd-level";
+    static final String MIN_SIZE = "x-cometd-min-size";
+    static final int MAX_WINDOW_BITS = 15;
+    // The empty stored block of the sync flush, that is not sent (RFC 7692, 7.2.1).
+    private static final int TAIL_LENGTH = 4;
+
+    private final int _level;
+    private final int _minSize;
+    private final boolean _contextTakeover;
+    private final int _clientMaxWindowBits;
+    private final boolean _tuned;
+    private final boolean _shared;
+    private final DeflaterPool _deflaters;
+    private final byte[] _begin;
+    private final byte[] _separator;
+    private final byte[] _end;
+
+    /**
+     * @param level               the compression level, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param minSize             the bytes of the messages below which messages are not compressed
+     * @param contextTakeover     whether the compression context is kept between messages
+     * @param clientMaxWindowBits the max window bits requested to the clients that support it
+     * @param tuned               whether the container supports the level and the min size
+     * @param shared              whether the messages are compressed once for the sessions without server context takeover
+     */
+    PerMessageDeflate(int level, int minSize, boolean contextTakeover, int clientMaxWindowBits, boolean tuned, boolean shared) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid deflate level " + level);
+        }
+        if (clientMaxWindowBits < 8 || clientMaxWindowBits > MAX_WINDOW_BITS) {
+            throw new IllegalArgumentException("Invalid deflate client window bits " + clientMaxWindowBits);
+        }
+        _level = level;
+        _minSize = minSize;
+        _contextTakeover = contextTakeover;
+        _clientMaxWindowBits = clientMaxWindowBits;
+        _tuned = tuned;
+        // The shared frames are sent by the Jetty extension.
+        _shared = shared && tuned;
+        if (_shared) {
+            _deflaters = new DeflaterPool(CompressionPool.INFINITE_CAPACITY, level, true);
+            _begin = deflate(new byte[]{'['});
+            _separator = deflate(new byte[]{','});
+            byte[] end = deflate(new byte[]{']'});
+            _end = Arrays.copyOf(end, end.length - TAIL_LENGTH);
+        } else {
+            _deflaters = null;
+            _begin = _separator = _end = null;
+        }
+    }
+
+    int getMinSize() {
+        return _minSize;
+    }
+
+    /**
+     * @param extensions the extensions negotiated by a session
+     * @return whether the session is sent the {@link #frame(List) shared frames}
+     */
+    boolean isShared(List<Extension> extensions) {
+        if (!_shared) {
+            return false;
+        }
+        for (Extension extension : extensions) {
+            if (NAME.equals(extension.getName())) {
+                for (Extension.Parameter parameter : extension.getParameters()) {
+                    if (SERVER_NO_CONTEXT_TAKEOVER.equals(parameter.getName())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param message the message delivered to sessions
+     * @return the message compressed once for all the sessions
+     */
+    Deflated deflate(WeakMessage message) {
+        return message.getEncoded(this, m -> {
+            byte[] json = m.getJSONBytes();
+            return new Deflated(json.length, deflate(json));
+        });
+    }
+
+    /**
+     * @param messages the compressed messages
+     * @return the payload of the compressed frame of the JSON array of the messages
+     */
+    byte[] frame(List<Deflated> messages) {
+        int length = _begin.length + _end.length + (messages.size() - 1) * _separator.length;
+        for (Deflated message : messages) {
+            length += message.bytes.length;
+        }
+        byte[] frame = new byte[length];
+        int offset = copy(_begin, frame, 0);
+        for (int i = 0; i < messages.size(); ++i) {
+            if (i > 0) {
+                offset = copy(_separator, frame, offset);
+            }
+            offset = copy(messages.get(i).bytes, frame, offset);
+        }
+        copy(_end, frame, offset);
+        return frame;
+    }
+
+    private static int copy(byte[] bytes, byte[] frame, int offset) {
+        System.arraycopy(bytes, 0, frame, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    byte[] deflate(byte[] input) {
+        Deflater deflater = _deflaters.acquire();
+        try {
+            deflater.setInput(input);
+            byte[] output = new byte[input.length / 2 + 64];
+            int length = 0;
+            while (true) {
+                length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+                if (length < output.length) {
+                    return Arrays.copyOf(output, length);
+                }
+                // Full output buffer, the flush may not be complete.
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+        } finally {
+            _deflaters.release(deflater);
+        }
+    }
+
+    /**
+     * @param offer the permessage-deflate offer of the client
+     * @return the permessage-deflate to accept
+     */
+    Extension negotiate(Extension offer) {
+        List<Extension.Parameter> parameters = new ArrayList<>();
+        boolean serverNoContextTakeover = !_contextTakeover;
+        boolean clientNoContextTakeover = !_contextTakeover;
+        String clientMaxWindowBits = null;
+        for (Extension.Parameter parameter : offer.getParameters()) {
+            switch (parameter.getName()) {
+                case SERVER_NO_CONTEXT_TAKEOVER:
+                    serverNoContextTakeover = true;
+                    break;
+                case CLIENT_NO_CONTEXT_TAKEOVER:
+                    clientNoContextTakeover = true;
+                    break;
+                case CLIENT_MAX_WINDOW_BITS:
+                    clientMaxWindowBits = parameter.getValue() == null ? "" : parameter.getValue();
+                    break;
+                default:
+                    // The server window cannot be limited, the JDK deflater always uses 15 bits.
+                    break;
+            }
+        }
+        if (serverNoContextTakeover) {
+            parameters.add(new Parameter(SERVER_NO_CONTEXT_TAKEOVER, null));
+        }
+        if (clientNoContextTakeover) {
+            parameters.add(new Parameter(CLIENT_NO_CONTEXT_TAKEOVER, null));
+        }
+        if (_tuned) {
+            // Only clients offering client_max_window_bits may be asked to limit their window.
+            if (clientMaxWindowBits != null && _clientMaxWindowBits < MAX_WINDOW_BITS) {
+                int bits = clientMaxWindowBits.isEmpty() ? _clientMaxWindowBits : Math.min(_clientMaxWindowBits, Integer.parseInt(clientMaxWindowBits.trim()));
+                parameters.add(new Parameter(CLIENT_MAX_WINDOW_BITS, String.valueOf(bits)));
+            }
+            if (_level != Deflater.DEFAULT_COMPRESSION) {
+                parameters.add(new Parameter(LEVEL, String.valueOf(_level)));
+            }
+            if (_minSize > 0) {
+                parameters.add(new Parameter(MIN_SIZE, String.valueOf(_minSize)));
+            }
+        }
+        return new DeflateExtension(parameters);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[level=%d,minSize=%d,contextTakeover=%b,clientMaxWindowBits=%d,tuned=%b,shared=%b]",
+                NAME, _level, _minSize, _contextTakeover, _clientMaxWindowBits, _tuned, _shared);
+    }
+
+    /**
+     * <p>A message compressed with a sync flush.</p>
+     */
+    static class Deflated {
+        private final int length;
+        private final byte[] bytes;
+
+        private Deflated(int length, byte[] bytes) {
+            this.length = length;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the bytes of the uncompressed message
+         */
+        int getLength() {
+            return length;
+        }
+    }
+
+    private static class DeflateExtension implements Extension {
+        private final List<Extension.Parameter> parameters;
+
+        private DeflateExtension(List<Extension.Parameter> parameters) {
+            this.parameters = parameters;
+        }
+
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public List<Extension.Parameter> getParameters() {
+            return parameters;
+        }
+    }
+
+    private static class Parameter implements Extension.Parameter {
+        private final String name;
+        private final String value;
+
+        private Parameter(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+    }
+}
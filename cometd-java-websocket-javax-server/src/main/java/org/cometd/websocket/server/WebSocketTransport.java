@@ -19,13 +19,15 @@ import org.cometd.bayeux.server.BayeuxContext;
 import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
 import org.cometd.server.AbstractServerTransport;
+import org.cometd.server.BayeuxMetrics;
 import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.ServerSessionImpl;
+import org.cometd.server.WeakMessage;
+import org.cometd.server.transport.JSONArrayFrame;
 import org.cometd.websocket.server.common.AbstractBayeuxContext;
 import org.cometd.websocket.server.common.AbstractWebSocketTransport;
 import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.component.LifeCycle;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
@@ -35,19 +37,95 @@ import javax.websocket.server.ServerContainer;
 import javax.websocket.server.ServerEndpointConfig;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
-
     /**
-     * The logger package should be not changed, logs for this particular package are forwarded to access.log
+     * The WebSocket subprotocol that clients request to receive messages in binary frames,
+     * disabled if not set.
+     */
+    public static final String BINARY_PROTOCOL_OPTION = "binaryProtocol";
+    /**
+     * The bytes of queued messages, exceeded by at most one message, coalesced in a frame instead of
+     * {@link #MESSAGES_PER_FRAME_OPTION messages per frame}; 0 to not coalesce.
+     */
+    public static final String COALESCE_FRAME_BYTES_OPTION = "coalesceFrameBytes";
+    /**
+     * The time in milliseconds after which a connection still writing a frame, while
+     * more messages are queued for it, is closed as a slow consumer; 0 to never close it.
+     */
+    public static final String MAX_WRITE_STALL_OPTION = "maxWriteStall";
+    /**
+     * The number of connection events the {@link AccessLog access log} buffers while they
+     * are written; 0 to write them synchronously.
+     */
+    public static final String ACCESS_LOG_CAPACITY_OPTION = "accessLogCapacity";
+    /**
+     * Whether text messages are processed as their frames are received, instead of once received whole.
+     * The {@link #MAX_MESSAGE_SIZE_OPTION max message size} then limits each frame and each Bayeux message,
+     * but not the batch of Bayeux messages of a text message.
+     */
+    public static final String PARTIAL_MESSAGES_OPTION = "partialMessages";
+    /**
+     * Whether the permessage-deflate extension is negotiated with the clients that offer it.
+     */
+    public static final String DEFLATE_OPTION = "deflate";
+    /**
+     * The permessage-deflate compression level, from 0 to 9; -1 for the default level.
+     */
+    public static final String DEFLATE_LEVEL_OPTION = "deflateLevel";
+    /**
+     * The bytes of the messages below which messages are sent uncompressed; 0 to compress all messages.
      */
-    private static final Logger accessLogger = LoggerFactory.getLogger("com.cumulocity.websocket.interceptors");
+    public static final String DEFLATE_MIN_SIZE_OPTION = "deflateMinSize";
+    /**
+     * Whether the compression context is kept between messages, in both directions.
+     */
+    public static final String DEFLATE_CONTEXT_TAKEOVER_OPTION = "deflateContextTakeover";
+    /**
+     * The window bits, from 8 to 15, that clients supporting it are asked to compress with.
+     */
+    public static final String DEFLATE_CLIENT_MAX_WINDOW_BITS_OPTION = "deflateClientMaxWindowBits";
+    /**
+     * Whether the messages delivered to many sessions are compressed once, for the sessions that
+     * negotiated permessage-deflate without server context takeover, instead of once per session.
+     */
+    public static final String DEFLATE_SHARED_OPTION = "deflateShared";
+    /**
+     * Whether the context of the upgrade requests is kept compact, with the header and locale values
+     * interned, and released once the session is handshaken: then the headers, the parameters and the
+     * HTTP session are no longer available to the messages that follow the handshake, and Jetty only
+     * keeps the URI and the principal of the upgrade request.
+     */
+    public static final String COMPACT_SESSIONS_OPTION = "compactSessions";
+    private static final int INTERNER_CAPACITY = 4096;
+    private static final String LOCALES_PROPERTY = "javax.websocket.upgrade.locales";
+    private static final Pattern CLIENT_ID = Pattern.compile("\"clientId\"\\s*:\\s*\"([^\"]+)\"");
+
+    private String _binaryProtocol;
+    private int _coalesceFrameBytes;
+    private long _maxWriteStall;
+    private BayeuxMetrics.TransportMetrics _metrics;
+    private AccessLog _accessLog;
+    private boolean _partialMessages;
+    private int _maxMessageSize;
+    private PerMessageDeflate _deflate;
+    private boolean _compactSessions;
+    private final Interner<String> _strings = new Interner<>(INTERNER_CAPACITY);
+    private final Interner<List<Locale>> _locales = new Interner<>(INTERNER_CAPACITY);
 
     public WebSocketTransport(BayeuxServerImpl bayeux) {
         super(bayeux);
@@ -75,11 +153,30 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
         // JSR 356 does not support a input buffer size option
         int maxMessageSize = getOption(MAX_MESSAGE_SIZE_OPTION, container.getDefaultMaxTextMessageBufferSize());
         container.setDefaultMaxTextMessageBufferSize(maxMessageSize);
+        _maxMessageSize = maxMessageSize;
         long idleTimeout = getOption(IDLE_TIMEOUT_OPTION, container.getDefaultMaxSessionIdleTimeout());
         container.setDefaultMaxSessionIdleTimeout(idleTimeout);
 
+        _binaryProtocol = (String) getOption(BINARY_PROTOCOL_OPTION);
+        _coalesceFrameBytes = getOption(COALESCE_FRAME_BYTES_OPTION, 0);
+        _maxWriteStall = getOption(MAX_WRITE_STALL_OPTION, 0L);
+        _partialMessages = getOption(PARTIAL_MESSAGES_OPTION, false);
+        _deflate = newPerMessageDeflate(container);
+        _compactSessions = getOption(COMPACT_SESSIONS_OPTION, false);
+        _metrics = getBayeux().getMetrics().transport(getName());
+        _accessLog = newAccessLog(getOption(ACCESS_LOG_CAPACITY_OPTION, AccessLog.DEFAULT_CAPACITY));
+        _accessLog.start();
         String protocol = getProtocol();
-        List<String> protocols = protocol == null ? null : Collections.singletonList(protocol);
+        List<String> protocols = null;
+        if (protocol != null || _binaryProtocol != null) {
+            protocols = new ArrayList<>(2);
+            if (protocol != null) {
+                protocols.add(protocol);
+            }
+            if (_binaryProtocol != null) {
+                protocols.add(_binaryProtocol);
+            }
+        }
 
         for (String mapping : normalizeURLMapping(cometdURLMapping)) {
             ServerEndpointConfig config = ServerEndpointConfig.Builder.create(WebSocketScheduler.class, mapping)
@@ -104,9 +201,47 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
                 _logger.trace("", x);
             }
         }
+        AccessLog accessLog = _accessLog;
+        if (accessLog != null) {
+            accessLog.stop();
+        }
         super.destroy();
     }
 
+    private PerMessageDeflate newPerMessageDeflate(ServerContainer container) {
+        if (!getOption(DEFLATE_OPTION, true)) {
+            return null;
+        }
+        int level = getOption(DEFLATE_LEVEL_OPTION, Deflater.DEFAULT_COMPRESSION);
+        int minSize = getOption(DEFLATE_MIN_SIZE_OPTION, 0);
+        int clientMaxWindowBits = getOption(DEFLATE_CLIENT_MAX_WINDOW_BITS_OPTION, PerMessageDeflate.MAX_WINDOW_BITS);
+        boolean shared = getOption(DEFLATE_SHARED_OPTION, false);
+        boolean tuned = false;
+        if (level != Deflater.DEFAULT_COMPRESSION || minSize > 0 || clientMaxWindowBits < PerMessageDeflate.MAX_WINDOW_BITS || shared) {
+            try {
+                tuned = JettyPerMessageDeflateExtension.install(container);
+            } catch (LinkageError x) {
+                _logger.trace("", x);
+            }
+            if (!tuned) {
+                _logger.warn("The WebSocket container does not support the permessage-deflate level, min size, window bits and shared frames");
+            }
+        }
+        PerMessageDeflate deflate = new PerMessageDeflate(level, minSize, getOption(DEFLATE_CONTEXT_TAKEOVER_OPTION, true), clientMaxWindowBits, tuned, shared);
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Negotiating {}", deflate);
+        }
+        return deflate;
+    }
+
+    protected AccessLog newAccessLog(int capacity) {
+        return new AccessLog(capacity);
+    }
+
+    public AccessLog getAccessLog() {
+        return _accessLog;
+    }
+
     protected boolean checkOrigin(String origin) {
         return true;
     }
@@ -120,22 +255,162 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
         }
 
         // Async write.
-        wsSession.getAsyncRemote().sendText(data, result -> {
-            Throwable failure = result.getException();
-            if (failure == null) {
-                callback.succeeded();
-            } else {
-                handleException(wsSession, session, failure);
-                callback.failed(failure);
+        wsSession.getAsyncRemote().sendText(data, result -> complete(wsSession, session, result.getException(), callback));
+    }
+
+    /**
+     * <p>Sends the already serialized UTF-8 JSON of the messages in a binary frame,
+     * without decoding it to a String and encoding it back.</p>
+     *
+     * @param wsSession the WebSocket session
+     * @param session   the Bayeux session
+     * @param frame     the JSON of the messages
+     * @param callback  the callback to complete when the frame is written
+     */
+    protected void send(final Session wsSession, final ServerSession session, JSONArrayFrame frame, final Callback callback) {
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Sending {} messages, {} bytes", frame.getCount(), frame.getLength() + 2);
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(frame.toBytes(JSONArrayFrame.ARRAY_BEGIN, JSONArrayFrame.ARRAY_END));
+        wsSession.getAsyncRemote().sendBinary(data, result -> complete(wsSession, session, result.getException(), callback));
+    }
+
+    /**
+     * <p>Sends the messages compressed once for all the sessions, in a frame marked as
+     * compressed by the permessage-deflate extension.</p>
+     *
+     * @param wsSession the WebSocket session
+     * @param session   the Bayeux session
+     * @param payload   the compressed JSON of the messages
+     * @param binary    whether the frame is binary or text
+     * @param callback  the callback to complete when the frame is written
+     */
+    protected void send(final Session wsSession, final ServerSession session, byte[] payload, boolean binary, final Callback callback) {
+        if (_logger.isDebugEnabled()) {
+            _logger.debug("Sending {} compressed bytes", payload.length);
+        }
+
+        JettyPerMessageDeflateExtension.send(wsSession, payload, binary, new Callback() {
+            @Override
+            public void succeeded() {
+                complete(wsSession, session, null, callback);
+            }
+
+            @Override
+            public void failed(Throwable failure) {
+                complete(wsSession, session, failure, callback);
             }
         });
     }
 
+    private void complete(Session wsSession, ServerSession session, Throwable failure, Callback callback) {
+        if (failure == null) {
+            callback.succeeded();
+        } else {
+            handleException(wsSession, session, failure);
+            callback.failed(failure);
+        }
+    }
+
+    /**
+     * @param messages the messages to serialize, the serialized ones are removed from the list
+     * @param size     the maximum number of messages to serialize
+     * @return the UTF-8 JSON of the messages
+     */
+    protected JSONArrayFrame frame(List<ServerMessage> messages, int size) {
+        int maxCount = maxCount(messages, size);
+        int maxBytes = maxBytes();
+        JSONArrayFrame frame = new JSONArrayFrame(maxCount);
+        int count = 0;
+        while (count < maxCount && frame.getLength() < maxBytes) {
+            frame.add(toJSONBytes(messages.get(count++), "UTF-8"));
+        }
+        messages.subList(0, count).clear();
+        return frame;
+    }
+
+    /**
+     * @param messages the messages to serialize, the serialized ones are removed from the list
+     * @param size     the maximum number of messages to serialize
+     * @return the JSON of the messages
+     */
+    protected String text(List<ServerMessage> messages, int size) {
+        int maxCount = maxCount(messages, size);
+        int maxBytes = maxBytes();
+        StringBuilder builder = new StringBuilder(maxCount * 4 * 48);
+        builder.append('[');
+        int count = 0;
+        while (count < maxCount && builder.length() < maxBytes) {
+            if (count > 0) {
+                builder.append(',');
+            }
+            builder.append(messages.get(count++).getJSON());
+        }
+        builder.append(']');
+        messages.subList(0, count).clear();
+        return builder.toString();
+    }
+
+    /**
+     * @param messages the messages to compress, the compressed ones are removed from the list
+     * @param size     the maximum number of messages to compress
+     * @return the messages compressed once for all the sessions, or null if they are not
+     * all shared or are below the min size, and the list is left untouched
+     */
+    private SharedFrame shared(List<ServerMessage> messages, int size) {
+        int maxCount = maxCount(messages, size);
+        int maxBytes = maxBytes();
+        List<PerMessageDeflate.Deflated> deflated = new ArrayList<>(maxCount);
+        // The brackets of the JSON array.
+        int length = 2;
+        while (deflated.size() < maxCount && length < maxBytes) {
+            ServerMessage message = messages.get(deflated.size());
+            if (!(message instanceof WeakMessage)) {
+                return null;
+            }
+            PerMessageDeflate.Deflated next = _deflate.deflate((WeakMessage) message);
+            length += next.getLength() + (deflated.isEmpty() ? 0 : 1);
+            deflated.add(next);
+        }
+        if (length < _deflate.getMinSize()) {
+            return null;
+        }
+        messages.subList(0, deflated.size()).clear();
+        return new SharedFrame(_deflate.frame(deflated), length);
+    }
+
+    private int maxCount(List<ServerMessage> messages, int size) {
+        return _coalesceFrameBytes > 0 ? messages.size() : Math.min(size, messages.size());
+    }
+
+    private int maxBytes() {
+        return _coalesceFrameBytes > 0 ? _coalesceFrameBytes : Integer.MAX_VALUE;
+    }
+
+    private static class SharedFrame {
+        private final byte[] payload;
+        private final int length;
+
+        private SharedFrame(byte[] payload, int length) {
+            this.payload = payload;
+            this.length = length;
+        }
+    }
+
     private class WebSocketScheduler extends Endpoint implements AbstractServerTransport.Scheduler, MessageHandler.Whole<String> {
         private final AbstractWebSocketScheduler delegate;
         private volatile Session _wsSession;
-
-        private WebSocketScheduler(WebSocketContext context) {
+        private volatile ServerSession _session;
+        private volatile boolean _binary;
+        private volatile boolean _shared;
+        private volatile boolean _released;
+        private final AtomicBoolean _flushPending = new AtomicBoolean();
+        private volatile boolean _writing;
+        private volatile long _writeNanos;
+        private volatile boolean _slowConsumer;
+
+        private WebSocketScheduler(BayeuxContext context) {
             delegate = new AbstractWebSocketScheduler(context) {
                 @Override
                 protected void close(final int code, String reason) {
@@ -156,6 +431,35 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
                     schedule(_wsSession, timeout, expiredConnectReply);
                 }
 
+                @Override
+                protected void send(Session wsSession, ServerSessionImpl session, boolean startInterval, List<ServerMessage> queue, List<ServerMessage> replies) {
+                    _session = session;
+                    if (context instanceof CompactBayeuxContext && session != null && session.isHandshook()) {
+                        // The handshake has been authenticated.
+                        release(wsSession, (CompactBayeuxContext) context);
+                    }
+                    super.send(wsSession, session, startInterval, queue, replies);
+                }
+
+                @Override
+                protected void send(Session wsSession, List<ServerMessage> messages, int size, Callback callback) {
+                    if (messages.isEmpty()) {
+                        callback.succeeded();
+                        return;
+                    }
+                    SharedFrame shared = _shared ? shared(messages, size) : null;
+                    if (shared != null) {
+                        WebSocketTransport.this.send(wsSession, _session, shared.payload, _binary, new WriteCallback(shared.length, callback));
+                    } else if (_binary) {
+                        JSONArrayFrame frame = frame(messages, size);
+                        WebSocketTransport.this.send(wsSession, _session, frame, new WriteCallback(frame.getLength() + 2, callback));
+                    } else {
+                        String data = text(messages, size);
+                        // The length in chars approximates the UTF-8 bytes, without encoding twice.
+                        WebSocketTransport.this.send(wsSession, _session, data, new WriteCallback(data.length(), callback));
+                    }
+                }
+
                 @Override
                 public void onError(Throwable failure) {
                     BayeuxContext context = getContext();
@@ -165,37 +469,41 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
                                 "WebSocket Timeout" : "WebSocket Error";
                         _logger.debug(failureType + ", Address: " + address, failure);
                     }
-                    accessLogger.info("" +
-                            "WebSocket Error\n----------------------------" +
-                            "\nSession ID: " + (_wsSession != null ? _wsSession.getId() : null) +
-                            "\nAddress: " + address +
-                            "\nError: " + failure.getMessage() +
-                            "\n--------------------------------------");
+                    _accessLog.failed(_wsSession != null ? _wsSession.getId() : null, address, failure);
                 }
             };
         }
 
+        private void release(Session wsSession, CompactBayeuxContext context) {
+            if (_released) {
+                return;
+            }
+            _released = true;
+            context.release();
+            try {
+                JettyUpgradeRequests.release(wsSession);
+            } catch (LinkageError x) {
+                _logger.trace("", x);
+            }
+        }
+
         @Override
         public void onOpen(Session wsSession, EndpointConfig config) {
             _wsSession = wsSession;
-            wsSession.addMessageHandler(this);
-            accessLogger.info("" +
-                    "WebSocket Client connected\n----------------------------" +
-                    "\nSession ID: " + wsSession.getId() +
-                    "\nSession protocol version: " + wsSession.getProtocolVersion() +
-                    "\nSession request URI: " + wsSession.getRequestURI() +
-                    "\nSession user props: " + wsSession.getUserProperties() +
-                    "\n--------------------------------------");
+            // Jetty only implements the JSR 356 1.0 API, that resolves the message type from the handler class.
+            wsSession.addMessageHandler(_partialMessages ? new PartialMessageHandler() : this);
+            _binary = _binaryProtocol != null && _binaryProtocol.equals(wsSession.getNegotiatedSubprotocol());
+            if (_binary) {
+                wsSession.addMessageHandler(new BinaryMessageHandler());
+            }
+            _shared = _deflate != null && _deflate.isShared(wsSession.getNegotiatedExtensions());
+            _accessLog.opened(wsSession.getId(), wsSession.getProtocolVersion(), wsSession.getRequestURI(), wsSession.getUserProperties());
         }
 
         @Override
         public void onClose(Session wsSession, CloseReason closeReason) {
             delegate.onClose(closeReason.getCloseCode().getCode(), closeReason.getReasonPhrase());
-            accessLogger.info("" +
-                    "WebSocket Client disconnected\n----------------------------" +
-                    "\nSession ID: " + wsSession.getId() +
-                    "\nClose reason: " + closeReason +
-                    "\n--------------------------------------");
+            _accessLog.closed(wsSession.getId(), closeReason);
         }
 
         @Override
@@ -208,11 +516,93 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
             delegate.cancel();
         }
 
+        /**
+         * <p>Flushes the session queue, unless a frame is still being written: then the flush
+         * is deferred until the write completes, so that at most one frame per connection is
+         * pending in the container, and the messages queued meanwhile are taken at once.</p>
+         */
         @Override
         public void schedule() {
+            if (_writing) {
+                if (_flushPending.compareAndSet(false, true)) {
+                    _metrics.flushDeferred();
+                }
+                // The write may have completed before the flush was marked pending.
+                if (!_writing && _flushPending.compareAndSet(true, false)) {
+                    delegate.schedule();
+                } else {
+                    checkWriteStall();
+                }
+                return;
+            }
             delegate.schedule();
         }
 
+        private void checkWriteStall() {
+            long maxWriteStall = _maxWriteStall;
+            if (maxWriteStall <= 0 || _slowConsumer) {
+                return;
+            }
+            long stall = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - _writeNanos);
+            if (_writing && stall > maxWriteStall) {
+                _slowConsumer = true;
+                _metrics.slowConsumerClosed();
+                _logger.info("Closing slow consumer {}, writing for {} ms", _session, stall);
+                try {
+                    _wsSession.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Slow consumer"));
+                } catch (Throwable x) {
+                    _logger.trace("Could not close WebSocket session " + _wsSession, x);
+                }
+            }
+        }
+
+        private class WriteCallback implements Callback {
+            private final int bytes;
+            private final Callback callback;
+            private final ServerSessionImpl session;
+
+            private WriteCallback(int bytes, Callback callback) {
+                this.bytes = bytes;
+                this.callback = callback;
+                this.session = (ServerSessionImpl)_session;
+                _writeNanos = System.nanoTime();
+                _writing = true;
+                _metrics.writeStarted(bytes);
+                if (session != null) {
+                    session.writeStarted(bytes);
+                }
+            }
+
+            @Override
+            public void succeeded() {
+                completed();
+                callback.succeeded();
+                flushPending();
+            }
+
+            @Override
+            public void failed(Throwable failure) {
+                completed();
+                // The connection is failed, nothing more is flushed to it.
+                _flushPending.set(false);
+                callback.failed(failure);
+            }
+
+            private void completed() {
+                _writing = false;
+                _metrics.writeCompleted(bytes);
+                if (session != null) {
+                    session.writeCompleted();
+                }
+            }
+
+            private void flushPending() {
+                if (_flushPending.compareAndSet(true, false)) {
+                    delegate.schedule();
+                }
+            }
+        }
+
         @Override
         public void onMessage(String data) {
             if (_logger.isDebugEnabled()) {
@@ -222,8 +612,53 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
                         getClass().getSimpleName(),
                         Integer.toHexString(hashCode()));
             }
+            if (_session == null) {
+                adopt(data);
+            }
             delegate.onMessage(_wsSession, data);
         }
+
+        /**
+         * <p>Adopts from the session store the session of a client that reconnects
+         * to this server without a new handshake, before its messages are processed.</p>
+         */
+        private void adopt(String data) {
+            BayeuxServerImpl bayeux = getBayeux();
+            if (bayeux.getSessionWriteBehind() == null) {
+                return;
+            }
+            Matcher matcher = CLIENT_ID.matcher(data);
+            if (matcher.find()) {
+                bayeux.getOrAdoptSession(matcher.group(1));
+            }
+        }
+
+        private class PartialMessageHandler implements MessageHandler.Partial<String> {
+            private final MessageSplitter _splitter = new MessageSplitter(_maxMessageSize);
+
+            @Override
+            public void onMessage(String data, boolean last) {
+                try {
+                    _splitter.split(data, last, WebSocketScheduler.this::onMessage);
+                } catch (IllegalStateException x) {
+                    if (_logger.isDebugEnabled()) {
+                        _logger.debug("Closing " + _wsSession, x);
+                    }
+                    try {
+                        _wsSession.close(new CloseReason(CloseReason.CloseCodes.TOO_BIG, "Message too big"));
+                    } catch (Throwable xx) {
+                        _logger.trace("Could not close WebSocket session " + _wsSession, xx);
+                    }
+                }
+            }
+        }
+
+        private class BinaryMessageHandler implements MessageHandler.Whole<ByteBuffer> {
+            @Override
+            public void onMessage(ByteBuffer data) {
+                WebSocketScheduler.this.onMessage(StandardCharsets.UTF_8.decode(data).toString());
+            }
+        }
     }
 
     private class WebSocketContext extends AbstractBayeuxContext {
@@ -237,9 +672,23 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
         }
     }
 
+    private BayeuxContext newBayeuxContext(ServletContext context, HandshakeRequest request, Map<String, Object> userProperties) {
+        if (!_compactSessions) {
+            return new WebSocketContext(context, request, userProperties);
+        }
+        List<Locale> locales = _locales.intern(retrieveLocales(userProperties));
+        // The container keeps its own copy for the session.
+        userProperties.replace(LOCALES_PROPERTY, locales);
+        return new CompactBayeuxContext(context, request.getRequestURI().toString(), request.getQueryString(), request.getHeaders(),
+                request.getParameterMap(), request.getUserPrincipal(), (HttpSession) request.getHttpSession(),
+                (InetSocketAddress) userProperties.get("javax.websocket.endpoint.localAddress"),
+                (InetSocketAddress) userProperties.get("javax.websocket.endpoint.remoteAddress"),
+                locales, _strings, _locales);
+    }
+
     private static List<Locale> retrieveLocales(Map<String, Object> userProperties) {
         @SuppressWarnings("unchecked")
-        List<Locale> locales = (List<Locale>) userProperties.get("javax.websocket.upgrade.locales");
+        List<Locale> locales = (List<Locale>) userProperties.get(LOCALES_PROPERTY);
         if (locales == null || locales.isEmpty()) {
             return Collections.singletonList(Locale.getDefault());
         }
@@ -256,7 +705,7 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
         @Override
         public void modifyHandshake(ServerEndpointConfig sec, HandshakeRequest request, HandshakeResponse response) {
             ContextHolder context = provideContext();
-            context.bayeuxContext = new WebSocketContext(servletContext, request, sec.getUserProperties());
+            context.bayeuxContext = newBayeuxContext(servletContext, request, sec.getUserProperties());
             WebSocketTransport.this.modifyHandshake(request, response);
         }
 
@@ -268,9 +717,15 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
         @Override
         public String getNegotiatedSubprotocol(List<String> supported, List<String> requested) {
             ContextHolder context = provideContext();
-            context.protocolMatches = checkProtocol(supported, requested);
+            // The binary subprotocol is opt-in, clients not requesting it are negotiated as before.
+            if (_binaryProtocol != null && requested.contains(_binaryProtocol)) {
+                context.protocolMatches = true;
+                return _binaryProtocol;
+            }
+            String protocol = getProtocol();
+            context.protocolMatches = checkProtocol(protocol == null ? Collections.<String>emptyList() : Collections.singletonList(protocol), requested);
             if (context.protocolMatches) {
-                return super.getNegotiatedSubprotocol(supported, requested);
+                return protocol == null ? "" : super.getNegotiatedSubprotocol(Collections.singletonList(protocol), requested);
             }
             _logger.warn("Could not negotiate WebSocket SubProtocols: server{} != client{}", supported, requested);
             return null;
@@ -278,7 +733,19 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
 
         @Override
         public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
-            return super.getNegotiatedExtensions(installed, requested);
+            List<Extension> negotiated = super.getNegotiatedExtensions(installed, requested);
+            List<Extension> result = new ArrayList<>(negotiated.size());
+            boolean deflate = false;
+            for (Extension extension : negotiated) {
+                if (!PerMessageDeflate.NAME.equals(extension.getName())) {
+                    result.add(extension);
+                } else if (_deflate != null && !deflate) {
+                    // Accept only the first offer.
+                    result.add(_deflate.negotiate(extension));
+                    deflate = true;
+                }
+            }
+            return result;
         }
 
         @Override
@@ -309,7 +776,7 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session> {
 
     private static class ContextHolder {
         private static final ThreadLocal<ContextHolder> holder = new ThreadLocal<>();
-        private WebSocketContext bayeuxContext;
+        private BayeuxContext bayeuxContext;
         private boolean protocolMatches;
 
         public void clear() {
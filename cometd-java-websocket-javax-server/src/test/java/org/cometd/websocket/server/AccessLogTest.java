@@ -0,0 +1,63 @@
+package org.cometd.websocket.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AccessLogTest {
+
+    private final List<String> lines = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void shouldDropEventsWhenTheRingIsFullAndWriteTheRestOnStop() {
+        //Given
+        AccessLog accessLog = new CapturingAccessLog(4);
+
+        //When
+        for (int i = 0; i < 6; ++i) {
+            accessLog.closed("session-" + i, "CloseReason[1000]");
+        }
+        accessLog.start();
+        accessLog.stop();
+
+        //Then
+        assertThat(accessLog.getDropped()).isEqualTo(2);
+        assertThat(accessLog.getLogged()).isEqualTo(4);
+        assertThat(lines).hasSize(4);
+        assertThat(lines.get(0)).isEqualTo("" +
+                "WebSocket Client disconnected\n----------------------------" +
+                "\nSession ID: session-0" +
+                "\nClose reason: CloseReason[1000]" +
+                "\n--------------------------------------");
+        assertThat(lines.get(3)).contains("Session ID: session-3");
+    }
+
+    @Test
+    public void shouldWriteSynchronouslyWithoutCapacity() {
+        //Given
+        AccessLog accessLog = new CapturingAccessLog(0);
+
+        //When
+        accessLog.opened("session", "13", "/cometd", Collections.singletonMap("tenant", "t1"));
+
+        //Then
+        assertThat(accessLog.isAsync()).isFalse();
+        assertThat(lines).hasSize(1);
+        assertThat(lines.get(0)).contains("Session user props: {tenant=t1}");
+    }
+
+    private class CapturingAccessLog extends AccessLog {
+        private CapturingAccessLog(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected void write(String line) {
+            lines.add(line);
+        }
+    }
+}
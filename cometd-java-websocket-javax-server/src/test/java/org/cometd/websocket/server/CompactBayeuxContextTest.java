@@ -0,0 +1,84 @@
+package org.cometd.websocket.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactBayeuxContextTest {
+
+    private final Interner<String> strings = new Interner<>(16);
+    private final Interner<List<Locale>> locales = new Interner<>(16);
+
+    @Test
+    public void shouldShareHeadersAndLocalesButNotCredentials() {
+        //Given
+        CompactBayeuxContext first = newContext("device-1");
+        CompactBayeuxContext second = newContext("device-2");
+
+        //When
+        String firstAgent = first.getHeader("user-agent");
+        String secondAgent = second.getHeader("User-Agent");
+
+        //Then
+        assertThat(secondAgent).isEqualTo("C8Y-Agent/1.0").isSameAs(firstAgent);
+        assertThat(second.getLocales()).isSameAs(first.getLocales());
+        assertThat(first.getHeaderValues("Accept")).containsExactly("application/json", "text/plain");
+        assertThat(first.getCookie("JSESSIONID")).isEqualTo("device-1");
+        assertThat(first.getParameter("token")).isEqualTo("device-1");
+        assertThat(first.getURL()).isEqualTo("ws://localhost/cometd?token=device-1");
+        assertThat(strings.size()).isLessThan(16);
+    }
+
+    @Test
+    public void shouldNotInternThePerConnectionHeaders() {
+        //Given
+        CompactBayeuxContext first = newContext("device-1");
+        int interned = strings.size();
+
+        //When
+        CompactBayeuxContext second = newContext("device-2");
+
+        //Then
+        assertThat(first.getHeader("Authorization")).isEqualTo("Basic device-1");
+        assertThat(second.getHeader("X-Request-Id")).isEqualTo("device-2");
+        assertThat(strings.size()).isEqualTo(interned);
+    }
+
+    @Test
+    public void shouldDropHeadersAndParametersWhenReleased() {
+        //Given
+        CompactBayeuxContext context = newContext("device-1");
+
+        //When
+        context.release();
+
+        //Then
+        assertThat(context.getHeader("User-Agent")).isNull();
+        assertThat(context.getHeaderValues("Accept")).isNull();
+        assertThat(context.getParameter("token")).isNull();
+        assertThat(context.getCookie("JSESSIONID")).isNull();
+        assertThat(context.getHttpSessionId()).isNull();
+        assertThat(context.getURL()).isEqualTo("ws://localhost/cometd?token=device-1");
+        assertThat(context.getLocales()).containsExactly(Locale.GERMANY);
+    }
+
+    private CompactBayeuxContext newContext(String device) {
+        Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        // Distinct instances, as parsed from each request.
+        headers.put("User-Agent", Collections.singletonList(new String("C8Y-Agent/1.0")));
+        headers.put("Accept", Arrays.asList("application/json", "text/plain"));
+        headers.put("Cookie", Collections.singletonList("JSESSIONID=" + device));
+        headers.put("Authorization", Collections.singletonList("Basic " + device));
+        headers.put("X-Request-Id", Collections.singletonList(device));
+        Map<String, List<String>> parameters = Collections.singletonMap("token", Collections.singletonList(device));
+        return new CompactBayeuxContext(null, "ws://localhost/cometd", "token=" + device, headers, parameters,
+                null, null, null, null, Collections.singletonList(Locale.GERMANY), strings, locales);
+    }
+}
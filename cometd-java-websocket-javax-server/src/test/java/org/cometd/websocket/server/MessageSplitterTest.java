@@ -0,0 +1,74 @@
+package org.cometd.websocket.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MessageSplitterTest {
+
+    private final List<String> parsed = new ArrayList<>();
+
+    @Test
+    public void shouldParseTheCompleteMessagesOfEachFragment() {
+        //Given
+        MessageSplitter splitter = new MessageSplitter(1024);
+
+        //When
+        splitter.split("[{\"channel\":\"/a\",\"data\":{\"t\":\"}\\\"]\"}},{\"chan", false, parsed::add);
+        splitter.split("nel\":\"/b\"} , {\"channel\":\"/c\"}", false, parsed::add);
+        splitter.split("]", true, parsed::add);
+
+        //Then
+        assertThat(parsed).containsExactly(
+                "[{\"channel\":\"/a\",\"data\":{\"t\":\"}\\\"]\"}}]",
+                "[{\"channel\":\"/b\"},{\"channel\":\"/c\"}]");
+    }
+
+    @Test
+    public void shouldParseASingleMessageAndStartOverWithTheNextMessage() {
+        //Given
+        MessageSplitter splitter = new MessageSplitter(1024);
+
+        //When
+        splitter.split("{\"channel\":", false, parsed::add);
+        splitter.split("\"/a\"}", true, parsed::add);
+        splitter.split("[{\"channel\":\"/b\"}]", true, parsed::add);
+
+        //Then
+        assertThat(parsed).containsExactly("[{\"channel\":\"/a\"}]", "[{\"channel\":\"/b\"}]");
+    }
+
+    @Test
+    public void shouldPassMalformedAndTruncatedTextToTheParser() {
+        //Given
+        MessageSplitter splitter = new MessageSplitter(1024);
+
+        //When
+        splitter.split("[{\"channel\":\"/a\"}, 42, {\"channel\":\"/b\"}]", true, parsed::add);
+        splitter.split("[{\"channel\":", true, parsed::add);
+
+        //Then
+        assertThat(parsed).containsExactly("[{\"channel\":\"/a\"}]", "42, {\"channel\":\"/b\"}]", "{\"channel\":");
+    }
+
+    @Test
+    public void shouldLimitEachMessageButNotTheBatch() {
+        //Given
+        MessageSplitter splitter = new MessageSplitter(16);
+        for (int i = 0; i < 10; ++i) {
+            splitter.split((i == 0 ? "[" : ",") + "{\"id\":\"" + i + "\"}", false, parsed::add);
+        }
+
+        //When
+        splitter.split(",{\"id\":\"", false, parsed::add);
+
+        //Then
+        assertThat(parsed).hasSize(10);
+        assertThatThrownBy(() -> splitter.split("0123456789\"}", false, parsed::add))
+                .isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,205 @@
+package org.cometd.websocket.server;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.websocket.server.load.LoadServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PerMessageDeflateTest {
+
+    private static final String HANDSHAKE = "[{\"id\":\"1\",\"channel\":\"/meta/handshake\",\"version\":\"1.0\",\"supportedConnectionTypes\":[\"websocket\"]}]";
+
+    @Test
+    public void shouldNegotiateContextTakeoverAndClientWindowWithoutPrivateParameters() throws Exception {
+        //Given
+        Map<String, Object> options = new HashMap<>();
+        options.put("ws.deflateContextTakeover", false);
+        options.put("ws.deflateClientMaxWindowBits", 10);
+        options.put("ws.deflateLevel", 1);
+        try (LoadServer server = new LoadServer(LoadServer.HttpTransport.ASYNC, options);
+             Socket socket = new Socket("localhost", server.getPort())) {
+
+            //When
+            String response = upgrade(socket, server.getPort(), "permessage-deflate; client_max_window_bits");
+
+            //Then
+            assertThat(response).startsWith("HTTP/1.1 101");
+            assertThat(extensions(response))
+                    .contains("permessage-deflate", "server_no_context_takeover", "client_no_context_takeover", "client_max_window_bits=10")
+                    .doesNotContain("x-cometd");
+        }
+    }
+
+    @Test
+    public void shouldSendMessagesBelowTheMinSizeUncompressed() throws Exception {
+        //Given
+        Map<String, Object> small = new HashMap<>();
+        small.put("ws.deflateMinSize", 4096);
+        Map<String, Object> all = new HashMap<>();
+        all.put("ws.deflateLevel", 1);
+
+        //When
+        boolean smallCompressed = replyCompressed(small);
+        boolean allCompressed = replyCompressed(all);
+
+        //Then
+        assertThat(smallCompressed).isFalse();
+        assertThat(allCompressed).isTrue();
+    }
+
+    @Test
+    public void shouldNotNegotiateWhenDisabled() throws Exception {
+        //Given
+        try (LoadServer server = new LoadServer(LoadServer.HttpTransport.ASYNC, Collections.singletonMap("ws.deflate", false));
+             Socket socket = new Socket("localhost", server.getPort())) {
+
+            //When
+            String response = upgrade(socket, server.getPort(), "permessage-deflate");
+
+            //Then
+            assertThat(response).startsWith("HTTP/1.1 101");
+            assertThat(extensions(response)).isEmpty();
+        }
+    }
+
+    @Test
+    public void shouldSendTheSameCompressedFrameToAllSessions() throws Exception {
+        //Given
+        Map<String, Object> options = new HashMap<>();
+        options.put("ws.deflateShared", true);
+        options.put("ws.deflateContextTakeover", false);
+        try (LoadServer server = new LoadServer(LoadServer.HttpTransport.ASYNC, options);
+             Socket first = new Socket("localhost", server.getPort());
+             Socket second = new Socket("localhost", server.getPort())) {
+            server.getBayeux().createChannelIfAbsent("/devices/1");
+            ServerChannel channel = server.getBayeux().getChannel("/devices/1");
+            for (Socket socket : new Socket[]{first, second}) {
+                upgrade(socket, server.getPort(), "permessage-deflate");
+                writeTextFrame(socket.getOutputStream(), HANDSHAKE);
+                channel.subscribe(server.getBayeux().getSession(clientId(inflate(readFrame(socket)))));
+            }
+
+            //When
+            channel.publish(null, "{\"temperature\":21.5}");
+            byte[] firstFrame = readFrame(first);
+            byte[] secondFrame = readFrame(second);
+
+            //Then
+            assertThat(secondFrame).isEqualTo(firstFrame);
+            assertThat(inflate(firstFrame))
+                    .startsWith("[{")
+                    .endsWith("}]")
+                    .contains("\"channel\":\"/devices/1\"", "temperature");
+        }
+    }
+
+    private byte[] readFrame(Socket socket) throws Exception {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        int first = input.readUnsignedByte();
+        assertThat(first & 0x40).as("RSV1").isNotZero();
+        int length = input.readUnsignedByte() & 0x7F;
+        if (length == 126) {
+            length = input.readUnsignedShort();
+        } else if (length == 127) {
+            length = (int) input.readLong();
+        }
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        return payload;
+    }
+
+    private String inflate(byte[] payload) throws Exception {
+        Inflater inflater = new Inflater(true);
+        byte[] input = Arrays.copyOf(payload, payload.length + 4);
+        input[input.length - 2] = (byte) 0xFF;
+        input[input.length - 1] = (byte) 0xFF;
+        inflater.setInput(input);
+        byte[] output = new byte[64 * 1024];
+        int length = inflater.inflate(output);
+        inflater.end();
+        return new String(output, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private String clientId(String reply) {
+        Matcher matcher = Pattern.compile("\"clientId\":\"([^\"]+)\"").matcher(reply);
+        assertThat(matcher.find()).as(reply).isTrue();
+        return matcher.group(1);
+    }
+
+    private boolean replyCompressed(Map<String, Object> options) throws Exception {
+        try (LoadServer server = new LoadServer(LoadServer.HttpTransport.ASYNC, options);
+             Socket socket = new Socket("localhost", server.getPort())) {
+            upgrade(socket, server.getPort(), "permessage-deflate");
+            writeTextFrame(socket.getOutputStream(), HANDSHAKE);
+            int first = socket.getInputStream().read();
+            // RSV1 marks the compressed messages.
+            return (first & 0x40) != 0;
+        }
+    }
+
+    private String upgrade(Socket socket, int port, String extensions) throws Exception {
+        String request = "" +
+                "GET " + LoadServer.PATH + " HTTP/1.1\r\n" +
+                "Host: localhost:" + port + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                "Sec-WebSocket-Version: 13\r\n" +
+                "Sec-WebSocket-Extensions: " + extensions + "\r\n" +
+                "\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        socket.getOutputStream().flush();
+        InputStream input = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        while (!response.toString("US-ASCII").endsWith("\r\n\r\n")) {
+            int read = input.read();
+            if (read < 0) {
+                break;
+            }
+            response.write(read);
+        }
+        return response.toString("US-ASCII");
+    }
+
+    private String extensions(String response) {
+        for (String line : response.split("\r\n")) {
+            if (line.toLowerCase().startsWith("sec-websocket-extensions:")) {
+                return line.substring(line.indexOf(':') + 1).trim();
+            }
+        }
+        return "";
+    }
+
+    private void writeTextFrame(OutputStream output, String text) throws Exception {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x81);
+        if (payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        } else {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length & 0xFF);
+        }
+        // A zero mask leaves the payload as is.
+        frame.write(new byte[4]);
+        frame.write(payload);
+        output.write(frame.toByteArray());
+        output.flush();
+    }
+}
@@ -0,0 +1,176 @@
+package org.cometd.websocket.server.load;
+
+import org.eclipse.jetty.util.ajax.JSON;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>End-to-end load harness: starts CometD on an in-process Jetty and drives simulated
+ * long-polling and WebSocket clients through handshake, subscribe, connect and publish.</p>
+ * <p>Reports, per long-polling transport, the publish-to-deliver latency percentiles, the
+ * publish and delivery throughput and the allocation rate of the server threads, to the
+ * console and to {@code target/BayeuxLoadBenchmark.json}.</p>
+ * <p>Like the JMH benchmarks it is not run by default:
+ * {@code mvn test -pl cometd-java-websocket-javax-server -am -Dtest=BayeuxLoadBenchmark -Dsurefire.failIfNoSpecifiedTests=false}.
+ * The load is tuned with the {@code load.*} system properties below; {@code load.maxP99Millis}
+ * and {@code load.minDeliveryRate} turn the run into a regression gate.</p>
+ * <p>The scenarios share the JVM, so the first one also pays for the JIT warmup: compare
+ * runs with the same {@code load.httpTransports} order, or raise {@code load.warmupSeconds}.</p>
+ */
+public class BayeuxLoadBenchmark {
+    private static final String CLIENT_THREAD_NAME = "load-client";
+
+    private final int longPollingClients = Integer.getInteger("load.longPollingClients", 100);
+    private final int webSocketClients = Integer.getInteger("load.webSocketClients", 100);
+    private final int rooms = Integer.getInteger("load.rooms", 10);
+    private final int publishRate = Integer.getInteger("load.publishRate", 500);
+    private final int warmupSeconds = Integer.getInteger("load.warmupSeconds", 5);
+    private final int durationSeconds = Integer.getInteger("load.durationSeconds", 20);
+    private final String httpTransports = System.getProperty("load.httpTransports", "async,sync");
+    private final String maxP99Millis = System.getProperty("load.maxP99Millis");
+    private final String minDeliveryRate = System.getProperty("load.minDeliveryRate");
+
+    @Test
+    public void bayeuxLoadBenchmark() throws Exception {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String name : httpTransports.split(",")) {
+            LoadServer.HttpTransport httpTransport = LoadServer.HttpTransport.valueOf(name.trim().toUpperCase(Locale.ROOT));
+            Map<String, Object> result = run(httpTransport);
+            System.out.println("BayeuxLoadBenchmark " + result);
+            results.add(result);
+        }
+
+        Path report = Paths.get("target", BayeuxLoadBenchmark.class.getSimpleName() + ".json");
+        Files.createDirectories(report.getParent());
+        Files.write(report, JSON.toString(results.toArray()).getBytes(StandardCharsets.UTF_8));
+
+        for (Map<String, Object> result : results) {
+            for (String clients : Arrays.asList("longPolling", "webSocket")) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> stats = (Map<String, Object>)result.get(clients);
+                assertThat((Long)stats.get("errors")).as("errors in %s", result).isZero();
+                if (maxP99Millis != null) {
+                    assertThat((Double)stats.get("p99Millis")).as("p99 in %s", result).isLessThanOrEqualTo(Double.parseDouble(maxP99Millis));
+                }
+                if (minDeliveryRate != null) {
+                    assertThat((Double)stats.get("deliveredPerSecond")).as("delivery rate in %s", result).isGreaterThanOrEqualTo(Double.parseDouble(minDeliveryRate));
+                }
+            }
+        }
+    }
+
+    private Map<String, Object> run(LoadServer.HttpTransport httpTransport) throws Exception {
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService clientExecutor = Executors.newCachedThreadPool(task -> new Thread(task, CLIENT_THREAD_NAME + "-" + threads.incrementAndGet()));
+        ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(task -> new Thread(task, CLIENT_THREAD_NAME + "-publisher"));
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(clientExecutor)
+                .build();
+        LoadClient.Stats longPollingStats = new LoadClient.Stats();
+        LoadClient.Stats webSocketStats = new LoadClient.Stats();
+        List<LoadClient> clients = new ArrayList<>();
+        try (LoadServer server = new LoadServer(httpTransport, Collections.emptyMap())) {
+            URI httpURI = URI.create("http://localhost:" + server.getPort() + LoadServer.PATH);
+            URI wsURI = URI.create("ws://localhost:" + server.getPort() + LoadServer.PATH);
+            for (int i = 0; i < longPollingClients + webSocketClients; ++i) {
+                String room = LoadClient.ROOM_PREFIX + (i % rooms);
+                clients.add(i < longPollingClients ?
+                        new LongPollingLoadClient(httpClient, httpURI, room, longPollingStats) :
+                        new WebSocketLoadClient(httpClient, wsURI, room, webSocketStats));
+            }
+            List<CompletableFuture<Void>> ready = new ArrayList<>();
+            for (LoadClient client : clients) {
+                ready.add(client.start());
+            }
+            CompletableFuture.allOf(ready.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+
+            // Publish in ticks of 10 ms, round robin over the clients and the rooms.
+            int perTick = Math.max(1, publishRate / 100);
+            AtomicInteger next = new AtomicInteger();
+            publisher.scheduleAtFixedRate(() -> {
+                for (int i = 0; i < perTick; ++i) {
+                    int index = next.getAndIncrement();
+                    clients.get(index % clients.size()).publish(LoadClient.ROOM_PREFIX + (index % rooms));
+                }
+            }, 0, 10, TimeUnit.MILLISECONDS);
+
+            TimeUnit.SECONDS.sleep(warmupSeconds);
+
+            AllocationMeter allocations = new AllocationMeter();
+            long start = System.nanoTime();
+            longPollingStats.startWindow(start);
+            webSocketStats.startWindow(start);
+            TimeUnit.SECONDS.sleep(durationSeconds);
+            double seconds = (System.nanoTime() - start) / 1_000_000_000D;
+            long delivered = longPollingStats.getWindowDelivered() + webSocketStats.getWindowDelivered();
+            long serverAllocated = allocations.allocated(name -> !name.startsWith(CLIENT_THREAD_NAME) && !name.startsWith("HttpClient"));
+            long totalAllocated = allocations.allocated(name -> true);
+            Map<String, Object> longPolling = longPollingStats.report(seconds);
+            Map<String, Object> webSocket = webSocketStats.report(seconds);
+
+            publisher.shutdownNow();
+            for (LoadClient client : clients) {
+                client.stop();
+            }
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("httpTransport", httpTransport.name().toLowerCase(Locale.ROOT));
+            result.put("longPollingClients", longPollingClients);
+            result.put("webSocketClients", webSocketClients);
+            result.put("rooms", rooms);
+            result.put("seconds", seconds);
+            result.put("longPolling", longPolling);
+            result.put("webSocket", webSocket);
+            result.put("serverAllocatedMBPerSecond", serverAllocated / seconds / (1024 * 1024));
+            result.put("serverAllocatedBytesPerDelivery", delivered == 0 ? 0 : serverAllocated / delivered);
+            result.put("totalAllocatedMBPerSecond", totalAllocated / seconds / (1024 * 1024));
+            return result;
+        } finally {
+            publisher.shutdownNow();
+            clientExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * <p>Measures the bytes allocated by live threads since its creation; threads that
+     * terminate in between are not accounted.</p>
+     */
+    private static final class AllocationMeter {
+        private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> initial = new HashMap<>();
+
+        private AllocationMeter() {
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; ++i) {
+                initial.put(ids[i], allocated[i]);
+            }
+        }
+
+        private long allocated(java.util.function.Predicate<String> threadName) {
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = threads.getThreadAllocatedBytes(ids);
+            java.lang.management.ThreadInfo[] infos = threads.getThreadInfo(ids);
+            long result = 0;
+            for (int i = 0; i < ids.length; ++i) {
+                if (infos[i] != null && allocated[i] >= 0 && threadName.test(infos[i].getThreadName())) {
+                    result += allocated[i] - initial.getOrDefault(ids[i], 0L);
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.cometd.websocket.server.load;
+
+import org.eclipse.jetty.util.ajax.JSON;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * <p>Measures the heap retained per idle WebSocket connection: each client handshakes,
+ * subscribes and then holds a {@code /meta/connect}, like a device waiting for notifications.</p>
+ * <p>The heap used after a full GC is compared before and after the clients connect, with and
+ * without the {@code ws.compactSessions} option; the clients are raw sockets in the same JVM,
+ * which cost the same in both runs. Results go to the console and to
+ * {@code target/IdleConnectionFootprintBenchmark.json}.</p>
+ * <p>Like the JMH benchmarks it is not run by default:
+ * {@code mvn test -pl cometd-java-websocket-javax-server -am -Dtest=IdleConnectionFootprintBenchmark -Dsurefire.failIfNoSpecifiedTests=false},
+ * with {@code -Dfootprint.connections} to change the number of connections.</p>
+ */
+public class IdleConnectionFootprintBenchmark {
+    private static final Pattern CLIENT_ID = Pattern.compile("\"clientId\":\"([^\"]+)\"");
+
+    private final int connections = Integer.getInteger("footprint.connections", 2000);
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    @Test
+    public void idleConnectionFootprintBenchmark() throws Exception {
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (boolean compact : new boolean[]{false, true}) {
+            Map<String, Object> result = run(compact);
+            System.out.println("IdleConnectionFootprintBenchmark " + result);
+            results.add(result);
+        }
+
+        Path report = Paths.get("target", IdleConnectionFootprintBenchmark.class.getSimpleName() + ".json");
+        Files.createDirectories(report.getParent());
+        Files.write(report, JSON.toString(results.toArray()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Map<String, Object> run(boolean compact) throws Exception {
+        List<Socket> sockets = new ArrayList<>(connections);
+        Map<String, Object> options = new HashMap<>();
+        options.put("ws.compactSessions", compact);
+        // The clients do not renew the /meta/connect, the sessions must outlive the run.
+        options.put("timeout", TimeUnit.MINUTES.toMillis(10));
+        options.put("maxInterval", TimeUnit.MINUTES.toMillis(10));
+        try (LoadServer server = new LoadServer(LoadServer.HttpTransport.ASYNC, options)) {
+            // Loads the classes and warms up the paths before measuring.
+            sockets.add(connect(server.getPort(), 0));
+            long before = usedHeap();
+            for (int i = 1; i <= connections; ++i) {
+                sockets.add(connect(server.getPort(), i));
+            }
+            long after = usedHeap();
+            assertThat(server.getBayeux().getSessions()).hasSize(connections + 1);
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("compactSessions", compact);
+            result.put("connections", connections);
+            result.put("retainedMB", (after - before) / (1024D * 1024));
+            result.put("bytesPerConnection", (after - before) / connections);
+            return result;
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private Socket connect(int port, int device) throws Exception {
+        Socket socket = new Socket("localhost", port);
+        upgrade(socket, port);
+        OutputStream output = socket.getOutputStream();
+        writeTextFrame(output, "[{\"id\":\"1\",\"channel\":\"/meta/handshake\",\"version\":\"1.0\",\"supportedConnectionTypes\":[\"websocket\"]}]");
+        String reply = readTextFrame(socket.getInputStream());
+        Matcher matcher = CLIENT_ID.matcher(reply);
+        assertThat(matcher.find()).as(reply).isTrue();
+        String clientId = matcher.group(1);
+        writeTextFrame(output, "[{\"id\":\"2\",\"channel\":\"/meta/subscribe\",\"subscription\":\"/devices/" + device + "\",\"clientId\":\"" + clientId + "\"}]");
+        readTextFrame(socket.getInputStream());
+        writeTextFrame(output, "[{\"id\":\"3\",\"channel\":\"/meta/connect\",\"connectionType\":\"websocket\",\"advice\":{\"timeout\":0},\"clientId\":\"" + clientId + "\"}]");
+        readTextFrame(socket.getInputStream());
+        // Held by the server: the connection is now idle.
+        writeTextFrame(output, "[{\"id\":\"4\",\"channel\":\"/meta/connect\",\"connectionType\":\"websocket\",\"clientId\":\"" + clientId + "\"}]");
+        return socket;
+    }
+
+    private void upgrade(Socket socket, int port) throws Exception {
+        String request = "" +
+                "GET " + LoadServer.PATH + " HTTP/1.1\r\n" +
+                "Host: localhost:" + port + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                "Sec-WebSocket-Version: 13\r\n" +
+                "User-Agent: c8y-device-agent/1016.0.0 (Linux; armv7l)\r\n" +
+                "Accept-Language: de-DE,de;q=0.9,en;q=0.8\r\n" +
+                "\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        socket.getOutputStream().flush();
+        InputStream input = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        while (!response.toString("US-ASCII").endsWith("\r\n\r\n")) {
+            int read = input.read();
+            assertThat(read).as("upgrade response").isNotNegative();
+            response.write(read);
+        }
+        assertThat(response.toString("US-ASCII")).startsWith("HTTP/1.1 101");
+    }
+
+    private String readTextFrame(InputStream stream) throws Exception {
+        DataInputStream input = new DataInputStream(stream);
+        input.readUnsignedByte();
+        int length = input.readUnsignedByte() & 0x7F;
+        if (length == 126) {
+            length = input.readUnsignedShort();
+        } else if (length == 127) {
+            length = (int) input.readLong();
+        }
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private void writeTextFrame(OutputStream output, String text) throws Exception {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x81);
+        if (payload.length < 126) {
+            frame.write(0x80 | payload.length);
+        } else {
+            frame.write(0x80 | 126);
+            frame.write(payload.length >> 8);
+            frame.write(payload.length & 0xFF);
+        }
+        // A zero mask leaves the payload as is.
+        frame.write(new byte[4]);
+        frame.write(payload);
+        output.write(frame.toByteArray());
+        output.flush();
+    }
+}
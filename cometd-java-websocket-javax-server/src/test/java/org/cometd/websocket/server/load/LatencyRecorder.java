@@ -0,0 +1,64 @@
+package org.cometd.websocket.server.load;
+
+import java.util.Arrays;
+
+/**
+ * <p>Records every publish-to-deliver latency of the measured window, so that
+ * the percentiles are exact.</p>
+ */
+final class LatencyRecorder {
+    private long[] values = new long[64 * 1024];
+    private int count;
+    private volatile long windowStart = Long.MAX_VALUE;
+
+    void startWindow(long nanoTime) {
+        windowStart = nanoTime;
+    }
+
+    /**
+     * @param publishTime the {@link System#nanoTime()} at which the message was published
+     * @param deliverTime the {@link System#nanoTime()} at which the message was delivered
+     */
+    void record(long publishTime, long deliverTime) {
+        if (publishTime < windowStart) {
+            return;
+        }
+        long latency = deliverTime - publishTime;
+        synchronized (this) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count << 1);
+            }
+            values[count++] = latency;
+        }
+    }
+
+    synchronized Snapshot snapshot() {
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        return new Snapshot(sorted);
+    }
+
+    static final class Snapshot {
+        private final long[] sorted;
+
+        private Snapshot(long[] sorted) {
+            this.sorted = sorted;
+        }
+
+        int getCount() {
+            return sorted.length;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @return the latency in milliseconds at the given percentile
+         */
+        double getMillis(double percentile) {
+            if (sorted.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int)Math.ceil(percentile / 100D * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1_000_000D;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package org.cometd.websocket.server.load;
+
+import org.eclipse.jetty.util.ajax.JSON;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A simulated Bayeux client: it handshakes, subscribes to its room, keeps
+ * a {@code /meta/connect} outstanding and records the latency of the messages
+ * delivered to it from the publish timestamp carried in their data.</p>
+ */
+abstract class LoadClient {
+    static final String ROOM_PREFIX = "/load/room/";
+
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    protected final String room;
+    protected final Stats stats;
+    protected volatile String clientId;
+    protected volatile boolean running = true;
+
+    protected LoadClient(String room, Stats stats) {
+        this.room = room;
+        this.stats = stats;
+    }
+
+    /**
+     * @return a future completed when the client has handshaken and subscribed
+     */
+    CompletableFuture<Void> start() {
+        send("[{\"channel\":\"/meta/handshake\",\"version\":\"1.0\",\"minimumVersion\":\"1.0\"," +
+                "\"supportedConnectionTypes\":[\"" + getConnectionType() + "\"]}]");
+        return ready;
+    }
+
+    void publish(String channel) {
+        stats.published.increment();
+        send("[{\"channel\":\"" + channel + "\",\"clientId\":\"" + clientId + "\"," +
+                "\"data\":{\"ts\":" + System.nanoTime() + "}}]");
+    }
+
+    void stop() {
+        running = false;
+        if (clientId != null) {
+            send("[{\"channel\":\"/meta/disconnect\",\"clientId\":\"" + clientId + "\"}]");
+        }
+    }
+
+    protected abstract String getConnectionType();
+
+    protected abstract void send(String json);
+
+    protected void connect(boolean first) {
+        send("[{\"channel\":\"/meta/connect\",\"clientId\":\"" + clientId + "\",\"connectionType\":\"" + getConnectionType() + "\"" +
+                (first ? ",\"advice\":{\"timeout\":0}" : "") + "}]");
+    }
+
+    protected void failed(Throwable failure) {
+        stats.errors.increment();
+        ready.completeExceptionally(failure);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void onMessages(String json) {
+        long now = System.nanoTime();
+        Object parsed = JSON.parse(json);
+        Object[] messages = parsed instanceof Object[] ? (Object[])parsed : new Object[]{parsed};
+        for (Object element : messages) {
+            Map<String, Object> message = (Map<String, Object>)element;
+            String channel = (String)message.get("channel");
+            Object data = message.get("data");
+            if (data instanceof Map) {
+                Object ts = ((Map<String, Object>)data).get("ts");
+                stats.delivered.increment();
+                stats.latencies.record(((Number)ts).longValue(), now);
+                continue;
+            }
+            boolean successful = Boolean.TRUE.equals(message.get("successful"));
+            switch (channel) {
+                case "/meta/handshake":
+                    if (successful) {
+                        clientId = (String)message.get("clientId");
+                        send("[{\"channel\":\"/meta/subscribe\",\"clientId\":\"" + clientId + "\",\"subscription\":\"" + room + "\"}]");
+                        connect(true);
+                    } else {
+                        failed(new IllegalStateException("Handshake failed: " + message));
+                    }
+                    break;
+                case "/meta/subscribe":
+                    if (successful) {
+                        ready.complete(null);
+                    } else {
+                        failed(new IllegalStateException("Subscribe failed: " + message));
+                    }
+                    break;
+                case "/meta/connect":
+                    if (!running) {
+                        break;
+                    }
+                    if (successful) {
+                        connect(false);
+                    } else {
+                        // The harness does not rehandshake, a failed connect is an error.
+                        failed(new IllegalStateException("Connect failed: " + message));
+                    }
+                    break;
+                case "/meta/disconnect":
+                    break;
+                default:
+                    if (!successful) {
+                        stats.errors.increment();
+                    }
+                    break;
+            }
+        }
+    }
+
+    static final class Stats {
+        final LongAdder published = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LatencyRecorder latencies = new LatencyRecorder();
+        private long windowPublished;
+        private long windowDelivered;
+
+        void startWindow(long nanoTime) {
+            windowPublished = published.sum();
+            windowDelivered = delivered.sum();
+            latencies.startWindow(nanoTime);
+        }
+
+        long getWindowDelivered() {
+            return delivered.sum() - windowDelivered;
+        }
+
+        /**
+         * @param seconds the duration of the measured window
+         * @return the throughput and the latency percentiles of the measured window
+         */
+        Map<String, Object> report(double seconds) {
+            LatencyRecorder.Snapshot snapshot = latencies.snapshot();
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("publishedPerSecond", (published.sum() - windowPublished) / seconds);
+            result.put("deliveredPerSecond", getWindowDelivered() / seconds);
+            result.put("samples", snapshot.getCount());
+            result.put("p50Millis", snapshot.getMillis(50));
+            result.put("p90Millis", snapshot.getMillis(90));
+            result.put("p99Millis", snapshot.getMillis(99));
+            result.put("p999Millis", snapshot.getMillis(99.9));
+            result.put("maxMillis", snapshot.getMillis(100));
+            result.put("errors", errors.sum());
+            return result;
+        }
+    }
+}
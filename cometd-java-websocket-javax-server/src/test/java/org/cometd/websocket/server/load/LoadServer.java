@@ -0,0 +1,78 @@
+package org.cometd.websocket.server.load;
+
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.CometDServlet;
+import org.cometd.server.transport.AbstractHttpTransport;
+import org.cometd.server.transport.AsyncJSONTransport;
+import org.cometd.server.transport.JSONTransport;
+import org.cometd.websocket.server.WebSocketTransport;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.jsr356.server.deploy.WebSocketServerContainerInitializer;
+
+import javax.servlet.ServletContext;
+import java.util.Map;
+
+/**
+ * <p>An in-process Jetty serving CometD with the WebSocket transport and one of the
+ * long-polling transports, which cannot be installed together since they share
+ * the {@code long-polling} name.</p>
+ */
+public final class LoadServer implements AutoCloseable {
+    static final String THREAD_NAME = "load-server";
+    public static final String PATH = "/cometd";
+
+    public enum HttpTransport {
+        ASYNC, SYNC
+    }
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final BayeuxServerImpl bayeux;
+
+    public LoadServer(HttpTransport httpTransport, Map<String, Object> options) throws Exception {
+        QueuedThreadPool threadPool = new QueuedThreadPool(500);
+        threadPool.setName(THREAD_NAME);
+        server = new Server(threadPool);
+        connector = new ServerConnector(server);
+        connector.setHost("localhost");
+        server.addConnector(connector);
+
+        ServletContextHandler context = new ServletContextHandler(server, "/");
+        WebSocketServerContainerInitializer.configure(context, null);
+        context.addServlet(new ServletHolder(new CometDServlet()), PATH + "/*");
+
+        bayeux = new BayeuxServerImpl();
+        bayeux.setOption(ServletContext.class.getName(), context.getServletContext());
+        bayeux.setOption("ws.cometdURLMapping", PATH + "/*");
+        options.forEach(bayeux::setOption);
+        AbstractHttpTransport http = httpTransport == HttpTransport.SYNC ?
+                new JSONTransport(bayeux, BayeuxServerImpl.DEFAULT_HEARTBEAT_MINUTES) :
+                new AsyncJSONTransport(bayeux, BayeuxServerImpl.DEFAULT_HEARTBEAT_MINUTES);
+        bayeux.setTransports(new WebSocketTransport(bayeux), http);
+        context.setAttribute(BayeuxServer.ATTRIBUTE, bayeux);
+
+        // The WebSocket container is created when the context starts,
+        // and the WebSocket transport registers its endpoint into it.
+        server.start();
+        bayeux.start();
+    }
+
+    public BayeuxServerImpl getBayeux() {
+        return bayeux;
+    }
+
+    public int getPort() {
+        return connector.getLocalPort();
+    }
+
+    @Override
+    public void close() throws Exception {
+        bayeux.stop();
+        server.stop();
+    }
+}
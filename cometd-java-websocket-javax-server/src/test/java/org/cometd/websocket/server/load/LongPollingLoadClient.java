@@ -0,0 +1,41 @@
+package org.cometd.websocket.server.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+final class LongPollingLoadClient extends LoadClient {
+    private final HttpClient httpClient;
+    private final URI uri;
+
+    LongPollingLoadClient(HttpClient httpClient, URI uri, String room, Stats stats) {
+        super(room, stats);
+        this.httpClient = httpClient;
+        this.uri = uri;
+    }
+
+    @Override
+    protected String getConnectionType() {
+        return "long-polling";
+    }
+
+    @Override
+    protected void send(String json) {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/json;charset=UTF-8")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, failure) -> {
+            if (failure != null) {
+                if (running) {
+                    failed(failure);
+                }
+            } else if (response.statusCode() != 200) {
+                failed(new IllegalStateException("HTTP " + response.statusCode() + " for " + json));
+            } else {
+                onMessages(response.body());
+            }
+        });
+    }
+}
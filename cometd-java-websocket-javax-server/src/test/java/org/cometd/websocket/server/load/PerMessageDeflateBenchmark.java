@@ -0,0 +1,161 @@
+package org.cometd.websocket.server.load;
+
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.server.BayeuxServerImpl;
+import org.eclipse.jetty.util.ajax.JSON;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.openjdk.jmh.annotations.Mode.AverageTime;
+
+/**
+ * Publishes messages to a WebSocket client of an in-process server, through the WebSocket transport
+ * and the permessage-deflate extension of Jetty, to choose the WebSocket transport deflate options:
+ * the time per message is the publish-to-read latency, and the {@code wireBytes} and {@code messages}
+ * counters give the bytes on the wire per message, frame headers included.
+ * <p>Messages cycle through 1024 notifications that only differ by their ids and values, too many
+ * for a message to be found whole in the 32 KiB window; context takeover compresses them against
+ * the previous ones.</p>
+ */
+@BenchmarkMode(AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 3)
+public class PerMessageDeflateBenchmark {
+    private static final int MESSAGES = 1024;
+
+    @Test
+    public void perMessageDeflateBenchmark() throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .result("target/" + PerMessageDeflateBenchmark.class.getSimpleName() + "-jmh.json")
+                .resultFormat(ResultFormatType.JSON)
+                .include(PerMessageDeflateBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Benchmark
+    public int deflate(ExecutionPlan plan, WireCounters counters) throws IOException {
+        int i = plan.next++ & (MESSAGES - 1);
+        plan.server.getBayeux().getChannel(plan.channels[i]).publish(null, plan.data[i]);
+        int bytes = plan.client.readFrame();
+        counters.messages++;
+        counters.wireBytes += bytes;
+        return bytes;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WireCounters {
+        public long messages;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+            wireBytes = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ExecutionPlan {
+        /**
+         * The compression level; -1 to not negotiate permessage-deflate.
+         */
+        @Param({"-1", "1", "6", "9"})
+        int level;
+
+        @Param({"true", "false"})
+        boolean contextTakeover;
+
+        @Param({"measurement", "childAssets"})
+        String payload;
+
+        private final String[] channels = new String[MESSAGES];
+        private final Object[] data = new Object[MESSAGES];
+        private LoadServer server;
+        private RawWebSocketClient client;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            boolean measurement = "measurement".equals(payload);
+            for (int i = 0; i < MESSAGES; ++i) {
+                channels[i] = measurement ? "/measurements/" + (3200 + i) : "/managedobjects/" + (3201 + i);
+                data[i] = JSON.parse(measurement ? measurement(i) : childAssets(i, 50));
+            }
+
+            Map<String, Object> options = new HashMap<>();
+            options.put("ws.deflate", level >= 0);
+            options.put("ws.deflateLevel", level);
+            options.put("ws.deflateContextTakeover", contextTakeover);
+            // The client never sends /meta/connect, the session must outlive the trial.
+            options.put("maxInterval", TimeUnit.HOURS.toMillis(1));
+            server = new LoadServer(LoadServer.HttpTransport.ASYNC, options);
+            client = new RawWebSocketClient(server.getPort(), "permessage-deflate", null);
+
+            BayeuxServerImpl bayeux = server.getBayeux();
+            ServerSession session = bayeux.getSessions().stream()
+                    .filter(s -> !s.isLocalSession())
+                    .findFirst()
+                    .orElseThrow(IllegalStateException::new);
+            bayeux.createChannelIfAbsent(measurement ? "/measurements/*" : "/managedobjects/*").getReference().subscribe(session);
+            for (String channel : channels) {
+                // Not swept while the trial runs, since they have no subscribers.
+                bayeux.createChannelIfAbsent(channel, c -> c.setPersistent(true));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            client.close();
+            server.close();
+        }
+
+        private static String measurement(int i) {
+            return "{\"realtimeAction\":\"CREATE\"," +
+                    "\"data\":{\"self\":\"http://cumulocity.default.svc.cluster.local/measurement/measurements/" + (51000 + i) + "\"," +
+                    "\"time\":\"" + timestamp(i) + "\",\"id\":\"" + (51000 + i) + "\"," +
+                    "\"source\":{\"self\":\"http://cumulocity.default.svc.cluster.local/inventory/managedObjects/" + (3200 + i) + "\",\"id\":\"" + (3200 + i) + "\"}," +
+                    "\"type\":\"c8y_Temperature\",\"c8y_Temperature\":{\"T\":{\"unit\":\"C\",\"value\":" + (i * 7919 % 4000) / 100.0 + "}}}}";
+        }
+
+        private static String timestamp(int i) {
+            return String.format("2020-08-28T09:%02d:%02d.%03dZ", i / 60 % 60, i % 60, i * 37 % 1000);
+        }
+
+        private static String childAssets(int i, int references) {
+            StringBuilder builder = new StringBuilder();
+            for (int r = 0; r < references; ++r) {
+                builder.append("{\"managedObject\":{\"self\":\"http://cumulocity.default.svc.cluster.local/inventory/managedObjects/").append(r)
+                        .append("\",\"id\":\"").append(r).append("\"},\"self\":\"http://cumulocity.default.svc.cluster.local/inventory/managedObjects/10107/childAssets/")
+                        .append(r).append("\"},");
+            }
+            String id = String.valueOf(3201 + i);
+            String self = "http://cumulocity.default.svc.cluster.local/inventory/managedObjects/" + id;
+            return "{\"realtimeAction\":\"UPDATE\",\"data\":{" +
+                    "\"additionParents\":{\"self\":\"" + self + "/additionParents\",\"references\":[]},\"owner\":\"admin\"," +
+                    "\"childDevices\":{\"self\":\"" + self + "/childDevices\",\"references\":[]}," +
+                    "\"childAssets\":{\"self\":\"" + self + "/childAssets\",\"references\":[" + builder +
+                    "{\"managedObject\":{\"self\":\"http://cumulocity.default.svc.cluster.local/inventory/managedObjects/3200\",\"id\":\"3200\"},\"self\":\"" + self + "/childAssets/3200\"}]}," +
+                    "\"creationTime\":\"2020-08-28T09:20:30.186Z\",\"lastUpdated\":\"" + timestamp(i) + "\"," +
+                    "\"childAdditions\":{\"self\":\"" + self + "/childAdditions\",\"references\":[]},\"name\":\"testGroup" + i + "\"," +
+                    "\"assetParents\":{\"self\":\"" + self + "/assetParents\",\"references\":[]}," +
+                    "\"deviceParents\":{\"self\":\"" + self + "/deviceParents\",\"references\":[]}," +
+                    "\"self\":\"" + self + "\",\"id\":\"" + id + "\",\"c8y_IsDeviceGroup\":{}}}";
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.cometd.websocket.server.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>A WebSocket client on a plain socket, for the benchmarks that measure what the server
+ * writes on the wire: it performs the upgrade and the CometD handshake, then reads the frames
+ * as they are, without decompressing them.</p>
+ */
+final class RawWebSocketClient implements AutoCloseable {
+    private final Socket socket;
+    private final DataInputStream input;
+    private final OutputStream output;
+    private byte[] payload = new byte[64 * 1024];
+    private int payloadLength;
+
+    /**
+     * @param extensions the {@code Sec-WebSocket-Extensions} to request, or null
+     * @param protocol   the {@code Sec-WebSocket-Protocol} to request, or null
+     */
+    RawWebSocketClient(int port, String extensions, String protocol) throws IOException {
+        socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        input = new DataInputStream(socket.getInputStream());
+        output = socket.getOutputStream();
+        upgrade(port, extensions, protocol);
+        writeTextFrame("[{\"id\":\"1\",\"channel\":\"/meta/handshake\",\"version\":\"1.0\",\"supportedConnectionTypes\":[\"websocket\"]}]");
+        // The reply may be compressed: the session is looked up on the server instead.
+        readFrame();
+    }
+
+    /**
+     * Reads the next frame, whole messages are sent in a single frame.
+     *
+     * @return the bytes of the frame on the wire, header included
+     */
+    int readFrame() throws IOException {
+        input.readUnsignedByte();
+        int length = input.readUnsignedByte() & 0x7F;
+        int header = 2;
+        if (length == 126) {
+            length = input.readUnsignedShort();
+            header += 2;
+        } else if (length == 127) {
+            length = (int) input.readLong();
+            header += 8;
+        }
+        if (length > payload.length) {
+            payload = new byte[length];
+        }
+        input.readFully(payload, 0, length);
+        payloadLength = length;
+        return header + length;
+    }
+
+    /**
+     * @return whether the last frame read contains the given ASCII text
+     */
+    boolean payloadContains(byte[] text) {
+        for (int i = 0; i <= payloadLength - text.length; ++i) {
+            int j = 0;
+            while (j < text.length && payload[i + j] == text[j]) {
+                ++j;
+            }
+            if (j == text.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void upgrade(int port, String extensions, String protocol) throws IOException {
+        String request = "" +
+                "GET " + LoadServer.PATH + " HTTP/1.1\r\n" +
+                "Host: localhost:" + port + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+                "Sec-WebSocket-Version: 13\r\n" +
+                (extensions == null ? "" : "Sec-WebSocket-Extensions: " + extensions + "\r\n") +
+                (protocol == null ? "" : "Sec-WebSocket-Protocol: " + protocol + "\r\n") +
+                "\r\n";
+        output.write(request.getBytes(StandardCharsets.US_ASCII));
+        output.flush();
+        InputStream stream = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        while (!response.toString("US-ASCII").endsWith("\r\n\r\n")) {
+            int read = stream.read();
+            if (read < 0) {
+                throw new IOException("Connection closed during the upgrade");
+            }
+            response.write(read);
+        }
+        if (!response.toString("US-ASCII").startsWith("HTTP/1.1 101")) {
+            throw new IOException("Upgrade rejected: " + response.toString("US-ASCII"));
+        }
+    }
+
+    private void writeTextFrame(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x81);
+        frame.write(0x80 | bytes.length);
+        // A zero mask leaves the payload as is.
+        frame.write(new byte[4]);
+        frame.write(bytes);
+        output.write(frame.toByteArray());
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
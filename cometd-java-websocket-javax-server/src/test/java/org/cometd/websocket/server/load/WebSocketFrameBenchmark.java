@@ -0,0 +1,116 @@
+package org.cometd.websocket.server.load;
+
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.server.BayeuxServerImpl;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.openjdk.jmh.annotations.Mode.Throughput;
+
+/**
+ * Compares the two ways the WebSocket transport of an in-process server writes a frame of messages
+ * to a client: the text path builds a String of the messages JSON that the container encodes back
+ * to UTF-8, while the binary path, negotiated with the {@code ws.binaryProtocol} subprotocol, gathers
+ * the serialized UTF-8 bytes of the messages. Each operation delivers a batch of messages that is
+ * flushed in one frame, and reads the frame from the client socket.
+ */
+@BenchmarkMode(Throughput)
+@Fork(1)
+@Warmup(iterations = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 3)
+public class WebSocketFrameBenchmark {
+    private static final String BINARY_PROTOCOL = "cometd-binary";
+    private static final String LAST_CHANNEL = "/measurements/last";
+
+    @Test
+    public void webSocketFrameBenchmark() throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .result("target/" + WebSocketFrameBenchmark.class.getSimpleName() + "-jmh.json")
+                .resultFormat(ResultFormatType.JSON)
+                .include(WebSocketFrameBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Benchmark
+    public int frame(ExecutionPlan plan) throws IOException {
+        ServerSession session = plan.session;
+        List<Map<String, Object>> data = plan.data;
+        session.batch(() -> {
+            for (int i = 0; i < data.size(); ++i) {
+                session.deliver(null, i == data.size() - 1 ? LAST_CHANNEL : "/measurements/" + i, data.get(i));
+            }
+        });
+        int bytes = 0;
+        do {
+            bytes += plan.client.readFrame();
+        } while (!plan.client.payloadContains(plan.last));
+        return bytes;
+    }
+
+    @State(Scope.Thread)
+    public static class ExecutionPlan {
+        @Param({"1", "10", "100"})
+        int messagesPerFrame;
+
+        @Param({"false", "true"})
+        boolean zipped;
+
+        @Param({"false", "true"})
+        boolean binary;
+
+        private final byte[] last = LAST_CHANNEL.getBytes(StandardCharsets.US_ASCII);
+        private List<Map<String, Object>> data;
+        private LoadServer server;
+        private RawWebSocketClient client;
+        private ServerSession session;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            data = new ArrayList<>(messagesPerFrame);
+            for (int i = 0; i < messagesPerFrame; ++i) {
+                Map<String, Object> message = new HashMap<>();
+                message.put("realtimeAction", "CREATE");
+                message.put("self", "http://cumulocity.default.svc.cluster.local/measurement/measurements/" + i);
+                message.put("source", "http://cumulocity.default.svc.cluster.local/inventory/managedObjects/" + i);
+                message.put("time", "2020-08-28T09:20:30.186Z");
+                data.add(message);
+            }
+
+            Map<String, Object> options = new HashMap<>();
+            options.put(BayeuxServerImpl.ZIP_MESSAGE_SIZE_THRESHOLD_OPTION, zipped ? 1 : Integer.MAX_VALUE);
+            options.put("ws.binaryProtocol", BINARY_PROTOCOL);
+            options.put("ws.messagesPerFrame", messagesPerFrame);
+            options.put("ws.deflate", false);
+            // The client never sends /meta/connect, the session must outlive the trial.
+            options.put("maxInterval", TimeUnit.HOURS.toMillis(1));
+            server = new LoadServer(LoadServer.HttpTransport.ASYNC, options);
+            client = new RawWebSocketClient(server.getPort(), null, binary ? BINARY_PROTOCOL : null);
+            session = server.getBayeux().getSessions().stream()
+                    .filter(s -> !s.isLocalSession())
+                    .findFirst()
+                    .orElseThrow(IllegalStateException::new);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            client.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.cometd.websocket.server.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+final class WebSocketLoadClient extends LoadClient implements WebSocket.Listener {
+    private final StringBuilder text = new StringBuilder();
+    private CompletableFuture<WebSocket> sends;
+
+    WebSocketLoadClient(HttpClient httpClient, URI uri, String room, Stats stats) {
+        super(room, stats);
+        sends = httpClient.newWebSocketBuilder().buildAsync(uri, this);
+    }
+
+    @Override
+    protected String getConnectionType() {
+        return "websocket";
+    }
+
+    @Override
+    protected synchronized void send(String json) {
+        // A WebSocket send may only start when the previous one completed.
+        sends = sends.thenCompose(webSocket -> webSocket.sendText(json, true));
+        sends.whenComplete((webSocket, failure) -> {
+            if (failure != null && running) {
+                failed(failure);
+            }
+        });
+    }
+
+    @Override
+    void stop() {
+        super.stop();
+        synchronized (this) {
+            sends = sends.thenCompose(webSocket -> webSocket.sendClose(WebSocket.NORMAL_CLOSURE, ""));
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        text.append(data);
+        if (last) {
+            String json = text.toString();
+            text.setLength(0);
+            onMessages(json);
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable failure) {
+        if (running) {
+            failed(failure);
+        }
+    }
+}